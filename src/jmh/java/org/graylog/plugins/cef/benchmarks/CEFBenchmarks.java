@@ -0,0 +1,25 @@
+package org.graylog.plugins.cef.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Entry point of the benchmarks profile. Takes the regular JMH command line options
+ * and always adds the GC profiler, so every result comes with its allocation rate (gc.alloc.rate.norm).
+ */
+public class CEFBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include(CEFBenchmarks.class.getPackage().getName() + ".*");
+        }
+        options.addProfiler(GCProfiler.class);
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,38 @@
+package org.graylog.plugins.cef.benchmarks;
+
+/*
+ * Sample messages for the benchmarks. The long ones are padded to about 4 KB with a msg field,
+ * which is what we see from Palo Alto and Fortinet firewalls in the wild.
+ */
+public enum CEFCorpus {
+    OSSEC_SHORT("<132>Aug 14 14:26:55 ossec-host CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|User missed the password more than one time|10|dvc=ip-172-30-2-212 cfp2=90.01 cfp2Label=SomeFloat spt=22 cs2=ip-172-30-2-212->/var/log/auth.log cs2Label=Location msg=Aug 14 14:26:53 ip-172-30-2-212 sshd[16217]: PAM 2 more authentication failures; logname= uid=0 euid=0 tty=ssh ruser= rhost=116.31.116.17  user=root"),
+
+    PALO_ALTO_4K(padded("<14>Aug 14 14:26:55 pa-fw01 CEF:0|Palo Alto Networks|PAN-OS|7.1.4|end|TRAFFIC|1|rt=Aug 14 2016 14:26:55 GMT deviceExternalId=001606012345 src=10.16.4.102 dst=172.217.22.14 sourceTranslatedAddress=203.0.113.10 destinationTranslatedAddress=172.217.22.14 cs1Label=Rule cs1=allow-web suser=corp\\\\jdoe duser= app=ssl cs3Label=Virtual System cs3=vsys1 cs4Label=Source Zone cs4=trust cs5Label=Destination Zone cs5=untrust deviceInboundInterface=ethernet1/2 deviceOutboundInterface=ethernet1/1 cs6Label=LogProfile cs6=default cn1Label=SessionID cn1=114502 cnt=1 spt=50346 dpt=443 sourceTranslatedPort=24118 destinationTranslatedPort=443 flexString1Label=Flags flexString1=0x400019 proto=TCP act=allow flexNumber1Label=Total bytes flexNumber1=6211 in=1517 out=4694 cn2Label=Packets cn2=21 PanOSPacketsReceived=10 PanOSPacketsSent=11 start=Aug 14 2016 14:26:40 GMT cn3Label=Elapsed time in seconds cn3=14 cs2Label=URL Category cs2=search-engines externalId=5863729012 reason=tcp-fin",
+            " msg=", "session end after tcp-fin from 10.16.4.102:50346 to 172.217.22.14:443 via ethernet1/1 rule allow-web profile default ")),
+
+    FORTINET_4K(padded("<189>Aug 14 14:26:55 fgt-edge CEF:0|Fortinet|Fortigate|v5.4.1|00013|traffic:forward close|3|deviceExternalId=FGT60D4615012345 FTNTFGTlogid=0000000013 cat=traffic:forward FTNTFGTsubtype=forward FTNTFGTlevel=notice FTNTFGTvd=root FTNTFGTeventtime=1471184815 src=192.168.1.110 spt=58412 deviceInboundInterface=internal dst=93.184.216.34 dpt=80 deviceOutboundInterface=wan1 externalId=4405672 act=close proto=6 app=HTTP FTNTFGTpolicyid=1 FTNTFGTpoluuid=6d0c4d7e-6a8a-51e6-0f6a-9c0e0c2a1f3b FTNTFGTtrandisp=snat sourceTranslatedAddress=198.51.100.7 sourceTranslatedPort=58412 FTNTFGTduration=12 FTNTFGTsentbyte=1412 FTNTFGTrcvdbyte=18022 FTNTFGTsentpkt=14 FTNTFGTrcvdpkt=16 FTNTFGTappcat=unscanned FTNTFGTcrscore=30 FTNTFGTcraction=131072 FTNTFGTcrlevel=high",
+            " msg=", "traffic forward close srcintf\\=internal dstintf\\=wan1 sessionid\\=4405672 service\\=HTTP appid\\=15893 apprisk\\=elevated ")),
+
+    ESCAPE_HEAVY("CEF:0|Nessus\\\\Tenable|Nessus\\|Scanner||Nessus\\|18405|Operating System: Windows\\|Server|2|eventId=6 categorySignificance=/Normal filePath=C:\\\\Users\\\\ANON\\\\Desktop\\\\nessus_test\\\\scan.nessus cs1Label=Query cs1=a\\=1&b\\=2&c\\=3&d\\=4&e\\=5 cs2Label=Path cs2=\\\\\\\\fileserver\\\\share\\\\dir\\\\file.txt request=http://example.com/?q\\=x&r\\=y&s\\=z ad.__FILE__PATH=C:\\\\Program Files\\\\Tenable\\\\Nessus\\\\nessusd.exe aid=testtesttest\\\\\\=\\\\\\= msg=key1\\=value1 key2\\=value2 key3\\=value3 path\\=C:\\\\Windows\\\\System32");
+
+    private static final int LONG_MESSAGE_SIZE = 4096;
+
+    private final String message;
+
+    CEFCorpus(String message) {
+        this.message = message;
+    }
+
+    public String message() {
+        return message;
+    }
+
+    private static String padded(String prefix, String msgKey, String msgText) {
+        StringBuilder sb = new StringBuilder(LONG_MESSAGE_SIZE).append(prefix).append(msgKey);
+        while (sb.length() < LONG_MESSAGE_SIZE) {
+            sb.append(msgText);
+        }
+        sb.setLength(LONG_MESSAGE_SIZE);
+        return sb.toString();
+    }
+}
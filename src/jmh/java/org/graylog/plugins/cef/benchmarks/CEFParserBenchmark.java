@@ -0,0 +1,110 @@
+package org.graylog.plugins.cef.benchmarks;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.cef.codec.CEFCodec;
+import org.graylog.plugins.cef.parser.CEFExtensionTokenizer;
+import org.graylog.plugins.cef.parser.CEFFieldsParser;
+import org.graylog.plugins.cef.parser.CEFMessage;
+import org.graylog.plugins.cef.parser.CEFParser;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Covers every stage of the CEF input on its own and the full decode path.
+ * Run through CEFBenchmarks to get the allocation rate of each benchmark next to its throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CEFParserBenchmark {
+
+    @Param({"OSSEC_SHORT", "PALO_ALTO_4K", "FORTINET_4K", "ESCAPE_HEAVY"})
+    public CEFCorpus corpus;
+
+    private String message;
+    private byte[] payload;
+    private String extension;
+    private byte[] extensionBytes;
+    private final int[] pipes = new int[CEFParser.HEADER_PIPES];
+    private final CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+
+    private CEFParser parser;
+    private CEFFieldsParser fieldsParser;
+    private CEFCodec codec;
+    private RawMessage rawMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        message = corpus.message();
+        payload = message.getBytes(Charsets.UTF_8);
+        extension = CEFParser.pipeSplit(message).get(7);
+        extensionBytes = extension.getBytes(Charsets.UTF_8);
+
+        parser = new CEFParser(DateTimeZone.UTC);
+        fieldsParser = new CEFFieldsParser();
+        codec = new CEFCodec(new Configuration(ImmutableMap.<String, Object>of("timezone", "UTC")));
+        rawMessage = new RawMessage(payload, new InetSocketAddress("10.1.2.3", 514));
+    }
+
+    @Benchmark
+    public List<String> pipeSplit() {
+        return CEFParser.pipeSplit(message);
+    }
+
+    @Benchmark
+    public int pipeSplitOffsets() {
+        return CEFParser.pipeSplit(payload, 0, payload.length, pipes);
+    }
+
+    @Benchmark
+    public List<String> fieldSplit() {
+        return CEFFieldsParser.fieldSplit(extension);
+    }
+
+    @Benchmark
+    public CEFExtensionTokenizer.Status tokenize() {
+        return tokenizer.tokenize(extensionBytes, 0, extensionBytes.length);
+    }
+
+    @Benchmark
+    public Map<String, Object> fieldsParse() {
+        return fieldsParser.parse(extensionBytes, 0, extensionBytes.length);
+    }
+
+    @Benchmark
+    public CEFMessage parseString() throws Exception {
+        return parser.parse(message);
+    }
+
+    @Benchmark
+    public CEFMessage parseBytes() throws Exception {
+        return parser.parse(payload);
+    }
+
+    @Benchmark
+    public Message decode() {
+        return codec.decode(rawMessage);
+    }
+}
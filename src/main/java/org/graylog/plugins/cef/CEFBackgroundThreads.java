@@ -0,0 +1,23 @@
+package org.graylog.plugins.cef;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import org.graylog.plugins.cef.parser.CEFClock;
+import org.graylog.plugins.cef.parser.CEFErrorReporter;
+
+/*
+ * Stops the threads of the parser when Graylog shuts down. They are started on first use, but they are
+ * static and would otherwise keep running with the plugin class loader.
+ */
+public class CEFBackgroundThreads extends AbstractIdleService {
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        CEFClock.stop();
+        CEFErrorReporter.stop();
+    }
+
+}
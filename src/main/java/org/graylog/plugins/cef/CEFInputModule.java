@@ -2,6 +2,7 @@ package org.graylog.plugins.cef;
 
 import org.graylog.plugins.cef.codec.CEFCodec;
 import org.graylog.plugins.cef.input.CEFTCPInput;
+import org.graylog.plugins.cef.input.CEFTCPTransport;
 import org.graylog.plugins.cef.input.CEFUDPInput;
 import org.graylog2.plugin.PluginConfigBean;
 import org.graylog2.plugin.PluginModule;
@@ -19,6 +20,8 @@ public class CEFInputModule extends PluginModule {
     @Override
     protected void configure() {
         addCodec(CEFCodec.NAME, CEFCodec.class);
+        addInitializer(CEFBackgroundThreads.class);
+        addTransport(CEFTCPTransport.NAME, CEFTCPTransport.class);
 
         addMessageInput(CEFUDPInput.class);
         addMessageInput(CEFTCPInput.class);
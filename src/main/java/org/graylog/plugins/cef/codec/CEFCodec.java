@@ -1,39 +1,92 @@
 package org.graylog.plugins.cef.codec;
 
-import com.google.common.base.Charsets;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
+import org.graylog.plugins.cef.parser.CEFErrorReporter;
+import org.graylog.plugins.cef.parser.CEFFieldsParser;
+import org.graylog.plugins.cef.parser.CEFHandler;
+import org.graylog.plugins.cef.parser.CEFInternCache;
+import org.graylog.plugins.cef.parser.CEFLimits;
 import org.graylog.plugins.cef.parser.CEFMessage;
+import org.graylog.plugins.cef.parser.CEFParseResult;
 import org.graylog.plugins.cef.parser.CEFParser;
+import org.graylog.plugins.cef.parser.CEFProjection;
+import org.graylog.plugins.cef.parser.CEFTemplateCache;
+import org.graylog.plugins.cef.parser.CEFTimestampCache;
+import org.graylog.plugins.cef.parser.CEFTimestamps;
+import org.graylog.plugins.cef.parser.CEFVendorProfiles;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.ResolvableInetSocketAddress;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.inputs.codecs.Codec;
 import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+import org.graylog2.plugin.inputs.codecs.MultiMessageCodec;
 import org.graylog2.plugin.journal.RawMessage;
+import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.net.InetSocketAddress;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
-public class CEFCodec implements Codec {
+public class CEFCodec implements MultiMessageCodec {
 
     public static final String NAME = "CEF";
 
     private static final Logger LOG = LoggerFactory.getLogger(CEFCodec.class);
 
+    private static final String UNKNOWN_SOURCE = "unknown";
+
+    private static final int MAX_TEMPLATE_STATS = 100;
+    private static final String OTHER_TEMPLATES = "other";
+
     private static final String CK_TIMEZONE = "timezone";
+    private static final String CK_SUMMARY_CACHE_SIZE = "summary_cache_size";
+    private static final String CK_SOURCE_PRECEDENCE = "source_precedence";
+    private static final String CK_SPLIT_RECORDS = "split_records";
+    private static final String CK_MAX_PAYLOAD_SIZE = "max_payload_size";
+    private static final String CK_MAX_EXTENSION_FIELDS = "max_extension_fields";
+    private static final String CK_MAX_VALUE_LENGTH = "max_value_length";
+    private static final String CK_PARSE_TIME_BUDGET = "parse_time_budget_ms";
+    private static final String CK_INCLUDE_FIELDS = "include_fields";
+    private static final String CK_EXCLUDE_FIELDS = "exclude_fields";
+    private static final String CK_FULL_FIELD_NAMES = "full_field_names";
+    private static final String CK_VENDOR_PROFILES = "vendor_profiles_file";
+    private static final String CK_PARSE_TIMESTAMPS = "parse_timestamps";
+    private static final String CK_RECEIPT_TIME = "use_receipt_time";
+
+    private static final int DEFAULT_MAX_PAYLOAD_SIZE = 1024 * 1024;
+    private static final int DEFAULT_MAX_EXTENSION_FIELDS = 1024;
+    private static final int DEFAULT_MAX_VALUE_LENGTH = 64 * 1024;
 
     private final Configuration configuration;
     private final CEFParser parser;
+    private final CEFSummaryCache summaryCache;
+    private final CEFSourceResolver sourceResolver;
+    private final boolean splitRecords;
+    private final int maxPayloadSize;
 
     @AssistedInject
     public CEFCodec(@Assisted Configuration configuration) {
@@ -47,69 +100,291 @@ public class CEFCodec implements Codec {
             timezone = DateTimeZone.getDefault();
         }
 
-        this.parser = new CEFParser(timezone);
+        boolean fullNames = configuration.getBoolean(CK_FULL_FIELD_NAMES, false);
+        this.parser = new CEFParser(timezone, new CEFLimits(
+                configuration.getInt(CK_MAX_EXTENSION_FIELDS, DEFAULT_MAX_EXTENSION_FIELDS),
+                configuration.getInt(CK_MAX_VALUE_LENGTH, DEFAULT_MAX_VALUE_LENGTH),
+                configuration.getInt(CK_PARSE_TIME_BUDGET, 0)),
+                CEFProjection.compile(configuration.getString(CK_INCLUDE_FIELDS), configuration.getString(CK_EXCLUDE_FIELDS)),
+                fullNames,
+                CEFVendorProfiles.forFile(configuration.getString(CK_VENDOR_PROFILES)),
+                timestamps(configuration));
+        this.summaryCache = summaryCache(configuration);
+        this.sourceResolver = CEFSourceResolver.forPrecedence(configuration.getString(CK_SOURCE_PRECEDENCE, CEFSourceResolver.DEFAULT_PRECEDENCE), fullNames);
+        this.splitRecords = configuration.getBoolean(CK_SPLIT_RECORDS, false);
+        this.maxPayloadSize = configuration.getInt(CK_MAX_PAYLOAD_SIZE, DEFAULT_MAX_PAYLOAD_SIZE);
+    }
+
+    //Loads the vendor profiles file again, inputs call this when they start. See CEFVendorProfiles.
+    public static CEFVendorProfiles loadVendorProfiles(Configuration configuration) throws IOException {
+        return CEFVendorProfiles.load(configuration.getString(CK_VENDOR_PROFILES));
+    }
+
+    private static CEFParser.Timestamps timestamps(Configuration configuration) {
+        if (configuration.getBoolean(CK_RECEIPT_TIME, false)) {
+            return CEFParser.Timestamps.RECEIPT_TIME;
+        }
+        return configuration.getBoolean(CK_PARSE_TIMESTAMPS, false) ? CEFParser.Timestamps.PARSE : CEFParser.Timestamps.RAW;
+    }
+
+    private static CEFSummaryCache summaryCache(Configuration configuration) {
+        return CEFSummaryCache.forSize(configuration.getInt(CK_SUMMARY_CACHE_SIZE, CEFSummaryCache.DEFAULT_SIZE));
     }
 
     @Nullable
     @Override
     public Message decode(@Nonnull RawMessage rawMessage) {
+        CEFInputMetrics metrics = CEFInputMetrics.forMessage(rawMessage);
+        byte[] payload = rawMessage.getPayload();
+        if (metrics != null) {
+            metrics.received(payload.length);
+        }
+
+        // CEF standard says all messages are UTF-8 so I trust that. The parser works on the raw bytes.
+        InetAddress remoteAddress = remoteAddress(rawMessage);
+        int length = parsedLength(payload);
+        MessageWriter writer = new MessageWriter(rawMessage, metrics, length, null);
+        CEFParseResult.Failure failure;
         try {
-            // CEF standard says all messages are UTF-8 so I trust that.
-            String s = new String(rawMessage.getPayload(), Charsets.UTF_8);
-            CEFMessage cef = parser.parse(s);
+            failure = parser.tryParse(payload, 0, length, remoteAddress, metrics, writer);
+        } catch(Exception e) {
+            throw new RuntimeException("Could not decode CEF message.", e);
+        }
+        if (failure != null) {
+            rejected(failure, remoteAddress, payload, metrics);
+            throw CEFDecodeException.of(failure);
+        }
+
+        return writer.message;
+    }
 
-            // Build standard message.
-            Message result = new Message(buildMessageSummary(cef), decideSource(cef, rawMessage), cef.timestamp());
+    /*
+     * With split_records enabled, every line of the payload is a message of its own. Malformed records are
+     * counted and skipped without dropping the rest of the batch. Only if no record could be decoded at
+     * all, this fails like decode() does.
+     */
+    @Nullable
+    @Override
+    public Collection<Message> decodeMessages(@Nonnull RawMessage rawMessage) {
+        if (!splitRecords) {
+            Message message = decode(rawMessage);
+            return message == null ? null : Collections.singletonList(message);
+        }
 
-            // Add all extensions.
-            result.addFields(cef.fields());
+        CEFInputMetrics metrics = CEFInputMetrics.forMessage(rawMessage);
+        byte[] payload = rawMessage.getPayload();
+        if (metrics != null) {
+            metrics.received(payload.length);
+        }
 
-            // Add standard CEF fields.
-            result.addField("device_vendor", cef.deviceVendor());
-            result.addField("device_product", cef.deviceProduct());
-            result.addField("device_version", cef.deviceVersion());
-            result.addField("event_class_id", cef.deviceEventClassId());
-            result.addField("name", cef.name());
-            result.addField("severity", cef.humanReadableSeverity());
-            result.addField("severity_number", cef.severity());
-
-            // Add msg field if the CEF message has one.
-            result.addField("msg", cef.message());
-
-            return result;
+        InetAddress remoteAddress = remoteAddress(rawMessage);
+        int length = parsedLength(payload);
+        List<Message> messages = new ArrayList<>();
+        CEFParseResult.Failure[] lastFailure = new CEFParseResult.Failure[1];
+        try {
+            parser.tryParseRecords(payload, 0, length, remoteAddress, metrics, new MessageWriter(rawMessage, metrics, length, messages), failure -> {
+                rejected(failure, remoteAddress, payload, metrics);
+                lastFailure[0] = failure;
+            });
         } catch(Exception e) {
             throw new RuntimeException("Could not decode CEF message.", e);
         }
+
+        if (messages.isEmpty() && lastFailure[0] != null) {
+            throw CEFDecodeException.of(lastFailure[0]);
+        }
+        return messages.isEmpty() ? null : messages;
+    }
+
+    private static void rejected(CEFParseResult.Failure failure, InetAddress remoteAddress, byte[] payload, @Nullable CEFInputMetrics metrics) {
+        if (metrics != null) {
+            metrics.rejected(failure);
+        }
+        CEFErrorReporter.shared().messageFailed(failure, remoteAddress, payload);
+    }
+
+    /*
+     * Number of payload bytes to parse. Payloads over max_payload_size are cut at the last complete
+     * character before the limit, and the messages get the CEFLimits.PAYLOAD_TRUNCATED marker.
+     */
+    private int parsedLength(byte[] payload) {
+        if (maxPayloadSize <= 0 || payload.length <= maxPayloadSize) {
+            return payload.length;
+        }
+        int length = maxPayloadSize;
+        while (length > 0 && (payload[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        return length;
+    }
+
+    /*
+     * Writes the messages the parser pushes straight into Graylog Messages, with no CEFMessage or field
+     * map in between. The extension fields go in first, then the standard CEF fields, so the latter win
+     * like they always did. The source is resolved from the extension fields once they are all in.
+     */
+    private final class MessageWriter implements CEFHandler {
+        private final RawMessage rawMessage;
+        private final CEFInputMetrics metrics;
+        private final int parsedLength;
+        //Collects every message in record mode, null for a single message.
+        private final List<Message> messages;
+
+        private Message message;
+        private String deviceVendor;
+        private String deviceProduct;
+        private String deviceVersion;
+        private String deviceEventClassId;
+        private String name;
+        private int severity;
+        private int fieldCount;
+        private long start;
+
+        private MessageWriter(RawMessage rawMessage, @Nullable CEFInputMetrics metrics, int parsedLength, @Nullable List<Message> messages) {
+            this.rawMessage = rawMessage;
+            this.metrics = metrics;
+            this.parsedLength = parsedLength;
+            this.messages = messages;
+        }
+
+        @Override
+        public void header(DateTime timestamp, int version, String deviceVendor, String deviceProduct, String deviceVersion,
+                           String deviceEventClassId, String name, int severity) {
+            this.start = metrics == null ? 0 : System.nanoTime();
+            this.deviceVendor = deviceVendor;
+            this.deviceProduct = deviceProduct;
+            this.deviceVersion = deviceVersion;
+            this.deviceEventClassId = deviceEventClassId;
+            this.name = name;
+            this.severity = severity;
+            this.fieldCount = 0;
+
+            // Build standard message. The source follows in end().
+            this.message = new Message(summaryCache.summary(deviceProduct, deviceEventClassId, severity, name), UNKNOWN_SOURCE, timestamp);
+        }
+
+        @Override
+        public void field(String name, Object value) {
+            message.addField(name, value);
+            fieldCount++;
+        }
+
+        @Override
+        public void end() {
+            // Use raw message source information if we were not able to parse a source from the CEF extensions.
+            message.setSource(sourceResolver.resolveFrom(message::getField, rawMessage.getRemoteAddress()));
+
+            // Add standard CEF fields.
+            message.addField("device_vendor", deviceVendor);
+            message.addField("device_product", deviceProduct);
+            message.addField("device_version", deviceVersion);
+            message.addField("event_class_id", deviceEventClassId);
+            message.addField("name", name);
+            message.addField("severity", CEFMessage.humanReadableSeverity(severity));
+            message.addField("severity_number", severity);
+
+            if (parsedLength < rawMessage.getPayload().length) {
+                message.addField(CEFLimits.PAYLOAD_TRUNCATED, rawMessage.getPayload().length);
+            }
+
+            if (metrics != null) {
+                metrics.decoded(deviceVendor, deviceProduct, fieldCount, System.nanoTime() - start);
+            }
+            if (messages != null) {
+                messages.add(message);
+            }
+        }
+    }
+
+    private static InetAddress remoteAddress(RawMessage raw) {
+        ResolvableInetSocketAddress address = raw.getRemoteAddress();
+        return address == null ? null : address.getAddress();
     }
 
-    private String buildMessageSummary(CEFMessage cef) {
-        return new StringBuilder()
-                .append(cef.deviceProduct())
-                .append(": ")
-                .append("[").append(cef.deviceEventClassId()).append(", ")
-                .append(cef.humanReadableSeverity()).append("] ")
-                .append(cef.name())
-                .toString();
+    /*
+     * Metrics of the parser and summary caches. Graylog builds a new codec for every message it decodes,
+     * so these are shared by all CEF codecs in the JVM. The inputs register them once in the global
+     * metric registry, see registerMetrics().
+     */
+    public static MetricSet metrics() {
+        CEFInternCache headerCache = CEFParser.headerCache();
+        CEFInternCache nameCache = CEFFieldsParser.nameCache();
+        CEFTemplateCache templates = CEFTemplateCache.shared();
+        return () -> ImmutableMap.<String, Metric>builder()
+                .put(MetricRegistry.name(CEFParser.class, "timestamp-cache", "hit-ratio"), CEFTimestampCache.hitRatio())
+                .put(MetricRegistry.name(CEFParser.class, "field-timestamp-cache", "hit-ratio"), CEFTimestamps.hitRatio())
+                .put(MetricRegistry.name(CEFParser.class, "header-cache", "hits"), (Gauge<Long>) headerCache::hits)
+                .put(MetricRegistry.name(CEFParser.class, "header-cache", "misses"), (Gauge<Long>) headerCache::misses)
+                .put(MetricRegistry.name(CEFParser.class, "header-cache", "evictions"), (Gauge<Long>) headerCache::evictions)
+                .put(MetricRegistry.name(CEFParser.class, "name-cache", "hits"), (Gauge<Long>) nameCache::hits)
+                .put(MetricRegistry.name(CEFParser.class, "name-cache", "misses"), (Gauge<Long>) nameCache::misses)
+                .put(MetricRegistry.name(CEFParser.class, "name-cache", "evictions"), (Gauge<Long>) nameCache::evictions)
+                .put(MetricRegistry.name(CEFParser.class, "template-cache", "size"), (Gauge<Integer>) templates::size)
+                .put(MetricRegistry.name(CEFParser.class, "template-cache", "hits"), (Gauge<Long>) templates::hits)
+                .put(MetricRegistry.name(CEFParser.class, "template-cache", "misses"), (Gauge<Long>) templates::misses)
+                .put(MetricRegistry.name(CEFParser.class, "template-cache", "overflows"), (Gauge<Long>) templates::overflows)
+                .put(MetricRegistry.name(CEFParser.class, "template-cache", "templates"), (Gauge<Map<String, Map<String, Long>>>) () -> templateStats(templates))
+                .put(MetricRegistry.name(CEFCodec.class, "summary-cache", "hits"), (Gauge<Long>) () -> CEFSummaryCache.totalStats().hitCount())
+                .put(MetricRegistry.name(CEFCodec.class, "summary-cache", "misses"), (Gauge<Long>) () -> CEFSummaryCache.totalStats().missCount())
+                .put(MetricRegistry.name(CEFCodec.class, "summary-cache", "evictions"), (Gauge<Long>) () -> CEFSummaryCache.totalStats().evictionCount())
+                .put(MetricRegistry.name(CEFCodec.class, "summary-cache", "size"), (Gauge<Long>) CEFSummaryCache::totalSize)
+                .put(MetricRegistry.name(CEFCodec.class, "source-cache", "hits"), (Gauge<Long>) () -> CEFSourceResolver.addressCache().stats().hitCount())
+                .put(MetricRegistry.name(CEFCodec.class, "source-cache", "misses"), (Gauge<Long>) () -> CEFSourceResolver.addressCache().stats().missCount())
+                .putAll(errorMetrics())
+                .build();
     }
 
-    private String decideSource(CEFMessage cef, RawMessage raw) {
-        if(cef.fields() != null && cef.fields().containsKey("dvc")) {
-            String dvc = (String) cef.fields().get("dvc");
-            if (!dvc.isEmpty()) {
-                return dvc;
+    /*
+     * Registers metrics() in registry, unless they are already there. They are not per input, in the
+     * local registry of every input they would show the same JVM-wide numbers once per input.
+     */
+    public static void registerMetrics(MetricRegistry registry) {
+        synchronized (registry) {
+            for (Map.Entry<String, Metric> metric : metrics().getMetrics().entrySet()) {
+                if (!registry.getNames().contains(metric.getKey())) {
+                    registry.register(metric.getKey(), metric.getValue());
+                }
             }
         }
+    }
+
+    /*
+     * Hits and misses of the learned key orders, by vendor/product/version/event class id. The header
+     * values come from the senders, so only the MAX_TEMPLATE_STATS busiest templates are listed on their
+     * own, the rest are summed up as "other".
+     */
+    private static Map<String, Map<String, Long>> templateStats(CEFTemplateCache templates) {
+        List<CEFTemplateCache.Template> busiest = new ArrayList<>(templates.templates());
+        busiest.sort(Comparator.comparingLong((CEFTemplateCache.Template t) -> t.hits() + t.misses()).reversed());
 
-        // Use raw message source information if we were not able to parse a source from the CEF extensions.
-        final ResolvableInetSocketAddress address = raw.getRemoteAddress();
-        final InetSocketAddress remoteAddress;
-        if (address == null) {
-            remoteAddress = null;
-        } else {
-            remoteAddress = address.getInetSocketAddress();
+        ImmutableMap.Builder<String, Map<String, Long>> stats = ImmutableMap.builder();
+        long otherHits = 0;
+        long otherMisses = 0;
+        for (int i = 0; i < busiest.size(); i++) {
+            CEFTemplateCache.Template template = busiest.get(i);
+            if (i < MAX_TEMPLATE_STATS) {
+                stats.put(template.toString(), ImmutableMap.of("hits", template.hits(), "misses", template.misses()));
+            } else {
+                otherHits += template.hits();
+                otherMisses += template.misses();
+            }
+        }
+        if (busiest.size() > MAX_TEMPLATE_STATS) {
+            stats.put(OTHER_TEMPLATES, ImmutableMap.of("hits", otherHits, "misses", otherMisses));
         }
+        return stats.build();
+    }
 
-        return remoteAddress == null ? "unknown" : remoteAddress.getAddress().toString();
+    private static Map<String, Metric> errorMetrics() {
+        CEFErrorReporter reporter = CEFErrorReporter.shared();
+        ImmutableMap.Builder<String, Metric> metrics = ImmutableMap.builder();
+        for (CEFParseResult.Failure failure : CEFParseResult.Failure.values()) {
+            metrics.put(MetricRegistry.name(CEFCodec.class, "failures", failure.name().toLowerCase(Locale.ENGLISH)), (Gauge<Long>) () -> reporter.failures(failure));
+        }
+        for (CEFErrorReporter.FieldError error : CEFErrorReporter.FieldError.values()) {
+            metrics.put(MetricRegistry.name(CEFCodec.class, "field-errors", error.name().toLowerCase(Locale.ENGLISH)), (Gauge<Long>) () -> reporter.fieldErrors(error));
+        }
+        return metrics.build();
     }
 
     @Nullable
@@ -152,6 +427,106 @@ public class CEFCodec implements Codec {
                     ConfigurationField.Optional.NOT_OPTIONAL
             ));
 
+            cr.addField(new NumberField(
+                    CK_SUMMARY_CACHE_SIZE,
+                    "Summary cache size",
+                    CEFSummaryCache.DEFAULT_SIZE,
+                    "Number of distinct message summaries (product, event class, severity and name) to keep in memory. Set to 0 to disable the cache.",
+                    ConfigurationField.Optional.OPTIONAL
+            ));
+
+            cr.addField(new TextField(
+                    CK_SOURCE_PRECEDENCE,
+                    "Source fields",
+                    CEFSourceResolver.DEFAULT_PRECEDENCE,
+                    "Comma separated list of CEF extension fields to take the message source from, in order of precedence. The first non-empty one wins, \"remote\" is the address the message was received from. Example: dvc,dvchost,shost,remote",
+                    ConfigurationField.Optional.OPTIONAL
+            ));
+
+            cr.addField(new BooleanField(
+                    CK_SPLIT_RECORDS,
+                    "Split records",
+                    false,
+                    "Treat every line of a received payload as a CEF message of its own. Enable this for senders that batch several newline separated messages into one UDP datagram or TCP frame."
+            ));
+
+            cr.addField(new BooleanField(
+                    CK_FULL_FIELD_NAMES,
+                    "Full field names",
+                    false,
+                    "Store extension fields under their full ArcSight dictionary name, e.g. sourceAddress instead of src. msg keeps its name. Source, included and excluded fields may use either name."
+            ));
+
+            cr.addField(new BooleanField(
+                    CK_PARSE_TIMESTAMPS,
+                    "Parse timestamp fields",
+                    false,
+                    "Store rt, start, end, deviceCustomDate1/2 and flexDate1 as dates instead of text. Epoch milliseconds, MMM dd yyyy HH:mm:ss with optional milliseconds and zone, and ISO 8601 are recognized. Dates without a zone use the timezone above. Values in other formats are dropped."
+            ));
+
+            cr.addField(new BooleanField(
+                    CK_RECEIPT_TIME,
+                    "Use receipt time",
+                    false,
+                    "Take the message timestamp from the rt extension field instead of the syslog header, for events that were queued or relayed. Implies parsing timestamp fields. Messages without a valid rt keep the header timestamp."
+            ));
+
+            cr.addField(new TextField(
+                    CK_INCLUDE_FIELDS,
+                    "Included fields",
+                    "",
+                    "Comma separated list of the extension fields to keep, custom fields by their label. A trailing * matches all fields starting with the rest, e.g. src,dst,spt,dpt,cs*. Leave empty to keep all fields. Keep the fields the message source is taken from.",
+                    ConfigurationField.Optional.OPTIONAL
+            ));
+
+            cr.addField(new TextField(
+                    CK_EXCLUDE_FIELDS,
+                    "Excluded fields",
+                    "",
+                    "Comma separated list of extension fields to skip, in the same format as the included fields. Excluded fields are never added, even if they are included.",
+                    ConfigurationField.Optional.OPTIONAL
+            ));
+
+            cr.addField(new TextField(
+                    CK_VENDOR_PROFILES,
+                    "Vendor profiles file",
+                    "",
+                    "Path to a JSON file with per vendor and product rules that rename, retype or drop extension fields, e.g. to give Fortinet cs1-cs6 fixed names. The file is read when the input starts. Leave empty to use no profiles.",
+                    ConfigurationField.Optional.OPTIONAL
+            ));
+
+            cr.addField(new NumberField(
+                    CK_MAX_PAYLOAD_SIZE,
+                    "Maximum payload size",
+                    DEFAULT_MAX_PAYLOAD_SIZE,
+                    "Only the first bytes of larger payloads are parsed, the messages get a cef_payload_truncated field with the original size. Set to 0 for no limit.",
+                    ConfigurationField.Optional.OPTIONAL
+            ));
+
+            cr.addField(new NumberField(
+                    CK_MAX_EXTENSION_FIELDS,
+                    "Maximum extension fields",
+                    DEFAULT_MAX_EXTENSION_FIELDS,
+                    "Extension fields of a message past this number are skipped and the message gets a cef_fields_dropped field. Set to 0 for no limit.",
+                    ConfigurationField.Optional.OPTIONAL
+            ));
+
+            cr.addField(new NumberField(
+                    CK_MAX_VALUE_LENGTH,
+                    "Maximum value length",
+                    DEFAULT_MAX_VALUE_LENGTH,
+                    "Extension values longer than this number of bytes are truncated and listed in a cef_truncated_fields field. Set to 0 for no limit.",
+                    ConfigurationField.Optional.OPTIONAL
+            ));
+
+            cr.addField(new NumberField(
+                    CK_PARSE_TIME_BUDGET,
+                    "Parse time budget (ms)",
+                    0,
+                    "Extension fields of a message that are still left after this many milliseconds of parsing are skipped and the message gets a cef_fields_dropped field. Set to 0 for no limit.",
+                    ConfigurationField.Optional.OPTIONAL
+            ));
+
             return cr;
         }
 
@@ -0,0 +1,35 @@
+package org.graylog.plugins.cef.codec;
+
+import org.graylog.plugins.cef.parser.CEFParseResult;
+
+/*
+ * Thrown by CEFCodec.decode() for messages the parser rejected. Graylog counts and logs decode
+ * failures based on the exception, so there is one preallocated instance per failure reason and none
+ * of them has a stack trace. A flood of garbage then costs about as much as valid traffic.
+ */
+public class CEFDecodeException extends RuntimeException {
+
+    private static final CEFDecodeException[] INSTANCES = new CEFDecodeException[CEFParseResult.Failure.values().length];
+
+    static {
+        for (CEFParseResult.Failure failure : CEFParseResult.Failure.values()) {
+            INSTANCES[failure.ordinal()] = new CEFDecodeException(failure);
+        }
+    }
+
+    private final CEFParseResult.Failure failure;
+
+    private CEFDecodeException(CEFParseResult.Failure failure) {
+        super("Could not decode CEF message. " + failure.message(), null, false, false);
+        this.failure = failure;
+    }
+
+    public static CEFDecodeException of(CEFParseResult.Failure failure) {
+        return INSTANCES[failure.ordinal()];
+    }
+
+    public CEFParseResult.Failure failure() {
+        return failure;
+    }
+
+}
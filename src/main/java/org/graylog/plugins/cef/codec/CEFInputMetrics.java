@@ -0,0 +1,135 @@
+package org.graylog.plugins.cef.codec;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.graylog.plugins.cef.parser.CEFParseResult;
+import org.graylog.plugins.cef.parser.CEFParser;
+import org.graylog2.plugin.journal.RawMessage;
+
+import javax.annotation.Nullable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Metrics of the messages one CEF input received, registered in the local metric registry of the input.
+ *
+ * Graylog creates a new codec for every message and only hands it the raw message, so the inputs bind
+ * their metrics to their input ID while they run and the codec looks them up through the source nodes
+ * of the raw message. Messages of inputs that are not bound, like in tests, are not recorded.
+ *
+ * Messages are also metered by device vendor and product. Those come from the senders, so at most
+ * MAX_PRODUCTS of them get their own meter, all others are counted as "other".
+ */
+public class CEFInputMetrics implements CEFParser.StageTimer {
+    public static final int MAX_PRODUCTS = 100;
+
+    private static final String OTHER_PRODUCTS = "other";
+
+    private static final Map<String, CEFInputMetrics> INPUTS = new ConcurrentHashMap<>();
+
+    private final MetricRegistry registry;
+    private final Timer header;
+    private final Timer extension;
+    private final Timer build;
+    private final Counter[] failures = new Counter[CEFParseResult.Failure.values().length];
+    private final Histogram fieldCount;
+    private final Histogram payloadSize;
+
+    //Vendor -> product -> meter, no allocation for products we have already seen.
+    private final Map<String, Map<String, Meter>> products = new ConcurrentHashMap<>();
+    private final AtomicInteger productCount = new AtomicInteger();
+    private final Meter otherProducts;
+
+    public CEFInputMetrics(MetricRegistry registry) {
+        this.registry = registry;
+        this.header = registry.timer(MetricRegistry.name(CEFCodec.class, "parse", "header"));
+        this.extension = registry.timer(MetricRegistry.name(CEFCodec.class, "parse", "extension"));
+        this.build = registry.timer(MetricRegistry.name(CEFCodec.class, "parse", "build"));
+        for (CEFParseResult.Failure failure : CEFParseResult.Failure.values()) {
+            failures[failure.ordinal()] = registry.counter(MetricRegistry.name(CEFCodec.class, "rejected", failure.name().toLowerCase(Locale.ENGLISH)));
+        }
+        this.fieldCount = registry.histogram(MetricRegistry.name(CEFCodec.class, "field-count"));
+        this.payloadSize = registry.histogram(MetricRegistry.name(CEFCodec.class, "payload-size"));
+        this.otherProducts = registry.meter(MetricRegistry.name(CEFCodec.class, "products", OTHER_PRODUCTS));
+    }
+
+    //Called by the inputs when they start, messages of inputId are recorded from now on.
+    public void bind(String inputId) {
+        INPUTS.put(inputId, this);
+    }
+
+    public void unbind(String inputId) {
+        INPUTS.remove(inputId, this);
+    }
+
+    //The metrics of the input that received raw, or null if it is not bound.
+    @Nullable
+    public static CEFInputMetrics forMessage(RawMessage raw) {
+        if (INPUTS.isEmpty()) {
+            return null;
+        }
+        for (RawMessage.SourceNode node : raw.getSourceNodes()) {
+            CEFInputMetrics metrics = node.inputId == null ? null : INPUTS.get(node.inputId);
+            if (metrics != null) {
+                return metrics;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void header(long nanos) {
+        header.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void extension(long nanos) {
+        extension.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void received(int payloadLength) {
+        payloadSize.update(payloadLength);
+    }
+
+    public void rejected(CEFParseResult.Failure failure) {
+        failures[failure.ordinal()].inc();
+    }
+
+    public void decoded(String vendor, String product, int fields, long buildNanos) {
+        build.update(buildNanos, TimeUnit.NANOSECONDS);
+        fieldCount.update(fields);
+        product(vendor, product).mark();
+    }
+
+    private Meter product(String vendor, String product) {
+        Map<String, Meter> meters = products.get(vendor);
+        Meter meter = meters == null ? null : meters.get(product);
+        if (meter != null) {
+            return meter;
+        }
+        if (productCount.get() >= MAX_PRODUCTS) {
+            return otherProducts;
+        }
+
+        synchronized (products) {
+            meters = products.computeIfAbsent(vendor, v -> new ConcurrentHashMap<>());
+            meter = meters.get(product);
+            if (meter == null) {
+                if (productCount.get() >= MAX_PRODUCTS) {
+                    return otherProducts;
+                }
+                meter = registry.meter(MetricRegistry.name(CEFCodec.class, "products", vendor, product));
+                meters.put(product, meter);
+                productCount.incrementAndGet();
+            }
+            return meter;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.graylog.plugins.cef.codec;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import org.graylog.plugins.cef.parser.CEFExtensionKey;
+import org.graylog2.plugin.ResolvableInetSocketAddress;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/*
+ * Decides the source of a message from a configurable precedence chain like "dvc,dvchost,shost,remote".
+ *
+ * Every entry names an extension field. The first one with a non-empty value wins, "remote" stands for
+ * the address the message was received from. The remote address is formatted the way
+ * InetAddress.toString() does for an address without host name ("/10.1.2.3"), but never looks up a
+ * host name, and the formatted Strings are cached by address. Sources that were already reverse looked
+ * up by Graylog keep their host name. Chains for codecs that emit full field names look dictionary keys
+ * up under their full name, so "dvc" keeps working.
+ *
+ * Chains are compiled once per distinct setting, Graylog creates a codec for every message. The last
+ * resolver handed out is kept next to the map, so codecs of the same input do not look it up again.
+ */
+public class CEFSourceResolver {
+
+    public static final String REMOTE = "remote";
+    public static final String DEFAULT_PRECEDENCE = "dvc," + REMOTE;
+
+    private static final String UNKNOWN = "unknown";
+
+    private static final int MAX_ADDRESSES = 65536;
+    private static final Cache<InetAddress, String> ADDRESSES = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ADDRESSES)
+            .recordStats()
+            .build();
+
+    private static final ConcurrentMap<String, CEFSourceResolver> RESOLVERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CEFSourceResolver> FULL_NAME_RESOLVERS = new ConcurrentHashMap<>();
+
+    private static volatile CEFSourceResolver last;
+
+    private final String precedence;
+    private final boolean fullNames;
+    //Extension keys in order of precedence. A null entry stands for the remote address.
+    private final String[] chain;
+
+    private CEFSourceResolver(String precedence, boolean fullNames, List<String> chain) {
+        this.precedence = precedence;
+        this.fullNames = fullNames;
+        this.chain = new String[chain.size()];
+        for (int i = 0; i < chain.size(); i++) {
+            this.chain[i] = REMOTE.equals(chain.get(i)) ? null : fieldName(chain.get(i), fullNames);
+        }
+    }
+
+    private static String fieldName(String key, boolean fullNames) {
+        CEFExtensionKey dictionaryKey = CEFExtensionKey.forName(key);
+        return dictionaryKey == null || dictionaryKey.isCustom() ? key : dictionaryKey.fieldName(fullNames);
+    }
+
+    public static CEFSourceResolver forPrecedence(String precedence) {
+        return forPrecedence(precedence, false);
+    }
+
+    public static CEFSourceResolver forPrecedence(String precedence, boolean fullNames) {
+        String key = precedence == null ? DEFAULT_PRECEDENCE : precedence;
+        CEFSourceResolver resolver = last;
+        if (resolver == null || resolver.fullNames != fullNames || !resolver.precedence.equals(key)) {
+            resolver = (fullNames ? FULL_NAME_RESOLVERS : RESOLVERS).computeIfAbsent(key,
+                    p -> new CEFSourceResolver(p, fullNames, ImmutableList.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(p))));
+            last = resolver;
+        }
+        return resolver;
+    }
+
+    public String resolve(Map<String, Object> fields, ResolvableInetSocketAddress address) {
+        return resolveFrom(fields == null ? null : fields::get, address);
+    }
+
+    //fields returns the value of a field, or null.
+    public String resolveFrom(Function<String, Object> fields, ResolvableInetSocketAddress address) {
+        for (String key : chain) {
+            if (key == null) {
+                if (address != null) {
+                    return remote(address);
+                }
+            } else if (fields != null) {
+                Object value = fields.apply(key);
+                if (value != null) {
+                    String source = value.toString();
+                    if (!source.isEmpty()) {
+                        return source;
+                    }
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static String remote(ResolvableInetSocketAddress address) {
+        InetAddress inetAddress = address.getAddress();
+        if (inetAddress == null) {
+            return UNKNOWN;
+        } else if (address.isReverseLookedUp()) {
+            return inetAddress.toString();
+        }
+
+        String source = ADDRESSES.getIfPresent(inetAddress);
+        if (source == null) {
+            source = "/" + inetAddress.getHostAddress();
+            ADDRESSES.put(inetAddress, source);
+        }
+        return source;
+    }
+
+    public static Cache<InetAddress, String> addressCache() {
+        return ADDRESSES;
+    }
+
+}
@@ -0,0 +1,145 @@
+package org.graylog.plugins.cef.codec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.graylog.plugins.cef.parser.CEFMessage;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Bounded cache of message summaries ("product: [class id, severity] name").
+ *
+ * The summary only depends on four header fields, and the parser already hands out shared instances
+ * for repeated header values, so most messages of a device find their summary here and share one
+ * String. Summaries do not depend on the input, so all codecs configured with the same size share a
+ * cache. Graylog creates a codec for every message, a cache per codec would never be hit.
+ *
+ * The metrics of all caches are summed up in CEFCodec.metrics(), which is registered once globally.
+ */
+public class CEFSummaryCache {
+
+    public static final int DEFAULT_SIZE = 10000;
+
+    private static final ConcurrentMap<Integer, CEFSummaryCache> CACHES = new ConcurrentHashMap<>();
+
+    //Last cache handed out by forSize(), all inputs usually share one size.
+    private static volatile CEFSummaryCache last;
+
+    private final int size;
+    private final Cache<Key, String> summaries;
+
+    private CEFSummaryCache(int size) {
+        this.size = size;
+        this.summaries = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .recordStats()
+                .build();
+    }
+
+    //The shared cache with the given size. A size of 0 disables caching.
+    public static CEFSummaryCache forSize(int size) {
+        int bounded = Math.max(size, 0);
+        CEFSummaryCache cache = last;
+        if (cache == null || cache.size != bounded) {
+            cache = CACHES.computeIfAbsent(bounded, CEFSummaryCache::new);
+            last = cache;
+        }
+        return cache;
+    }
+
+    //Sum of the stats of all shared caches.
+    public static CacheStats totalStats() {
+        CacheStats total = new CacheStats(0, 0, 0, 0, 0, 0);
+        for (CEFSummaryCache cache : CACHES.values()) {
+            total = total.plus(cache.stats());
+        }
+        return total;
+    }
+
+    public static long totalSize() {
+        long total = 0;
+        for (CEFSummaryCache cache : CACHES.values()) {
+            total += cache.size();
+        }
+        return total;
+    }
+
+    public String summary(CEFMessage cef) {
+        return summary(cef.deviceProduct(), cef.deviceEventClassId(), cef.severity(), cef.name());
+    }
+
+    public String summary(String product, String eventClassId, int severity, String name) {
+        if (size == 0) {
+            return build(product, eventClassId, severity, name);
+        }
+        Key key = new Key(product, eventClassId, severity, name);
+        String summary = summaries.getIfPresent(key);
+        if (summary == null) {
+            summary = build(product, eventClassId, severity, name);
+            summaries.put(key, summary);
+        }
+        return summary;
+    }
+
+    static String build(CEFMessage cef) {
+        return build(cef.deviceProduct(), cef.deviceEventClassId(), cef.severity(), cef.name());
+    }
+
+    static String build(String product, String eventClassId, int severity, String name) {
+        return new StringBuilder()
+                .append(product)
+                .append(": ")
+                .append("[").append(eventClassId).append(", ")
+                .append(CEFMessage.humanReadableSeverity(severity)).append("] ")
+                .append(name)
+                .toString();
+    }
+
+    public CacheStats stats() {
+        return summaries.stats();
+    }
+
+    public long size() {
+        return summaries.size();
+    }
+
+    private static final class Key {
+        private final String product;
+        private final String eventClassId;
+        private final int severity;
+        private final String name;
+        private final int hash;
+
+        private Key(String product, String eventClassId, int severity, String name) {
+            this.product = product;
+            this.eventClassId = eventClassId;
+            this.severity = severity;
+            this.name = name;
+            this.hash = ((Objects.hashCode(product) * 31 + Objects.hashCode(eventClassId)) * 31 + severity) * 31 + Objects.hashCode(name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            } else if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return hash == that.hash
+                    && severity == that.severity
+                    && Objects.equals(product, that.product)
+                    && Objects.equals(eventClassId, that.eventClassId)
+                    && Objects.equals(name, that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package org.graylog.plugins.cef.input;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+/*
+ * Splits a TCP stream into CEF messages. Every connection is either newline (or null byte) delimited
+ * or octet counted as in RFC 6587 ("<length> <message>"), decided by the first bytes a sender writes:
+ * a length is a non zero digit followed by up to 9 more digits and a space. Syslog headers start with
+ * '<' and bare CEF messages with "CEF:", neither looks like that.
+ *
+ * Frames are slices of the received buffer, nothing is copied. That is fine because Graylog copies the
+ * payload into the raw message before this decoder sees the next bytes.
+ *
+ * Frames longer than maxFrameLength are skipped and reported with a TooLongFrameException, the
+ * connection stays usable. An octet counted connection with an invalid length prefix has lost track of
+ * its frames for good, it is closed and everything still in flight is dropped. The sender reconnects
+ * and starts with a fresh frame.
+ */
+public class CEFFrameDecoder extends FrameDecoder {
+    //"2147483647 " is the longest length prefix we accept.
+    private static final int MAX_LENGTH_DIGITS = 10;
+
+    private enum Framing {
+        DELIMITED, OCTET_COUNTED
+    }
+
+    private final int maxFrameLength;
+    private final byte delimiter;
+
+    private Framing framing;
+    //Remaining bytes of a too long frame. -1 skips until the next delimiter.
+    private long discarding;
+    //Set once the frames of an octet counted connection are lost, the channel is being closed.
+    private boolean corrupted;
+
+    public CEFFrameDecoder(int maxFrameLength, boolean nullDelimiter) {
+        this.maxFrameLength = maxFrameLength;
+        this.delimiter = nullDelimiter ? 0 : (byte) '\n';
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (corrupted) {
+            buffer.skipBytes(buffer.readableBytes());
+            return null;
+        }
+        if (discarding != 0 && !discard(buffer)) {
+            return null;
+        }
+
+        if (framing == null) {
+            framing = detect(buffer);
+            if (framing == null) {
+                return null;
+            }
+        }
+
+        return framing == Framing.OCTET_COUNTED ? decodeOctetCounted(ctx, buffer) : decodeDelimited(buffer);
+    }
+
+    //null if the buffer does not have enough bytes to tell yet.
+    private static Framing detect(ChannelBuffer buffer) {
+        int start = buffer.readerIndex();
+        int end = buffer.writerIndex();
+        if (start == end) {
+            return null;
+        }
+        byte first = buffer.getByte(start);
+        if (first < '1' || first > '9') {
+            return Framing.DELIMITED;
+        }
+        for (int i = start + 1; i < end && i <= start + MAX_LENGTH_DIGITS; i++) {
+            byte b = buffer.getByte(i);
+            if (b == ' ') {
+                return Framing.OCTET_COUNTED;
+            } else if (b < '0' || b > '9') {
+                return Framing.DELIMITED;
+            }
+        }
+        return end - start > MAX_LENGTH_DIGITS ? Framing.DELIMITED : null;
+    }
+
+    private ChannelBuffer decodeOctetCounted(ChannelHandlerContext ctx, ChannelBuffer buffer) throws CorruptedFrameException, TooLongFrameException {
+        int start = buffer.readerIndex();
+        int end = buffer.writerIndex();
+
+        long length = 0;
+        int i = start;
+        for (; i < end; i++) {
+            byte b = buffer.getByte(i);
+            if (b == ' ' || b < '0' || b > '9' || i == start + MAX_LENGTH_DIGITS) {
+                break;
+            }
+            length = length * 10 + (b - '0');
+        }
+        if (i == end) {
+            return null;
+        } else if (i == start || buffer.getByte(i) != ' ') {
+            // Lost track of the frames, there is no way to find the next one.
+            corrupted = true;
+            buffer.skipBytes(buffer.readableBytes());
+            Channels.close(ctx.getChannel());
+            throw new CorruptedFrameException("Invalid octet count in CEF frame.");
+        }
+
+        int prefix = i + 1 - start;
+        if (length > maxFrameLength) {
+            buffer.skipBytes(prefix);
+            discarding = length;
+            discard(buffer);
+            throw new TooLongFrameException("CEF frame length " + length + " exceeds " + maxFrameLength + " bytes.");
+        }
+        if (end - start - prefix < length) {
+            return null;
+        }
+
+        buffer.skipBytes(prefix);
+        return buffer.readSlice((int) length);
+    }
+
+    private ChannelBuffer decodeDelimited(ChannelBuffer buffer) throws TooLongFrameException {
+        int start = buffer.readerIndex();
+        int end = buffer.writerIndex();
+        int found = buffer.indexOf(start, end, delimiter);
+        if (found == -1) {
+            if (end - start > maxFrameLength) {
+                buffer.skipBytes(end - start);
+                discarding = -1;
+                throw new TooLongFrameException("CEF frame exceeds " + maxFrameLength + " bytes.");
+            }
+            return null;
+        }
+
+        int length = found - start;
+        if (length > maxFrameLength) {
+            buffer.skipBytes(length + 1);
+            throw new TooLongFrameException("CEF frame length " + length + " exceeds " + maxFrameLength + " bytes.");
+        }
+        ChannelBuffer frame = buffer.readSlice(length > 0 && delimiter == '\n' && buffer.getByte(found - 1) == '\r' ? length - 1 : length);
+        buffer.skipBytes(found + 1 - buffer.readerIndex());
+        return frame;
+    }
+
+    //Skips what is left of a too long frame. Returns true if all of it is gone.
+    private boolean discard(ChannelBuffer buffer) {
+        if (discarding == -1) {
+            int found = buffer.indexOf(buffer.readerIndex(), buffer.writerIndex(), delimiter);
+            if (found == -1) {
+                buffer.skipBytes(buffer.readableBytes());
+                return false;
+            }
+            buffer.skipBytes(found + 1 - buffer.readerIndex());
+            discarding = 0;
+            return true;
+        }
+
+        int skip = (int) Math.min(discarding, buffer.readableBytes());
+        buffer.skipBytes(skip);
+        discarding -= skip;
+        return discarding == 0;
+    }
+
+}
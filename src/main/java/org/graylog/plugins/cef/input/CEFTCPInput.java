@@ -5,24 +5,29 @@ import com.codahale.metrics.MetricRegistry;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 import org.graylog.plugins.cef.codec.CEFCodec;
-import org.graylog2.inputs.transports.TcpTransport;
+import org.graylog.plugins.cef.codec.CEFInputMetrics;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.ServerStatus;
+import org.graylog2.plugin.buffers.InputBuffer;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 
 import javax.inject.Inject;
+import java.io.IOException;
 
 public class CEFTCPInput extends MessageInput {
 
     private static final String NAME = "CEF TCP Input";
 
+    private final CEFInputMetrics metrics;
+
     @AssistedInject
     public CEFTCPInput(@Assisted Configuration configuration,
                        MetricRegistry metricRegistry,
-                       final TcpTransport.Factory tcpTransportFactory,
+                       final CEFTCPTransport.Factory tcpTransportFactory,
                        final LocalMetricRegistry localRegistry,
                        CEFCodec.Factory codec,
                        Config config,
@@ -38,6 +43,27 @@ public class CEFTCPInput extends MessageInput {
                 descriptor,
                 serverStatus
         );
+
+        CEFCodec.registerMetrics(metricRegistry);
+        this.metrics = new CEFInputMetrics(localRegistry);
+    }
+
+    @Override
+    public void launch(InputBuffer buffer) throws MisfireException {
+        try {
+            CEFCodec.loadVendorProfiles(getConfiguration());
+        } catch (IOException e) {
+            throw new MisfireException("Could not load CEF vendor profiles.", e);
+        }
+        // The input ID is only known once the input runs.
+        metrics.bind(getId());
+        super.launch(buffer);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        metrics.unbind(getId());
     }
 
     @FactoryClass
@@ -62,7 +88,7 @@ public class CEFTCPInput extends MessageInput {
     @ConfigClass
     public static class Config extends MessageInput.Config {
         @Inject
-        public Config(TcpTransport.Factory transport, CEFCodec.Factory codec) {
+        public Config(CEFTCPTransport.Factory transport, CEFCodec.Factory codec) {
             super(transport.getConfig(), codec.getConfig());
         }
     }
@@ -0,0 +1,62 @@
+package org.graylog.plugins.cef.input;
+
+import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
+import org.graylog2.inputs.transports.TcpTransport;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.annotations.ConfigClass;
+import org.graylog2.plugin.inputs.annotations.FactoryClass;
+import org.graylog2.plugin.inputs.transports.Transport;
+import org.graylog2.plugin.inputs.util.ConnectionCounter;
+import org.graylog2.plugin.inputs.util.ThroughputCounter;
+import org.jboss.netty.channel.ChannelHandler;
+
+import javax.inject.Named;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/*
+ * TCP transport that accepts newline delimited and octet counted CEF, see CEFFrameDecoder. Everything
+ * else, including the null delimiter and maximum message size settings, works like the TCP transport.
+ */
+public class CEFTCPTransport extends TcpTransport {
+
+    public static final String NAME = "cef-tcp";
+
+    private final boolean nullDelimiter;
+
+    @AssistedInject
+    public CEFTCPTransport(@Assisted Configuration configuration,
+                           @Named("bossPool") Executor bossPool,
+                           ThroughputCounter throughputCounter,
+                           ConnectionCounter connectionCounter,
+                           LocalMetricRegistry localRegistry) {
+        super(configuration, bossPool, throughputCounter, connectionCounter, localRegistry);
+        this.nullDelimiter = configuration.getBoolean(CK_USE_NULL_DELIMITER);
+    }
+
+    @Override
+    protected LinkedHashMap<String, Callable<? extends ChannelHandler>> getFinalChannelHandlers(MessageInput input) {
+        LinkedHashMap<String, Callable<? extends ChannelHandler>> handlers = super.getFinalChannelHandlers(input);
+        // Replaces the delimiter based framer, in place so it stays in front of the message handlers.
+        handlers.put("framer", () -> new CEFFrameDecoder(maxFrameLength, nullDelimiter));
+        return handlers;
+    }
+
+    @FactoryClass
+    public interface Factory extends Transport.Factory<CEFTCPTransport> {
+        @Override
+        CEFTCPTransport create(Configuration configuration);
+
+        @Override
+        Config getConfig();
+    }
+
+    @ConfigClass
+    public static class Config extends TcpTransport.Config {
+    }
+
+}
@@ -5,20 +5,26 @@ import com.codahale.metrics.MetricRegistry;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 import org.graylog.plugins.cef.codec.CEFCodec;
+import org.graylog.plugins.cef.codec.CEFInputMetrics;
 import org.graylog2.inputs.transports.UdpTransport;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.ServerStatus;
+import org.graylog2.plugin.buffers.InputBuffer;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 
 import javax.inject.Inject;
+import java.io.IOException;
 
 public class CEFUDPInput extends MessageInput {
 
     private static final String NAME = "CEF UDP Input";
 
+    private final CEFInputMetrics metrics;
+
     @AssistedInject
     public CEFUDPInput(@Assisted Configuration configuration,
                         MetricRegistry metricRegistry,
@@ -38,6 +44,27 @@ public class CEFUDPInput extends MessageInput {
                 descriptor,
                 serverStatus
         );
+
+        CEFCodec.registerMetrics(metricRegistry);
+        this.metrics = new CEFInputMetrics(localRegistry);
+    }
+
+    @Override
+    public void launch(InputBuffer buffer) throws MisfireException {
+        try {
+            CEFCodec.loadVendorProfiles(getConfiguration());
+        } catch (IOException e) {
+            throw new MisfireException("Could not load CEF vendor profiles.", e);
+        }
+        // The input ID is only known once the input runs.
+        metrics.bind(getId());
+        super.launch(buffer);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        metrics.unbind(getId());
     }
 
     @FactoryClass
@@ -0,0 +1,112 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Coarse clock for syslog timestamps, which carry no year and have a precision of one second.
+ *
+ * A single daemon thread refreshes the current time once per second for all clocks. It is started with
+ * the first clock and stopped by CEFBackgroundThreads when Graylog shuts down, the plugin class loader
+ * is not kept alive by a thread that never ends. Every clock
+ * remembers the year of its timezone together with the instants that year starts and ends, so
+ * currentYear() is a volatile read and two comparisons instead of a DateTime.now(timezone) call.
+ *
+ * Graylog creates a parser for every message, so parsers share one clock per timezone, see forZone().
+ */
+public class CEFClock {
+
+    private static final long TICK_MILLIS = 1000;
+
+    private static volatile long currentTimeMillis = System.currentTimeMillis();
+
+    private static final ConcurrentMap<DateTimeZone, CEFClock> CLOCKS = new ConcurrentHashMap<>();
+
+    //Guarded by CEFClock.class, null while no clock needs it.
+    private static ScheduledExecutorService ticker;
+
+    private final DateTimeZone timezone;
+    private volatile Year year;
+
+    public CEFClock(DateTimeZone timezone) {
+        startTicker();
+        this.timezone = timezone;
+        this.year = Year.of(currentTimeMillis, timezone);
+    }
+
+    //The shared clock of timezone, created on first use.
+    public static CEFClock forZone(DateTimeZone timezone) {
+        CEFClock clock = CLOCKS.get(timezone);
+        return clock != null ? clock : CLOCKS.computeIfAbsent(timezone, CEFClock::new);
+    }
+
+    private static synchronized void startTicker() {
+        if (ticker == null) {
+            currentTimeMillis = System.currentTimeMillis();
+            ticker = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cef-clock-ticker").build());
+            ticker.scheduleAtFixedRate(() -> currentTimeMillis = System.currentTimeMillis(), TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //Stops the ticker thread. The next clock that is created starts it again.
+    public static synchronized void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    static synchronized boolean ticking() {
+        return ticker != null;
+    }
+
+    //Current time as of the last tick. At most one second behind System.currentTimeMillis().
+    public static long currentTimeMillis() {
+        return currentTimeMillis;
+    }
+
+    public DateTimeZone timezone() {
+        return timezone;
+    }
+
+    //The current year in the timezone of this clock.
+    public int currentYear() {
+        long now = currentTimeMillis;
+        Year y = year;
+        if (now < y.start || now >= y.end) {
+            y = Year.of(now, timezone);
+            year = y;
+        }
+        return y.year;
+    }
+
+    private static final class Year {
+        private final int year;
+        private final long start;
+        private final long end;
+
+        private Year(int year, long start, long end) {
+            this.year = year;
+            this.start = start;
+            this.end = end;
+        }
+
+        private static Year of(long instant, DateTimeZone timezone) {
+            int year = new DateTime(instant, timezone).getYear();
+            return new Year(
+                    year,
+                    new LocalDate(year, 1, 1).toDateTimeAtStartOfDay(timezone).getMillis(),
+                    new LocalDate(year + 1, 1, 1).toDateTimeAtStartOfDay(timezone).getMillis());
+        }
+    }
+
+}
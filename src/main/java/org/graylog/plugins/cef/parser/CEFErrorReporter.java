@@ -0,0 +1,262 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counts rejected messages and fields that could not be converted and logs one summary per interval.
+ *
+ * A sender with broken firmware can produce thousands of bad messages per second, logging each of them
+ * made the server log the bottleneck. The hot path only bumps counters: by failure reason, by extension
+ * key and by source. The start of the first few payloads of every interval is kept as a sample. A
+ * background thread logs what happened once a minute and nothing at all when there were no errors. It
+ * is started with the first use of the shared reporter and stopped by CEFBackgroundThreads when Graylog
+ * shuts down.
+ *
+ * Sources and extension keys are counted in bounded maps, everything past MAX_SOURCES distinct sources
+ * or MAX_KEYS distinct keys in an interval is counted as "other".
+ */
+public class CEFErrorReporter {
+    private static final Logger LOG = LoggerFactory.getLogger(CEFErrorReporter.class);
+
+    public enum FieldError {
+        // A value could not be converted to the type of its key.
+        CONVERSION_FAILED,
+        // A custom field came without its label.
+        MISSING_LABEL,
+        // The extension contains an invalid escape sequence, all fields were skipped.
+        INVALID_ESCAPE,
+        // A value was longer than the configured limit and was cut.
+        TRUNCATED,
+        // Fields were skipped because of the field limit or the time budget, see CEFLimits.
+        DROPPED,
+        // A field a vendor profile renamed replaced a field of the message with the same name.
+        RENAME_COLLISION
+    }
+
+    public static final long INTERVAL_SECONDS = 60;
+    public static final int MAX_SOURCES = 100;
+    public static final int MAX_KEYS = 100;
+    public static final int MAX_SAMPLES = 3;
+    public static final int MAX_SAMPLE_LENGTH = 256;
+
+    private static final String OTHER = "other";
+
+    private static final CEFErrorReporter SHARED = new CEFErrorReporter();
+
+    //Written under CEFErrorReporter.class, null while nothing used the shared reporter.
+    private static volatile ScheduledExecutorService summaries;
+
+    //Counts since startup, for the metrics.
+    private final LongAdder[] failures = adders(CEFParseResult.Failure.values().length);
+    private final LongAdder[] fieldErrors = adders(FieldError.values().length);
+
+    //Counts of the current interval, for the summary.
+    private final AtomicReference<Interval> interval = new AtomicReference<>(new Interval());
+
+    //Graylog creates a parser and codec for every message, so they all report here.
+    public static CEFErrorReporter shared() {
+        if (summaries == null) {
+            startSummaries();
+        }
+        return SHARED;
+    }
+
+    private static synchronized void startSummaries() {
+        if (summaries == null) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cef-error-reporter").build());
+            executor.scheduleAtFixedRate(SHARED::log, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+            summaries = executor;
+        }
+    }
+
+    //Stops the summary thread and logs what is left of the current interval. shared() starts it again.
+    public static synchronized void stop() {
+        if (summaries != null) {
+            summaries.shutdownNow();
+            summaries = null;
+            SHARED.log();
+        }
+    }
+
+    static synchronized boolean running() {
+        return summaries != null;
+    }
+
+    CEFErrorReporter() {
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /*
+     * A message from source was rejected. source is only used as a map key, its toString() is called
+     * when the summary is logged. Only the first MAX_SAMPLE_LENGTH bytes of the payload are copied, and
+     * only if it is kept as a sample.
+     */
+    public void messageFailed(CEFParseResult.Failure failure, Object source, byte[] payload) {
+        failures[failure.ordinal()].increment();
+
+        Interval current = interval.get();
+        current.failures[failure.ordinal()].increment();
+        current.countSource(source);
+        current.sample(failure, payload);
+    }
+
+    /*
+     * A field of a message from source failed. key is the name of the field, or null if the error is not
+     * about a single field. Keys do not have to be in the CEFExtensionKey dictionary.
+     */
+    public void fieldFailed(FieldError error, String key, Object source) {
+        fieldErrors[error.ordinal()].increment();
+
+        Interval current = interval.get();
+        current.fieldErrors[error.ordinal()].increment();
+        if (key != null) {
+            current.countKey(key);
+        }
+        current.countSource(source);
+    }
+
+    public long failures(CEFParseResult.Failure failure) {
+        return failures[failure.ordinal()].sum();
+    }
+
+    public long fieldErrors(FieldError error) {
+        return fieldErrors[error.ordinal()].sum();
+    }
+
+    private void log() {
+        try {
+            String summary = summarize();
+            if (summary != null) {
+                LOG.warn(summary);
+            }
+        } catch (Exception e) {
+            LOG.error("Could not log CEF error summary.", e);
+        }
+    }
+
+    //Starts a new interval and returns the summary of the last one, or null if there were no errors.
+    String summarize() {
+        Interval last = interval.getAndSet(new Interval());
+
+        StringBuilder messages = new StringBuilder();
+        StringBuilder fields = new StringBuilder();
+        long messageCount = append(messages, CEFParseResult.Failure.values(), last.failures);
+        long fieldCount = append(fields, FieldError.values(), last.fieldErrors);
+        if (messageCount == 0 && fieldCount == 0) {
+            return null;
+        }
+
+        StringBuilder summary = new StringBuilder()
+                .append("Skipped ").append(messageCount).append(" malformed CEF messages and found ")
+                .append(fieldCount).append(" CEF field errors in the last ").append(INTERVAL_SECONDS).append(" seconds.");
+        if (messageCount > 0) {
+            summary.append(" Messages: ").append(messages).append('.');
+        }
+        if (fieldCount > 0) {
+            summary.append(" Field errors: ").append(fields).append('.');
+        }
+        append(summary, " Fields: ", last.keys);
+        append(summary, " Sources: ", last.sources);
+
+        for (int i = 0; i < MAX_SAMPLES; i++) {
+            String sample = last.samples.get(i);
+            if (sample != null) {
+                summary.append("\n  Sample: ").append(sample);
+            }
+        }
+
+        return summary.toString();
+    }
+
+    private static long append(StringBuilder summary, Enum<?>[] reasons, LongAdder[] counts) {
+        long total = 0;
+        for (Enum<?> reason : reasons) {
+            long count = counts[reason.ordinal()].sum();
+            if (count > 0) {
+                summary.append(total == 0 ? "" : ", ").append(reason.name()).append('=').append(count);
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    private static void append(StringBuilder summary, String title, Map<?, LongAdder> counts) {
+        if (counts.isEmpty()) {
+            return;
+        }
+        summary.append(title);
+        boolean first = true;
+        for (Map.Entry<?, LongAdder> count : counts.entrySet()) {
+            summary.append(first ? "" : ", ").append(count.getKey()).append('=').append(count.getValue().sum());
+            first = false;
+        }
+        summary.append('.');
+    }
+
+    //Counts key in counts, or as "other" once counts has max entries.
+    private static void count(Map<Object, LongAdder> counts, Object key, int max) {
+        LongAdder count = counts.get(key);
+        if (count == null) {
+            count = counts.size() < max ? counts.computeIfAbsent(key, k -> new LongAdder())
+                    : counts.computeIfAbsent(OTHER, k -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    private static final class Interval {
+        private final LongAdder[] failures = adders(CEFParseResult.Failure.values().length);
+        private final LongAdder[] fieldErrors = adders(FieldError.values().length);
+        private final Map<Object, LongAdder> keys = new ConcurrentHashMap<>();
+        private final Map<Object, LongAdder> sources = new ConcurrentHashMap<>();
+        private final AtomicReferenceArray<String> samples = new AtomicReferenceArray<>(MAX_SAMPLES);
+        private final AtomicInteger sampleCount = new AtomicInteger();
+
+        private void countSource(Object source) {
+            if (source != null) {
+                count(sources, source, MAX_SOURCES);
+            }
+        }
+
+        private void countKey(String key) {
+            count(keys, key, MAX_KEYS);
+        }
+
+        private void sample(CEFParseResult.Failure failure, byte[] payload) {
+            if (payload == null || sampleCount.get() >= MAX_SAMPLES) {
+                return;
+            }
+            int slot = sampleCount.getAndIncrement();
+            if (slot < MAX_SAMPLES) {
+                int length = Math.min(payload.length, MAX_SAMPLE_LENGTH);
+                // Do not cut a UTF-8 sequence in half.
+                while (length < payload.length && length > 0 && (payload[length] & 0xC0) == 0x80) {
+                    length--;
+                }
+                String truncated = length < payload.length ? "... (" + payload.length + " bytes)" : "";
+                samples.set(slot, failure + ": " + new String(payload, 0, length, Charsets.UTF_8) + truncated);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,289 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Dictionary of the ArcSight extension keys and how CEFFieldsParser converts them.
+ *
+ * Every key knows the type of its value. Custom fields (cs1, cn2, flexDate1, ...) are stored under the
+ * value of their label field and point to the descriptor of that label, so the parser never has to
+ * build the label key name. Keys are looked up straight from the payload bytes without building a
+ * String. Keys that are not in here are kept as Strings, except for unknown labels which are dropped.
+ *
+ * Every key also knows its full dictionary name (src is sourceAddress, cs1Label is
+ * deviceCustomString1Label), keys that only have a full name use it for both. The one exception is msg,
+ * which keeps its name because message is the Graylog message field.
+ */
+public final class CEFExtensionKey {
+
+    public enum Type {
+        STRING,
+        INTEGER,
+        LONG,
+        FLOAT,
+        DOUBLE,
+        //A DateTime if the parser converts timestamps, see CEFTimestamps. Otherwise a String.
+        TIMESTAMP
+    }
+
+    private static final String LABEL_SUFFIX = "Label";
+    private static final byte[] LABEL_SUFFIX_BYTES = LABEL_SUFFIX.getBytes(Charsets.UTF_8);
+
+    private static final ImmutableMap<String, String> FULL_NAMES = ImmutableMap.<String, String>builder()
+            .put("act", "deviceAction").put("app", "applicationProtocol").put("cat", "deviceEventCategory")
+            .put("cnt", "baseEventCount").put("dhost", "destinationHostName").put("dmac", "destinationMacAddress")
+            .put("dntdom", "destinationNtDomain").put("dpid", "destinationProcessId")
+            .put("dpriv", "destinationUserPrivileges").put("dproc", "destinationProcessName")
+            .put("dpt", "destinationPort").put("dst", "destinationAddress").put("dtz", "deviceTimeZone")
+            .put("duid", "destinationUserId").put("duser", "destinationUserName").put("dvc", "deviceAddress")
+            .put("dvchost", "deviceHostName").put("dvcmac", "deviceMacAddress").put("dvcpid", "deviceProcessId")
+            .put("end", "endTime").put("fname", "fileName").put("fsize", "fileSize").put("in", "bytesIn")
+            .put("out", "bytesOut").put("outcome", "eventOutcome").put("proto", "transportProtocol")
+            .put("request", "requestUrl").put("rt", "deviceReceiptTime").put("shost", "sourceHostName")
+            .put("smac", "sourceMacAddress").put("sntdom", "sourceNtDomain").put("spid", "sourceProcessId")
+            .put("spriv", "sourceUserPrivileges").put("sproc", "sourceProcessName").put("spt", "sourcePort")
+            .put("src", "sourceAddress").put("start", "startTime").put("suid", "sourceUserId")
+            .put("suser", "sourceUserName").put("dlat", "destinationGeoLatitude")
+            .put("dlong", "destinationGeoLongitude").put("slat", "sourceGeoLatitude")
+            .put("slong", "sourceGeoLongitude").put("agt", "agentAddress").put("ahost", "agentHostName")
+            .put("aid", "agentId").put("amac", "agentMacAddress").put("art", "agentReceiptTime")
+            .put("at", "agentType").put("atz", "agentTimeZone").put("av", "agentVersion")
+            .put("c6a1", "deviceCustomIPv6Address1").put("c6a2", "deviceCustomIPv6Address2")
+            .put("c6a3", "deviceCustomIPv6Address3").put("c6a4", "deviceCustomIPv6Address4")
+            .put("cfp1", "deviceCustomFloatingPoint1").put("cfp2", "deviceCustomFloatingPoint2")
+            .put("cfp3", "deviceCustomFloatingPoint3").put("cfp4", "deviceCustomFloatingPoint4")
+            .put("cn1", "deviceCustomNumber1").put("cn2", "deviceCustomNumber2").put("cn3", "deviceCustomNumber3")
+            .put("cs1", "deviceCustomString1").put("cs2", "deviceCustomString2").put("cs3", "deviceCustomString3")
+            .put("cs4", "deviceCustomString4").put("cs5", "deviceCustomString5").put("cs6", "deviceCustomString6")
+            .build();
+
+    private static final List<CEFExtensionKey> KEYS = new ArrayList<>();
+
+    static {
+        strings("act", "app", "cat", "destinationDnsDomain", "destinationServiceName", "destinationTranslatedAddress",
+                "deviceDnsDomain", "deviceExternalId", "deviceFacility", "deviceInboundInterface", "deviceNtDomain",
+                "deviceOutboundInterface", "devicePayloadId", "deviceProcessName", "deviceTranslatedAddress", "dhost",
+                "dmac", "dntdom", "dpriv", "dproc", "dst", "dtz", "duid", "duser", "dvc", "dvchost", "dvcmac",
+                "externalId", "fileCreateTime", "fileHash", "fileId", "fileModificationTime", "filePath",
+                "filePermission", "fileType", "fname", "msg", "oldFileCreateTime", "oldFileHash", "oldFileId",
+                "oldFileModificationTime", "oldFileName", "oldFilePath", "oldFilePermission", "oldFileType", "out",
+                "outcome", "proto", "reason", "request", "requestClientApplication", "requestContext",
+                "requestCookies", "requestMethod", "shost", "smac", "sntdom", "sourceDnsDomain",
+                "sourceServiceName", "sourceTranslatedAddress", "spriv", "sproc", "src", "suid", "suser",
+                "agentDnsDomain", "agentNtDomain", "agentTranslatedAddress", "agentTranslatedZoneExternalID",
+                "agentTranslatedZoneURI", "agentZoneExternalID", "agentZoneURI", "agt", "ahost", "aid", "amac", "art",
+                "at", "atz", "av", "customerExternalID", "customerURI", "destinationTranslatedZoneExternalID",
+                "destinationTranslatedZoneURI", "destinationZoneExternalID", "destinationZoneURI",
+                "deviceTranslatedZoneExternalID", "deviceTranslatedZoneURI", "deviceZoneExternalID", "deviceZoneURI",
+                "rawEvent", "sourceTranslatedZoneExternalID", "sourceTranslatedZoneURI", "sourceZoneExternalID",
+                "sourceZoneURI");
+
+        // Direct integer conversions. (uid and euid are not in the dictionary but OSSEC sends them)
+        direct(Type.INTEGER, "cnt", "destinationTranslatedPort", "deviceDirection", "dpid", "dpt", "dvcpid", "fsize",
+                "in", "oldFileSize", "sourceTranslatedPort", "spid", "spt", "type", "uid", "euid");
+        direct(Type.DOUBLE, "dlat", "dlong", "slat", "slong");
+        direct(Type.LONG, "eventId");
+        direct(Type.TIMESTAMP, "rt", "start", "end");
+
+        // Custom IPv6 fields and strings are kept as String.
+        custom(Type.STRING, "c6a1", "c6a2", "c6a3", "c6a4", "cs1", "cs2", "cs3", "cs4", "cs5", "cs6",
+                "flexString1", "flexString2");
+        custom(Type.TIMESTAMP, "deviceCustomDate1", "deviceCustomDate2", "flexDate1");
+        custom(Type.FLOAT, "cfp1", "cfp2", "cfp3", "cfp4");
+        custom(Type.LONG, "cn1", "cn2", "cn3", "flexNumber1", "flexNumber2");
+    }
+
+    private static final ImmutableList<CEFExtensionKey> ALL = ImmutableList.copyOf(KEYS);
+    private static final ImmutableList<CEFExtensionKey> CUSTOM = ImmutableList.copyOf(KEYS.stream().filter(CEFExtensionKey::isCustom).iterator());
+    private static final ImmutableMap<String, CEFExtensionKey> BY_NAME;
+    private static final CEFExtensionKey[] TABLE;
+    private static final int TABLE_MASK;
+
+    static {
+        ImmutableMap.Builder<String, CEFExtensionKey> byName = ImmutableMap.builder();
+        int size = Integer.highestOneBit(ALL.size() * 4 - 1) << 1;
+        CEFExtensionKey[] table = new CEFExtensionKey[size];
+        for (CEFExtensionKey key : ALL) {
+            byName.put(key.name, key);
+            int slot = key.hash & (size - 1);
+            while (table[slot] != null) {
+                slot = (slot + 1) & (size - 1);
+            }
+            table[slot] = key;
+        }
+        BY_NAME = byName.build();
+        TABLE = table;
+        TABLE_MASK = size - 1;
+    }
+
+    private final String name;
+    private final String fullName;
+    private final byte[] bytes;
+    private final int hash;
+    private final int index;
+    private final Type type;
+    private final CEFExtensionKey label;
+    private final boolean isLabel;
+
+    private CEFExtensionKey(String name, String fullName, Type type, CEFExtensionKey label, boolean isLabel) {
+        this(name, fullName, type, label, isLabel, KEYS.size());
+        KEYS.add(this);
+    }
+
+    private CEFExtensionKey(String name, String fullName, Type type, CEFExtensionKey label, boolean isLabel, int index) {
+        this.name = name;
+        this.fullName = fullName;
+        this.bytes = name.getBytes(Charsets.UTF_8);
+        this.hash = hash(bytes, 0, bytes.length);
+        this.index = index;
+        this.type = type;
+        this.label = label;
+        this.isLabel = isLabel;
+    }
+
+    //A descriptor for a key that is not in the dictionary, see CEFVendorProfile. index() is -1.
+    static CEFExtensionKey external(String name, Type type) {
+        return new CEFExtensionKey(name, name, type, null, false, -1);
+    }
+
+    //This key with another type, see CEFVendorProfile. Errors are still counted for this key.
+    CEFExtensionKey withType(Type type) {
+        return type == this.type ? this : new CEFExtensionKey(name, fullName, type, label, isLabel, index);
+    }
+
+    private static void strings(String... names) {
+        direct(Type.STRING, names);
+    }
+
+    private static void direct(Type type, String... names) {
+        for (String name : names) {
+            new CEFExtensionKey(name, FULL_NAMES.getOrDefault(name, name), type, null, false);
+        }
+    }
+
+    private static void custom(Type type, String... names) {
+        for (String name : names) {
+            String fullName = FULL_NAMES.getOrDefault(name, name);
+            CEFExtensionKey label = new CEFExtensionKey(name + LABEL_SUFFIX, fullName + LABEL_SUFFIX, Type.STRING, null, true);
+            new CEFExtensionKey(name, fullName, type, label, false);
+        }
+    }
+
+    //The key in in[from, to), or null if it is not in the dictionary. Keys must not contain escapes.
+    public static CEFExtensionKey lookup(byte[] in, int from, int to) {
+        int hash = hash(in, from, to);
+        for (int slot = hash & TABLE_MASK; ; slot = (slot + 1) & TABLE_MASK) {
+            CEFExtensionKey key = TABLE[slot];
+            if (key == null) {
+                return null;
+            } else if (key.hash == hash && key.matches(in, from, to)) {
+                return key;
+            }
+        }
+    }
+
+    public static CEFExtensionKey forName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    //Number of keys in the dictionary. index() is always below this.
+    public static int count() {
+        return ALL.size();
+    }
+
+    public static ImmutableList<CEFExtensionKey> all() {
+        return ALL;
+    }
+
+    //All custom fields, in dictionary order.
+    public static ImmutableList<CEFExtensionKey> customFields() {
+        return CUSTOM;
+    }
+
+    //True if the unescaped key in in[from, to) ends with "Label".
+    public static boolean isLabel(byte[] in, int from, int to) {
+        int length = LABEL_SUFFIX_BYTES.length;
+        if (to - from < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (in[to - length + i] != LABEL_SUFFIX_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean isLabel(String key) {
+        return key.endsWith(LABEL_SUFFIX);
+    }
+
+    static int hash(byte[] in, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + in[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    //True if in[from, to) is this key.
+    boolean matches(byte[] in, int from, int to) {
+        if (bytes.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != in[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    //The full dictionary name, like sourceAddress for src.
+    public String fullName() {
+        return fullName;
+    }
+
+    //The field name this key is stored under if it is not a custom field.
+    public String fieldName(boolean fullNames) {
+        return fullNames ? fullName : name;
+    }
+
+    //Position in all(), or -1 for keys that are not in the dictionary.
+    public int index() {
+        return index;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    //True for custom fields, which are stored under the value of their label().
+    public boolean isCustom() {
+        return label != null;
+    }
+
+    //The label of a custom field, or null.
+    public CEFExtensionKey label() {
+        return label;
+    }
+
+    public boolean isLabel() {
+        return isLabel;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,331 @@
+package org.graylog.plugins.cef.parser;
+
+/*
+ * Splits the extension section of a CEF message into key/value spans in a single forward pass.
+ *
+ * Nothing is copied while tokenizing. For every field the tokenizer records where the key and the value
+ * start and end in the input and whether they contain escape sequences or non-ASCII bytes. Keys and
+ * values are only turned into (unescaped) Strings when key(i) or value(i) is called.
+ *
+ * The splitting rules are the same as in CEFFieldsParser.fieldSplit(): an unescaped = ends a key, the
+ * key is everything after the last unescaped space before it, and only \\ and \= are valid escapes.
+ *
+ * Limits set with limit() are applied while scanning, see CEFLimits. Values over the length limit are
+ * cut in the spans, nothing is copied, and the scan stops at the field limit or when the time budget
+ * ran out.
+ *
+ * In record mode the extension ends at the first raw newline, see tokenizeRecord(). That way splitting
+ * newline separated records and tokenizing them is the same pass over the bytes.
+ *
+ * Instances keep their buffers between messages and are not thread safe.
+ */
+public class CEFExtensionTokenizer {
+
+    public enum Status {
+        OK,
+        // An escape sequence other than \\ or \= was found. errorPosition() points at the backslash.
+        INVALID_ESCAPE
+    }
+
+    //Every field takes 5 ints in the spans array.
+    private static final int KEY_START = 0;
+    private static final int KEY_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+    private static final int FLAGS = 4;
+    private static final int FIELD_WIDTH = 5;
+
+    private static final int KEY_ESCAPED = 1;
+    private static final int KEY_NON_ASCII = 1 << 1;
+    private static final int VALUE_ESCAPED = 1 << 2;
+    private static final int VALUE_NON_ASCII = 1 << 3;
+    private static final int VALUE_TRUNCATED = 1 << 4;
+
+    //Fields between two looks at the clock.
+    private static final int DEADLINE_CHECK_INTERVAL = 16;
+
+    private int[] spans = new int[16 * FIELD_WIDTH];
+    private int size;
+    private byte[] input;
+    private Status status = Status.OK;
+    private int errorPosition = -1;
+    private int end;
+    private boolean dropped;
+
+    private CEFLimits limits = CEFLimits.NONE;
+    private long deadline;
+
+    /*
+     * Applies limits to the following tokenize() calls. The time budget counts from startNanos, a
+     * System.nanoTime() value.
+     */
+    public void limit(CEFLimits limits, long startNanos) {
+        this.limits = limits;
+        this.deadline = startNanos + limits.timeBudgetNanos();
+    }
+
+    public Status tokenize(byte[] in, int from, int to) {
+        return tokenize(in, from, to, false);
+    }
+
+    /*
+     * Like tokenize(), but stops at the first raw newline, which ends the record. A \r in front of it is
+     * not part of the last value. end() tells where the record ended, also if it is malformed.
+     */
+    public Status tokenizeRecord(byte[] in, int from, int to) {
+        return tokenize(in, from, to, true);
+    }
+
+    private Status tokenize(byte[] in, int from, int to, boolean record) {
+        this.input = in;
+        this.size = 0;
+        this.status = Status.OK;
+        this.errorPosition = -1;
+        this.end = to;
+        this.dropped = false;
+
+        //The current key. Before the first = there is none, which fieldSplit() reports as an empty key.
+        int keyStart = from;
+        int keyEnd = from;
+        int keyFlags = 0;
+
+        //Everything since the last unescaped = is the current segment. It holds the value of the
+        //current key, a space and the name of the next key.
+        int segmentStart = from;
+        int lastSpace = -1;
+        int firstEscape = -1;
+        int lastEscape = -1;
+        int firstNonAscii = -1;
+        int lastNonAscii = -1;
+        boolean escaped = false;
+
+        int valueEnd = to;
+        scan:
+        for (int i = from; i < to; i++) {
+            byte b = in[i];
+
+            if (escaped) {
+                escaped = false;
+                if (b != '\\' && b != '=') {
+                    //Found a character which should not be escaped.
+                    this.size = 0;
+                    this.status = Status.INVALID_ESCAPE;
+                    this.errorPosition = i - 1;
+                    if (record) {
+                        this.end = newline(in, i, to);
+                    }
+                    return status;
+                }
+                continue;
+            }
+
+            switch (b) {
+                case '\\':
+                    escaped = true;
+                    if (firstEscape == -1) {
+                        firstEscape = i;
+                    }
+                    lastEscape = i;
+                    break;
+                case ' ':
+                    lastSpace = i;
+                    break;
+                case '\n':
+                    if (record) {
+                        end = i;
+                        valueEnd = i > segmentStart && in[i - 1] == '\r' ? i - 1 : i;
+                        break scan;
+                    }
+                    break;
+                case '=':
+                    if (lastSpace == -1) {
+                        //The whole segment is the name of the next key. There is no value to emit.
+                        keyFlags = (firstEscape != -1 ? KEY_ESCAPED : 0) | (firstNonAscii != -1 ? KEY_NON_ASCII : 0);
+                        keyStart = segmentStart;
+                    } else {
+                        //The segment contains a value, a space, then a key. Split the value and key.
+                        int valueFlags = 0;
+                        if (firstEscape != -1 && firstEscape < lastSpace) {
+                            valueFlags |= VALUE_ESCAPED;
+                        }
+                        if (firstNonAscii != -1 && firstNonAscii < lastSpace) {
+                            valueFlags |= VALUE_NON_ASCII;
+                        }
+                        if (!add(keyStart, keyEnd, segmentStart, lastSpace, keyFlags | valueFlags)) {
+                            if (record) {
+                                this.end = newline(in, i, to);
+                            }
+                            return status;
+                        }
+
+                        keyFlags = (lastEscape > lastSpace ? KEY_ESCAPED : 0) | (lastNonAscii > lastSpace ? KEY_NON_ASCII : 0);
+                        keyStart = lastSpace + 1;
+                    }
+                    keyEnd = i;
+
+                    segmentStart = i + 1;
+                    lastSpace = -1;
+                    firstEscape = -1;
+                    lastEscape = -1;
+                    firstNonAscii = -1;
+                    lastNonAscii = -1;
+                    break;
+                default:
+                    if (b < 0) {
+                        if (firstNonAscii == -1) {
+                            firstNonAscii = i;
+                        }
+                        lastNonAscii = i;
+                    }
+            }
+        }
+
+        int valueFlags = (firstEscape != -1 ? VALUE_ESCAPED : 0) | (firstNonAscii != -1 ? VALUE_NON_ASCII : 0);
+        add(keyStart, keyEnd, segmentStart, valueEnd, keyFlags | valueFlags);
+
+        return status;
+    }
+
+    private static int newline(byte[] in, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (in[i] == '\n') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    //Returns false if the scan has to stop because of a limit.
+    private boolean add(int keyStart, int keyEnd, int valueStart, int valueEnd, int flags) {
+        if (limits.maxFields() > 0 && size == limits.maxFields()) {
+            dropped = true;
+            return false;
+        }
+        if (limits.maxValueLength() > 0 && valueEnd - valueStart > limits.maxValueLength()) {
+            valueEnd = truncate(valueStart, valueStart + limits.maxValueLength());
+            flags |= VALUE_TRUNCATED;
+        }
+
+        int offset = size * FIELD_WIDTH;
+        if (offset == spans.length) {
+            int[] grown = new int[spans.length * 2];
+            System.arraycopy(spans, 0, grown, 0, spans.length);
+            spans = grown;
+        }
+
+        spans[offset + KEY_START] = keyStart;
+        spans[offset + KEY_END] = keyEnd;
+        spans[offset + VALUE_START] = valueStart;
+        spans[offset + VALUE_END] = valueEnd;
+        spans[offset + FLAGS] = flags;
+        size++;
+
+        if (limits.timeBudgetNanos() > 0 && size % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0) {
+            dropped = true;
+            return false;
+        }
+        return true;
+    }
+
+    //Moves end back so that the value neither ends inside a UTF-8 character nor inside an escape sequence.
+    private int truncate(int start, int end) {
+        while (end > start && (input[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        int backslashes = 0;
+        while (end - backslashes > start && input[end - backslashes - 1] == '\\') {
+            backslashes++;
+        }
+        return backslashes % 2 == 1 ? end - 1 : end;
+    }
+
+    public Status status() {
+        return status;
+    }
+
+    public int errorPosition() {
+        return errorPosition;
+    }
+
+    //Where the last tokenize() call stopped: the end of the input or the newline that ended the record.
+    public int end() {
+        return end;
+    }
+
+    //Number of key/value pairs found by the last tokenize() call.
+    public int size() {
+        return size;
+    }
+
+    //Number of fields that fit into the spans without growing them.
+    public int capacity() {
+        return spans.length / FIELD_WIDTH;
+    }
+
+    //Forgets the last input. The spans are kept for the next tokenize() call.
+    public void clear() {
+        this.input = null;
+        this.size = 0;
+        this.limits = CEFLimits.NONE;
+    }
+
+    public byte[] input() {
+        return input;
+    }
+
+    public int keyStart(int field) {
+        return spans[field * FIELD_WIDTH + KEY_START];
+    }
+
+    public int keyEnd(int field) {
+        return spans[field * FIELD_WIDTH + KEY_END];
+    }
+
+    public int valueStart(int field) {
+        return spans[field * FIELD_WIDTH + VALUE_START];
+    }
+
+    public int valueEnd(int field) {
+        return spans[field * FIELD_WIDTH + VALUE_END];
+    }
+
+    public boolean needsUnescape(int field) {
+        return (spans[field * FIELD_WIDTH + FLAGS] & VALUE_ESCAPED) != 0;
+    }
+
+    public boolean isAscii(int field) {
+        return (spans[field * FIELD_WIDTH + FLAGS] & VALUE_NON_ASCII) == 0;
+    }
+
+    public boolean truncated(int field) {
+        return (spans[field * FIELD_WIDTH + FLAGS] & VALUE_TRUNCATED) != 0;
+    }
+
+    //True if the last tokenize() call skipped fields because of a limit.
+    public boolean dropped() {
+        return dropped;
+    }
+
+    public boolean keyNeedsUnescape(int field) {
+        return (spans[field * FIELD_WIDTH + FLAGS] & KEY_ESCAPED) != 0;
+    }
+
+    public boolean keyIsAscii(int field) {
+        return (spans[field * FIELD_WIDTH + FLAGS] & KEY_NON_ASCII) == 0;
+    }
+
+    public String key(int field) {
+        int flags = spans[field * FIELD_WIDTH + FLAGS];
+        return string(keyStart(field), keyEnd(field), (flags & KEY_ESCAPED) != 0, (flags & KEY_NON_ASCII) == 0);
+    }
+
+    public String value(int field) {
+        int flags = spans[field * FIELD_WIDTH + FLAGS];
+        return string(valueStart(field), valueEnd(field), (flags & VALUE_ESCAPED) != 0, (flags & VALUE_NON_ASCII) == 0);
+    }
+
+    private String string(int from, int to, boolean escaped, boolean ascii) {
+        return escaped ? Utf8.unescape(input, from, to, ascii) : Utf8.decode(input, from, to, ascii);
+    }
+
+}
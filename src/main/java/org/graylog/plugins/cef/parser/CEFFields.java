@@ -0,0 +1,419 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/*
+ * Read only map of the extension fields of a message that converts values on demand.
+ *
+ * CEFFieldsParser only resolves the output keys and remembers where every value is in the payload.
+ * Everything lives in parallel arrays indexed by field, with a small open addressing table over the
+ * keys, so there are no entry objects. Keys are the shared dictionary and name cache Strings.
+ *
+ * Every value is converted once, on the first get(). Strings are unescaped, decoded and kept, numbers
+ * (ports, counts, pids, ...) are kept unboxed in a long[], the type of their key tells how to read the
+ * bits back, and are boxed on every read. Parsed timestamps are kept as they are. Fields that can not
+ * be converted are treated as missing, like in the map the parser used to build, and are counted by
+ * the CEFErrorReporter under the source of the message. Iterating or asking for the size converts all
+ * fields, so callers that walk the whole map see exactly what they saw before, but no copy of the map
+ * is built or kept.
+ *
+ * The payload is only referenced until every field is converted, after that the raw message can be
+ * collected while the map waits in the buffers.
+ *
+ * Conversion writes several arrays and drops the payload, so a map is read by one thread at a time.
+ * Handing it to another thread must publish it safely, like the Graylog buffers do.
+ */
+public class CEFFields extends AbstractMap<String, Object> {
+    //Marks a value that could not be converted.
+    private static final Object FAILED = new Object();
+
+    private static final int ESCAPED = 1;
+    private static final int NON_ASCII = 1 << 1;
+    //The value is in numbers.
+    private static final int NUMBER = 1 << 2;
+    //A vendor profile gave the field its name.
+    private static final int RENAMED = 1 << 3;
+
+    //The payload, null once every field is converted.
+    private byte[] input;
+    //Timezone and current year of timestamps without them, null if timestamps are kept as Strings.
+    private final CEFClock clock;
+    //Source of the message for the CEFErrorReporter, may be null.
+    private final Object source;
+    private final String[] keys;
+    private final CEFExtensionKey[] descriptors;
+    //valueStart, valueEnd and flags of every field.
+    private final int[] spans;
+    private final Object[] values;
+    //Bits of the converted numbers, see number(). Created with the first number.
+    private long[] numbers;
+    //Number of fields that still need input.
+    private int unconverted;
+    //Open addressing index over keys, holds field index + 1.
+    private final int[] table;
+    private int size;
+    //Keys of the values that were cut to CEFLimits.maxValueLength(), if any.
+    private StringBuilder truncated;
+    //Number of fields that could be converted, -1 until size() was asked for.
+    private int present = -1;
+
+    CEFFields(byte[] input, int capacity, @Nullable CEFClock clock, Object source) {
+        this.input = capacity == 0 ? null : input;
+        this.clock = clock;
+        this.source = source;
+        this.keys = new String[capacity];
+        this.descriptors = new CEFExtensionKey[capacity];
+        this.spans = new int[capacity * 3];
+        this.values = new Object[capacity];
+        this.table = new int[capacity == 0 ? 1 : Integer.highestOneBit(capacity * 2 - 1) << 1];
+    }
+
+    /*
+     * Adds the value in input[from, to) under key. descriptor gives the type and may be null for
+     * Strings. Returns false if the map already has key.
+     */
+    boolean add(String key, CEFExtensionKey descriptor, int from, int to, boolean escaped, boolean ascii) {
+        return add(key, descriptor, from, to, escaped, ascii, false);
+    }
+
+    /*
+     * Like add(), for renamed fields a vendor profile named. These win over a field of the message with
+     * the same name, whichever comes first, and the collision is reported to the CEFErrorReporter.
+     * Returns false only if two renamed fields have the same name.
+     */
+    boolean add(String key, CEFExtensionKey descriptor, int from, int to, boolean escaped, boolean ascii, boolean renamed) {
+        int mask = table.length - 1;
+        int slot = spread(key.hashCode()) & mask;
+        for (int entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask) {
+            int field = entry - 1;
+            if (keys[field].equals(key)) {
+                if (renamed == ((spans[field * 3 + 2] & RENAMED) != 0)) {
+                    return false;
+                }
+                CEFErrorReporter.shared().fieldFailed(CEFErrorReporter.FieldError.RENAME_COLLISION, key, source);
+                if (renamed) {
+                    set(field, descriptor, from, to, escaped, ascii, true);
+                }
+                return true;
+            }
+        }
+
+        set(size, descriptor, from, to, escaped, ascii, renamed);
+        keys[size] = key;
+        table[slot] = ++size;
+        unconverted++;
+        return true;
+    }
+
+    private void set(int field, CEFExtensionKey descriptor, int from, int to, boolean escaped, boolean ascii, boolean renamed) {
+        descriptors[field] = descriptor;
+        spans[field * 3] = from;
+        spans[field * 3 + 1] = to;
+        spans[field * 3 + 2] = (escaped ? ESCAPED : 0) | (ascii ? 0 : NON_ASCII) | (renamed ? RENAMED : 0);
+    }
+
+    //Reports key as truncated and lists it in the CEFLimits.TRUNCATED_FIELDS marker.
+    void truncated(String key) {
+        CEFErrorReporter.shared().fieldFailed(CEFErrorReporter.FieldError.TRUNCATED, key, source);
+        if (truncated == null) {
+            truncated = new StringBuilder(key);
+        } else {
+            truncated.append(',').append(key);
+        }
+    }
+
+    //Adds the CEFLimits markers for the truncated values and, if fieldsDropped, for skipped fields.
+    void addMarkers(boolean fieldsDropped) {
+        if (truncated != null) {
+            addValue(CEFLimits.TRUNCATED_FIELDS, truncated.toString());
+        }
+        if (fieldsDropped) {
+            addValue(CEFLimits.FIELDS_DROPPED, Boolean.TRUE);
+        }
+    }
+
+    private void addValue(String key, Object value) {
+        int field = size;
+        if (add(key, null, 0, 0, false, true)) {
+            values[field] = value;
+            converted();
+        }
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        int mask = table.length - 1;
+        for (int slot = spread(key.hashCode()) & mask, entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask) {
+            if (keys[entry - 1].equals(key)) {
+                return entry - 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public Object get(Object key) {
+        int field = indexOf(key);
+        return field == -1 ? null : value(field);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int field = indexOf(key);
+        if (field == -1) {
+            return false;
+        }
+        //Strings always convert, no need to decode them.
+        return type(field) == CEFExtensionKey.Type.STRING || value(field) != null;
+    }
+
+    @Override
+    public int size() {
+        int result = present;
+        if (result == -1) {
+            result = 0;
+            for (int i = 0; i < size; i++) {
+                if (value(i) != null) {
+                    result++;
+                }
+            }
+            present = result;
+        }
+        return result;
+    }
+
+    //A view in the order the fields were added. Entries are created while iterating.
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new FieldIterator();
+            }
+
+            @Override
+            public int size() {
+                return CEFFields.this.size();
+            }
+        };
+    }
+
+    //Walks the fields that could be converted in the order they were added, without building the map.
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        for (int i = 0; i < size; i++) {
+            Object value = value(i);
+            if (value != null) {
+                action.accept(keys[i], value);
+            }
+        }
+    }
+
+    //A copy of all fields that could be converted, in the order they were added.
+    public ImmutableMap<String, Object> materialize() {
+        ImmutableMap.Builder<String, Object> builder = ImmutableMap.builder();
+        forEach(builder::put);
+        return builder.build();
+    }
+
+    private CEFExtensionKey.Type type(int field) {
+        CEFExtensionKey descriptor = descriptors[field];
+        if (descriptor == null || (clock == null && descriptor.type() == CEFExtensionKey.Type.TIMESTAMP)) {
+            return CEFExtensionKey.Type.STRING;
+        }
+        return descriptor.type();
+    }
+
+    private Object value(int field) {
+        Object value = values[field];
+        if (value != null) {
+            return value == FAILED ? null : value;
+        }
+        if ((spans[field * 3 + 2] & NUMBER) != 0) {
+            return number(field);
+        }
+
+        value = parseNumber(field);
+        if (value == null) {
+            try {
+                value = convert(field);
+            } catch (Exception e) {
+                value = null;
+            }
+        }
+        if (value == null) {
+            CEFErrorReporter.shared().fieldFailed(CEFErrorReporter.FieldError.CONVERSION_FAILED, keys[field], source);
+            values[field] = FAILED;
+        } else if (value instanceof Number) {
+            store(field, (Number) value);
+        } else {
+            values[field] = value;
+        }
+        converted();
+        return value;
+    }
+
+    //Keeps a converted number as bits in numbers.
+    private void store(int field, Number value) {
+        if (numbers == null) {
+            numbers = new long[keys.length];
+        }
+        switch (type(field)) {
+            case FLOAT:
+                numbers[field] = Float.floatToRawIntBits(value.floatValue());
+                break;
+            case DOUBLE:
+                numbers[field] = Double.doubleToRawLongBits(value.doubleValue());
+                break;
+            default:
+                numbers[field] = value.longValue();
+        }
+        spans[field * 3 + 2] |= NUMBER;
+    }
+
+    //A number kept by store(), boxed again.
+    private Object number(int field) {
+        long bits = numbers[field];
+        switch (type(field)) {
+            case INTEGER:
+                return (int) bits;
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return bits;
+        }
+    }
+
+    //One more field no longer needs the payload. The last one lets go of it.
+    private void converted() {
+        if (--unconverted == 0) {
+            input = null;
+        }
+    }
+
+    //True as long as some field still needs the payload.
+    boolean retainsInput() {
+        return input != null;
+    }
+
+    /*
+     * Plain numbers parsed straight from the payload, or null if the fast path does not handle the
+     * value (escapes, whitespace, exponents, too many digits, ...) or it is not a number.
+     */
+    private Object parseNumber(int field) {
+        int from = spans[field * 3];
+        int to = spans[field * 3 + 1];
+        if ((spans[field * 3 + 2] & ESCAPED) != 0) {
+            return null;
+        }
+
+        switch (type(field)) {
+            case INTEGER:
+                return Numbers.parseInt(input, from, to);
+            case LONG:
+                return Numbers.parseLong(input, from, to);
+            case FLOAT:
+                return Numbers.parseFloat(input, from, to);
+            case DOUBLE:
+                return Numbers.parseDouble(input, from, to);
+            default:
+                return null;
+        }
+    }
+
+    //Everything number() does not handle goes through valueOf() like before.
+    private Object convert(int field) {
+        switch (type(field)) {
+            case INTEGER:
+                return Integer.valueOf(string(field));
+            case LONG:
+                return Long.valueOf(string(field));
+            case FLOAT:
+                return Float.valueOf(string(field));
+            case DOUBLE:
+                return Double.valueOf(string(field));
+            case TIMESTAMP:
+                return timestamp(field);
+            default:
+                return string(field);
+        }
+    }
+
+    /*
+     * The timestamp is kept like a slow path number, null if it is in none of the formats. Numbers too
+     * short to be epoch seconds or milliseconds stay Strings, see CEFTimestamps.
+     */
+    private Object timestamp(int field) {
+        byte[] in = input;
+        int from = spans[field * 3];
+        int to = spans[field * 3 + 1];
+        if ((spans[field * 3 + 2] & ESCAPED) != 0) {
+            in = string(field).getBytes(StandardCharsets.UTF_8);
+            from = 0;
+            to = in.length;
+        }
+        DateTime timestamp = CEFTimestamps.parse(in, from, to, clock);
+        if (timestamp == null && CEFTimestamps.isNumber(in, from, to)) {
+            return string(field);
+        }
+        return timestamp;
+    }
+
+    private final class FieldIterator implements Iterator<Entry<String, Object>> {
+        private int next = -1;
+        private Object nextValue;
+
+        private FieldIterator() {
+            advance();
+        }
+
+        private void advance() {
+            nextValue = null;
+            while (nextValue == null && ++next < size) {
+                nextValue = value(next);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, Object> entry = new SimpleImmutableEntry<>(keys[next], nextValue);
+            advance();
+            return entry;
+        }
+    }
+
+    private String string(int field) {
+        int from = spans[field * 3];
+        int to = spans[field * 3 + 1];
+        int flags = spans[field * 3 + 2];
+        boolean ascii = (flags & NON_ASCII) == 0;
+        return (flags & ESCAPED) != 0 ? Utf8.unescape(input, from, to, ascii) : Utf8.decode(input, from, to, ascii);
+    }
+
+}
@@ -1,201 +1,296 @@
 package org.graylog.plugins.cef.parser;
 
 import autovalue.shaded.com.google.common.common.collect.ImmutableMap;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.google.common.base.Charsets;
 
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class CEFFieldsParser {
-    private static final Logger LOG = LoggerFactory.getLogger(CEFFieldsParser.class);
+
+    //Names of fields that are not in the dictionary, shared by all parsers. See name() and labelName().
+    private static final CEFInternCache NAME_CACHE = new CEFInternCache(4096);
 
     //Splits fields string into a vector of:
     //key, value, key, value, key, value
     //To be assembled into a dict later.
+    //Returns a list with the single entry "ERROR" if the input contains an invalid escape sequence.
+    //Kept for existing callers, the parser itself uses CEFExtensionTokenizer and never builds this list.
     public static ArrayList<String> fieldSplit(String in){
-        boolean escaped = false;
+        byte[] bytes = in.getBytes(Charsets.UTF_8);
+        CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+
         ArrayList<String> tokens = new ArrayList<String>();
-        StringBuilder curr = new StringBuilder();
-        
-        String currentKey = "";
-        
-        for (int i = 0; i < in.length(); i++){
-            char c = in.charAt(i);
-            
-            if (escaped){
-                escaped = false;
-                switch (c){
-                case '\\':
-                    curr.append('\\');
-                    break;
-                case '=':
-                    curr.append('=');
-                    break;
-                default:
-                    //Found a character which should not be escaped.
-                    tokens = new ArrayList<String>();
-                    tokens.add("ERROR");
-                    return tokens;
-                }
-                
+        if (tokenizer.tokenize(bytes, 0, bytes.length) != CEFExtensionTokenizer.Status.OK){
+            tokens.add("ERROR");
+            return tokens;
+        }
+
+        for (int i = 0; i < tokenizer.size(); i++){
+            tokens.add(tokenizer.key(i));
+            tokens.add(tokenizer.value(i));
+        }
+        return tokens;
+    }
+
+    public ImmutableMap<String, Object> parse(String x) {
+        byte[] bytes = x.getBytes(Charsets.UTF_8);
+        return parse(bytes, 0, bytes.length);
+    }
+
+    //Parses the UTF-8 encoded extension section in in[from, to) and converts all fields right away.
+    public ImmutableMap<String, Object> parse(byte[] in, int from, int to) {
+        CEFFields fields = parseLazy(in, from, to);
+        return fields == null ? null : ImmutableMap.copyOf(fields.materialize());
+    }
+
+    /*
+     * Parses the UTF-8 encoded extension section in in[from, to) into a map that only converts values
+     * when they are read. in must not be changed as long as the map is used.
+     * Returns null if a key shows up more than once. The caller reports that for the whole message,
+     * see CEFParseResult.Failure.DUPLICATE_KEYS.
+     */
+    public CEFFields parseLazy(byte[] in, int from, int to) {
+        return parseLazy(in, from, to, null);
+    }
+
+    //Like parseLazy(in, from, to), field errors are reported for source. source may be null.
+    public CEFFields parseLazy(byte[] in, int from, int to, Object source) {
+        CEFScratch scratch = CEFScratch.acquire();
+        try {
+            scratch.tokenizer.tokenize(in, from, to);
+            return fields(scratch, CEFProjection.ALL, false, null, null, null, source);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /*
+     * parseLazy() for an extension that was already tokenized with scratch.tokenizer. Only fields kept by
+     * projection are added. With fullNames, dictionary keys are stored under their full name, see
+     * CEFExtensionKey.fullName(). If there is a template, keys are checked against its order first and
+     * the template learns the order of this message if it differs. If there is a profile, its rules are
+     * applied as the fields are added. With a clock, timestamp fields are converted to DateTimes, see
+     * CEFTimestamps.
+     */
+    CEFFields fields(CEFScratch scratch, CEFProjection projection, boolean fullNames, @Nullable CEFTemplateCache.Template template,
+                     @Nullable CEFVendorProfile profile, @Nullable CEFClock timestamps, Object source) {
+        CEFExtensionTokenizer tokenizer = scratch.tokenizer;
+        byte[] in = tokenizer.input();
+        if (tokenizer.status() != CEFExtensionTokenizer.Status.OK) {
+            CEFErrorReporter.shared().fieldFailed(CEFErrorReporter.FieldError.INVALID_ESCAPE, null, source);
+            return new CEFFields(in, 0, null, source);
+        }
+
+        // Field position of every dictionary key, to find the labels of custom fields and duplicate keys.
+        int[] positions = scratch.positions();
+
+        CEFTemplateCache.Order order = template == null ? null : template.order();
+        boolean follows = order != null && order.size() == tokenizer.size();
+        CEFExtensionKey[] keys = scratch.keys(tokenizer.size());
+        String[] names = scratch.names(tokenizer.size());
+
+        // Room for the CEFLimits markers.
+        CEFFields fields = new CEFFields(in, tokenizer.size() + 2, timestamps, source);
+        for (int i = 0; i < tokenizer.size(); i++) {
+            CEFExtensionKey key;
+            String name = null;
+            if (follows && follows(order, tokenizer, i)) {
+                key = order.keys[i];
+                name = order.names[i];
             } else {
-                switch (c){
-                case '\\':
-                    escaped = true;
-                    break;
-                case '=':
-                    //This means that the preceding characters were the name of a key, and the next characters will be the value.
-                    String preceding = curr.toString();
-                    int spaceIndex = preceding.lastIndexOf(' ');
-
-                    //If this is the first key, there will be no previous spaces.
-                    if (spaceIndex == -1){
-                        //This was the first keyname. There are no spaces, so the whole thing is a key.
-                        currentKey = preceding;
-                    } else {
-                        //preceding contains a value, a space, then a key. Split the value and key.
-                        String currentValue = preceding.substring(0, spaceIndex);
-                        
-                        tokens.add(currentKey);
-                        tokens.add(currentValue);
-                        
-                        currentKey = preceding.substring(spaceIndex+1, preceding.length());
+                follows = false;
+                key = key(tokenizer, i);
+            }
+            keys[i] = key;
+            //Dictionary keys have no name, the slot may still hold one of an earlier message.
+            names[i] = null;
+
+            if (key == null) {
+                CEFVendorProfile.Field rule = profile == null || tokenizer.keyNeedsUnescape(i) ? null
+                        : profile.field(in, tokenizer.keyStart(i), tokenizer.keyEnd(i));
+                if (rule != null) {
+                    if (!add(fields, rule, projection, fullNames, tokenizer, i)) {
+                        return null;
+                    }
+                } else if (!isLabel(tokenizer, i) && keepsKey(projection, tokenizer, i)) {
+                    // Add all other strings but never unknown field labels.
+                    if (name == null) {
+                        name = name(tokenizer, i);
+                    }
+                    if (!add(fields, name, null, tokenizer, i)) {
+                        return null;
                     }
-                    
-                    curr = new StringBuilder();
-                    break;
-                default:
-                    curr.append(c);
                 }
+                names[i] = name;
+                continue;
+            }
+
+            if (positions[key.index()] != -1) {
+                return null;
+            }
+            positions[key.index()] = i;
+
+            // Labels are resolved together with their custom field below.
+            if (key.isLabel() || key.isCustom()) {
+                continue;
+            }
+            CEFVendorProfile.Field rule = profile == null ? null : profile.field(key);
+            if (rule != null) {
+                if (!add(fields, rule, projection, fullNames, tokenizer, i)) {
+                    return null;
+                }
+            } else if (projection.keeps(key) && !add(fields, key.fieldName(fullNames), key, tokenizer, i)) {
+                return null;
             }
         }
-        
-        tokens.add(currentKey);
-        tokens.add(curr.toString());
-        
-        return tokens;
-    }
 
-    public ImmutableMap<String, Object> parse(String x) {
-        ArrayList<String> keysAndValues = fieldSplit(x);
+        // Custom fields are stored under the value of their label.
+        for (CEFExtensionKey key : CEFExtensionKey.customFields()) {
+            int field = positions[key.index()];
+            if (field == -1) {
+                continue;
+            }
+            // A profile that names the field makes its label unnecessary.
+            CEFVendorProfile.Field rule = profile == null ? null : profile.field(key);
+            if (rule != null && (rule.drop() || rule.renamed())) {
+                if (!add(fields, rule, projection, fullNames, tokenizer, field)) {
+                    return null;
+                }
+                continue;
+            }
+            CEFExtensionKey descriptor = rule == null ? key : rule.descriptor();
+            int label = positions[key.label().index()];
+            if (label == -1) {
+                CEFErrorReporter.shared().fieldFailed(CEFErrorReporter.FieldError.MISSING_LABEL, key.name(), source);
+            } else if (keepsLabel(projection, tokenizer, label) && !add(fields, labelName(tokenizer, label), descriptor, tokenizer, field)) {
+                return null;
+            }
+        }
 
-        // Parse out all fields into a map.
-        ImmutableMap.Builder<String, String> fieldsBuilder = new ImmutableMap.Builder<>();
-        for(int i = 0; i < keysAndValues.size() -1; i = i + 2){
-            fieldsBuilder.put(keysAndValues.get(i), keysAndValues.get(i+1));
+        if (template != null) {
+            if (follows) {
+                template.hit();
+            } else if (template.miss()) {
+                template.learn(order(tokenizer, keys, names));
+            }
         }
 
-        ImmutableMap<String, String> fields;
-        try {
-            fields = fieldsBuilder.build();
-        } catch(IllegalArgumentException e) {
-            LOG.warn("Skipping malformed CEF message [" + x + "]. Multiple keys with same name?");
+        if (tokenizer.dropped()) {
+            CEFErrorReporter.shared().fieldFailed(CEFErrorReporter.FieldError.DROPPED, null, source);
+        }
+        fields.addMarkers(tokenizer.dropped());
+        return fields;
+    }
+
+    //No dictionary key contains a \ or =, so escaped keys are never looked up.
+    private static CEFExtensionKey key(CEFExtensionTokenizer tokenizer, int field) {
+        if (tokenizer.keyNeedsUnescape(field)) {
             return null;
         }
+        return CEFExtensionKey.lookup(tokenizer.input(), tokenizer.keyStart(field), tokenizer.keyEnd(field));
+    }
 
-        // Build a final set of fields.
-        ImmutableMap.Builder<String, Object> resultBuilder = new ImmutableMap.Builder<>();
-        for (Map.Entry<String, String> field : fields.entrySet()) {
-            try {
-                // Specifically handle everything that needs mapping or is not of type String.
-                switch (field.getKey()) {
-                    // Custom IPv6 fields. (we keep it as String)
-                    case "c6a1":
-                    case "c6a2":
-                    case "c6a3":
-                    case "c6a4":
-                        resultBuilder.put(fields.get(getLabelFromValue(field.getKey())), field.getValue());
-                        break;
-
-                    // Custom floating points.
-                    case "cfp1":
-                    case "cfp2":
-                    case "cfp3":
-                    case "cfp4":
-                        resultBuilder.put(fields.get(getLabelFromValue(field.getKey())), Float.valueOf(field.getValue()));
-                        break;
-
-                    // Custom longs. (only going to 3 for some reason /shrug)
-                    case "cn1":
-                    case "cn2":
-                    case "cn3":
-                    case "flexNumber1":
-                    case "flexNumber2":
-                        resultBuilder.put(fields.get(getLabelFromValue(field.getKey())), Long.valueOf(field.getValue()));
-                        break;
-
-                    // Custom strings.
-                    case "cs1":
-                    case "cs2":
-                    case "cs3":
-                    case "cs4":
-                    case "cs5":
-                    case "cs6":
-                    case "flexString1":
-                    case "flexString2":
-                        resultBuilder.put(fields.get(getLabelFromValue(field.getKey())), field.getValue());
-                        break;
-
-                    // Custom timestamps. (we keep it as String) - This is where CEF suddenly breaks the naming scheme.
-                    case "deviceCustomDate1":
-                    case "deviceCustomDate2":
-                    case "flexDate1":
-                        resultBuilder.put(fields.get(getLabelFromValue(field.getKey())), field.getValue());
-                        break;
-
-                    // Direct integer conversions.
-                    case "cnt":
-                    case "destinationTranslatedPort":
-                    case "deviceDirection":
-                    case "dpid":
-                    case "dpt":
-                    case "dvcpid":
-                    case "fsize":
-                    case "in":
-                    case "oldFileSize":
-                    case "sourceTranslatedPort":
-                    case "spid":
-                    case "spt":
-                    case "type":
-                    case "uid":
-                    case "euid":
-                        resultBuilder.put(field.getKey(), Integer.valueOf(field.getValue()));
-                        break;
-
-                    // Direct double conversions.
-                    case "dlat":
-                    case "dlong":
-                    case "slat":
-                    case "slong":
-                        resultBuilder.put(field.getKey(), Double.valueOf(field.getValue()));
-                        break;
-
-                    // Direct long conversions.
-                    case "eventId":
-                        resultBuilder.put(field.getKey(), Long.valueOf(field.getValue()));
-                        break;
-
-                    // All standard strings.
-                    default:
-                        // Add all standard strings but never the custom fields/extension field labels.
-                        if(!field.getKey().endsWith("Label")) {
-                            resultBuilder.put(field.getKey(), field.getValue());
-                        }
-                        break;
-                }
-            } catch (Exception e) {
-                LOG.warn("Could not transform CEF field [{}] according to standard. Skipping.", field.getKey(), e);
+    //True if the key of field is the one at the same position in order. Escaped keys never are.
+    private static boolean follows(CEFTemplateCache.Order order, CEFExtensionTokenizer tokenizer, int field) {
+        if (tokenizer.keyNeedsUnescape(field)) {
+            return false;
+        }
+        byte[] in = tokenizer.input();
+        int from = tokenizer.keyStart(field);
+        int to = tokenizer.keyEnd(field);
+        CEFExtensionKey expected = order.keys[field];
+        if (expected != null) {
+            return expected.matches(in, from, to);
+        }
+        byte[] name = order.nameBytes[field];
+        if (name == null || name.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != in[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //The order of the keys the tokenizer found, with their dictionary keys and names.
+    private static CEFTemplateCache.Order order(CEFExtensionTokenizer tokenizer, CEFExtensionKey[] keys, String[] names) {
+        int size = tokenizer.size();
+        byte[][] nameBytes = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == null && !tokenizer.keyNeedsUnescape(i)) {
+                nameBytes[i] = Arrays.copyOfRange(tokenizer.input(), tokenizer.keyStart(i), tokenizer.keyEnd(i));
             }
         }
+        return new CEFTemplateCache.Order(Arrays.copyOf(keys, size), Arrays.copyOf(names, size), nameBytes);
+    }
 
-        return resultBuilder.build();
+    //Vendor specific keys and custom field labels repeat in every message of a device and share one String.
+    private static String name(CEFExtensionTokenizer tokenizer, int field) {
+        if (tokenizer.keyNeedsUnescape(field)) {
+            return tokenizer.key(field);
+        }
+        return NAME_CACHE.intern(tokenizer.input(), tokenizer.keyStart(field), tokenizer.keyEnd(field), tokenizer.keyIsAscii(field));
     }
 
-    private String getLabelFromValue(String valueName) {
-        return valueName + "Label";
+    private static String labelName(CEFExtensionTokenizer tokenizer, int label) {
+        if (tokenizer.needsUnescape(label)) {
+            return tokenizer.value(label);
+        }
+        return NAME_CACHE.intern(tokenizer.input(), tokenizer.valueStart(label), tokenizer.valueEnd(label), tokenizer.isAscii(label));
+    }
+
+    public static CEFInternCache nameCache() {
+        return NAME_CACHE;
+    }
+
+    private static boolean keepsKey(CEFProjection projection, CEFExtensionTokenizer tokenizer, int field) {
+        if (projection.keepsAll()) {
+            return true;
+        }
+        return tokenizer.keyNeedsUnescape(field) ? projection.keeps(tokenizer.key(field))
+                : projection.keeps(tokenizer.input(), tokenizer.keyStart(field), tokenizer.keyEnd(field));
+    }
+
+    //Custom fields are named after the value of their label.
+    private static boolean keepsLabel(CEFProjection projection, CEFExtensionTokenizer tokenizer, int label) {
+        if (projection.keepsAll()) {
+            return true;
+        }
+        return tokenizer.needsUnescape(label) ? projection.keeps(tokenizer.value(label))
+                : projection.keeps(tokenizer.input(), tokenizer.valueStart(label), tokenizer.valueEnd(label));
+    }
+
+    private static boolean isLabel(CEFExtensionTokenizer tokenizer, int field) {
+        return CEFExtensionKey.isLabel(tokenizer.input(), tokenizer.keyStart(field), tokenizer.keyEnd(field));
+    }
+
+    //Adds field the way the profile rule says, dropped fields count as added.
+    private static boolean add(CEFFields fields, CEFVendorProfile.Field rule, CEFProjection projection, boolean fullNames,
+                               CEFExtensionTokenizer tokenizer, int field) {
+        if (rule.drop() || !rule.keptBy(projection)) {
+            return true;
+        }
+        return add(fields, rule.name(fullNames), rule.descriptor(), tokenizer, field, rule.renamed());
+    }
+
+    private static boolean add(CEFFields fields, String name, CEFExtensionKey key, CEFExtensionTokenizer tokenizer, int field) {
+        return add(fields, name, key, tokenizer, field, false);
+    }
+
+    private static boolean add(CEFFields fields, String name, CEFExtensionKey key, CEFExtensionTokenizer tokenizer, int field,
+                               boolean renamed) {
+        if (!fields.add(name, key, tokenizer.valueStart(field), tokenizer.valueEnd(field), tokenizer.needsUnescape(field),
+                tokenizer.isAscii(field), renamed)) {
+            return false;
+        }
+        if (tokenizer.truncated(field)) {
+            fields.truncated(name);
+        }
+        return true;
     }
 
 }
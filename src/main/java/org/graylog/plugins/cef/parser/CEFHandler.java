@@ -0,0 +1,33 @@
+package org.graylog.plugins.cef.parser;
+
+import org.joda.time.DateTime;
+
+/*
+ * Receives a parsed message from CEFParser.tryParse(..., CEFHandler) piece by piece, without a CEFMessage
+ * or maps in between.
+ *
+ * Only accepted messages are pushed: header() once, field() for every extension field that could be
+ * converted, in payload order, then end(). A rejected message causes no calls at all. In record mode
+ * the same handler gets one such sequence per accepted record.
+ *
+ * Field names and header Strings are shared between messages, values are converted right before they
+ * are pushed. The handler may keep all of them.
+ */
+public interface CEFHandler {
+
+    void header(DateTime timestamp, int version, String deviceVendor, String deviceProduct, String deviceVersion,
+                String deviceEventClassId, String name, int severity);
+
+    void field(String name, Object value);
+
+    /*
+     * All fields of the extension at once, in place of the field() calls. Handlers that do not need every
+     * value converted right away can keep the map, see CEFFields.
+     */
+    default void fields(CEFFields fields) {
+        fields.forEach(this::field);
+    }
+
+    void end();
+
+}
@@ -0,0 +1,129 @@
+package org.graylog.plugins.cef.parser;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Bounded cache that maps byte ranges of a payload to shared String instances.
+ *
+ * Header values like the device vendor or the event class id only take a few thousand distinct values,
+ * so building a new String for every message wastes allocations and keeps many equal copies alive in
+ * the process buffer. Lookups hash the bytes in place and only allocate on a miss.
+ *
+ * The table is 2-way set associative. Every set keeps its most recently used entry first, a miss
+ * replaces the least recently used one. Entries are immutable and slots are plain reference writes,
+ * so concurrent threads may at worst miss or evict an entry another thread just added.
+ */
+public class CEFInternCache {
+
+    //Longer values are rarely repeated and are not worth keeping.
+    public static final int MAX_LENGTH = 256;
+
+    private static final int WAYS = 2;
+
+    private final Entry[] entries;
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    //capacity is rounded up to a power of two.
+    public CEFInternCache(int capacity) {
+        int size = capacity <= WAYS ? WAYS : Integer.highestOneBit(capacity - 1) << 1;
+        int sets = size / WAYS;
+        this.entries = new Entry[sets * WAYS];
+        this.mask = sets - 1;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    /*
+     * Returns the String for the UTF-8 bytes in[from, to). ascii is the same hint Utf8.decode() takes.
+     * The range must not contain escape sequences.
+     */
+    public String intern(byte[] in, int from, int to, boolean ascii) {
+        int length = to - from;
+        if (length == 0) {
+            return "";
+        } else if (length > MAX_LENGTH) {
+            return Utf8.decode(in, from, to, ascii);
+        }
+
+        int hash = hash(in, from, to);
+        int set = (hash & mask) * WAYS;
+
+        Entry first = entries[set];
+        if (first != null && first.matches(hash, in, from, length)) {
+            hits.increment();
+            return first.value;
+        }
+        Entry second = entries[set + 1];
+        if (second != null && second.matches(hash, in, from, length)) {
+            //Move to the front of the set.
+            entries[set] = second;
+            entries[set + 1] = first;
+            hits.increment();
+            return second.value;
+        }
+
+        misses.increment();
+        if (second != null) {
+            evictions.increment();
+        }
+
+        byte[] bytes = new byte[length];
+        System.arraycopy(in, from, bytes, 0, length);
+        Entry entry = new Entry(hash, bytes, Utf8.decode(in, from, to, ascii));
+        entries[set + 1] = first;
+        entries[set] = entry;
+        return entry.value;
+    }
+
+    private static int hash(byte[] in, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + in[i];
+        }
+        //Spread the high bits like HashMap does, the set index only looks at the low ones.
+        return hash ^ (hash >>> 16);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    private static final class Entry {
+        private final int hash;
+        private final byte[] bytes;
+        private final String value;
+
+        private Entry(int hash, byte[] bytes, String value) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.value = value;
+        }
+
+        private boolean matches(int hash, byte[] in, int from, int length) {
+            if (this.hash != hash || bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != in[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
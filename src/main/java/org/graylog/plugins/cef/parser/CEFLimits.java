@@ -0,0 +1,45 @@
+package org.graylog.plugins.cef.parser;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Upper bounds for the extension of a single message, enforced while the extension is tokenized.
+ *
+ * A value longer than maxValueLength bytes is cut at the last complete character before the limit and
+ * its key is listed in the TRUNCATED_FIELDS marker. Fields after the first maxFields, and all fields
+ * found after the time budget ran out, are skipped and the FIELDS_DROPPED marker is set. A limit of 0
+ * means no limit.
+ */
+public final class CEFLimits {
+    public static final CEFLimits NONE = new CEFLimits(0, 0, 0);
+
+    //Comma separated names of the fields whose values were truncated.
+    public static final String TRUNCATED_FIELDS = "cef_truncated_fields";
+    //Set to true if extension fields were skipped.
+    public static final String FIELDS_DROPPED = "cef_fields_dropped";
+    //Set by CEFCodec to the size of a payload of which only the first max_payload_size bytes were parsed.
+    public static final String PAYLOAD_TRUNCATED = "cef_payload_truncated";
+
+    private final int maxFields;
+    private final int maxValueLength;
+    private final long timeBudgetNanos;
+
+    public CEFLimits(int maxFields, int maxValueLength, long timeBudgetMillis) {
+        this.maxFields = Math.max(0, maxFields);
+        this.maxValueLength = Math.max(0, maxValueLength);
+        this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeBudgetMillis));
+    }
+
+    public int maxFields() {
+        return maxFields;
+    }
+
+    public int maxValueLength() {
+        return maxValueLength;
+    }
+
+    public long timeBudgetNanos() {
+        return timeBudgetNanos;
+    }
+
+}
@@ -29,7 +29,11 @@ public abstract class CEFMessage {
     }
 
     public String humanReadableSeverity() {
-        switch(severity()) {
+        return humanReadableSeverity(severity());
+    }
+
+    public static String humanReadableSeverity(int severity) {
+        switch(severity) {
             case 0:
             case 1:
             case 2:
@@ -0,0 +1,93 @@
+package org.graylog.plugins.cef.parser;
+
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/*
+ * Builds a CEFMessage from the CEFHandler calls, for the CEFParser methods that return CEFMessages. The
+ * fields are kept as the CEFFields the parser produced, so values are still converted when they are
+ * read. Fields pushed one by one with field() are collected into a map of their own, which end() puts
+ * on the message. Every message is passed to consumer, if there is one, and the last one is kept for
+ * take().
+ */
+final class CEFMessageHandler implements CEFHandler {
+    private final Consumer<CEFMessage> consumer;
+    private CEFMessage.Builder builder;
+    //Fields from field() calls, null until the first one. A new map for every message, it is kept by it.
+    private Map<String, Object> collected;
+    private boolean hasFields;
+    private CEFMessage message;
+
+    CEFMessageHandler(@Nullable Consumer<CEFMessage> consumer) {
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void header(DateTime timestamp, int version, String deviceVendor, String deviceProduct, String deviceVersion,
+                       String deviceEventClassId, String name, int severity) {
+        builder = CEFMessage.builder()
+                .timestamp(timestamp)
+                .version(version)
+                .deviceVendor(deviceVendor)
+                .deviceProduct(deviceProduct)
+                .deviceVersion(deviceVersion)
+                .deviceEventClassId(deviceEventClassId)
+                .name(name)
+                .severity(severity);
+        collected = null;
+        hasFields = false;
+    }
+
+    @Override
+    public void fields(CEFFields fields) {
+        setFields(fields);
+    }
+
+    @Override
+    public void field(String name, Object value) {
+        if (collected == null) {
+            collected = new LinkedHashMap<>();
+        }
+        collected.put(name, value);
+    }
+
+    private void setFields(Map<String, Object> fields) {
+        hasFields = true;
+        builder.fields(fields);
+        //For now, keeping the duplicated message field. Will refactor later.
+        if (fields.containsKey("msg")){
+            builder.message(String.valueOf(fields.get("msg")));
+        } else {
+            //For compatibility, set message to null.
+            builder.message(null);
+        }
+    }
+
+    @Override
+    public void end() {
+        if (collected != null) {
+            setFields(collected);
+            collected = null;
+        } else if (!hasFields) {
+            setFields(Collections.emptyMap());
+        }
+        message = builder.build();
+        builder = null;
+        if (consumer != null) {
+            consumer.accept(message);
+        }
+    }
+
+    //The last message, which is forgotten.
+    CEFMessage take() {
+        CEFMessage result = message;
+        message = null;
+        return result;
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.graylog.plugins.cef.parser;
+
+/*
+ * Outcome of CEFParser.tryParse(): either a message or the reason it was rejected.
+ *
+ * Rejecting a message must not cost more than parsing one, so there are no exceptions on this path and
+ * every failure is a shared, preallocated result.
+ */
+public final class CEFParseResult {
+
+    public enum Failure {
+        NOT_CEF("This message was not recognized as CEF and could not be parsed."),
+        INVALID_HEADER_ESCAPE("This message was not recognized as CEF and could not be parsed. Invalid escape sequence in CEF header."),
+        MISSING_HEADER_FIELDS("This message was not recognized as CEF and could not be parsed. 8 pipe-seperated sections should be present"),
+        INVALID_DATE("This message was not recognized as CEF and could not be parsed. Invalid date in syslog header."),
+        INVALID_SEVERITY("Invalid CEF severity. Must be a number between -1 and 10 or one of Low, Medium, High, Very-High and Unknown."),
+        NO_EXTENSION("No CEF payload found. Skipping this message."),
+        DUPLICATE_KEYS("Malformed CEF extension. Multiple keys with same name.");
+
+        private final String message;
+
+        Failure(String message) {
+            this.message = message;
+        }
+
+        public String message() {
+            return message;
+        }
+    }
+
+    private static final CEFParseResult[] FAILURES = new CEFParseResult[Failure.values().length];
+
+    static {
+        for (Failure failure : Failure.values()) {
+            FAILURES[failure.ordinal()] = new CEFParseResult(null, failure);
+        }
+    }
+
+    private final CEFMessage message;
+    private final Failure failure;
+
+    private CEFParseResult(CEFMessage message, Failure failure) {
+        this.message = message;
+        this.failure = failure;
+    }
+
+    public static CEFParseResult success(CEFMessage message) {
+        return new CEFParseResult(message, null);
+    }
+
+    public static CEFParseResult failure(Failure failure) {
+        return FAILURES[failure.ordinal()];
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    //The parsed message, or null if parsing failed.
+    public CEFMessage message() {
+        return message;
+    }
+
+    //Why parsing failed, or null if it succeeded.
+    public Failure failure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? "CEFParseResult{" + message + "}" : "CEFParseResult{" + failure + "}";
+    }
+
+}
@@ -1,24 +1,95 @@
 package org.graylog.plugins.cef.parser;
 
-import autovalue.shaded.com.google.common.common.collect.ImmutableMap;
+import com.google.common.base.Charsets;
+import org.joda.time.Chronology;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.chrono.ISOChronology;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 public class CEFParser {
-    private static final DateTimeFormatter TIMESTAMP_PATTERN = DateTimeFormat.forPattern("MMM dd HH:mm:ss");
+    private static final Chronology ISO_UTC = ISOChronology.getInstanceUTC();
+
+    private static final int[] MONTHS = {
+            monthKey("jan"), monthKey("feb"), monthKey("mar"), monthKey("apr"), monthKey("may"), monthKey("jun"),
+            monthKey("jul"), monthKey("aug"), monthKey("sep"), monthKey("oct"), monthKey("nov"), monthKey("dec")
+    };
+
+    private static final byte[][] SEVERITY_NAMES = {
+            bytes("low"), bytes("med"), bytes("medium"), bytes("high"), bytes("very high"), bytes("very-high"), bytes("unknown")
+    };
+    private static final int[] SEVERITY_VALUES = {3, 6, 6, 8, 10, 10, -1};
+    private static final int INVALID_SEVERITY = Integer.MIN_VALUE;
+
+    private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
 
     private static final CEFFieldsParser FIELDS_PARSER = new CEFFieldsParser();
 
+    private static final CEFExtensionKey RT = CEFExtensionKey.forName("rt");
+
+    //Shared by all parsers, Graylog creates a new one for every message.
+    private static final CEFInternCache HEADER_CACHE = new CEFInternCache(4096);
+
+    //Number of unescaped pipes between the header fields and the extension.
+    public static final int HEADER_PIPES = 7;
+
+    //pipeSplit(byte[], int, int, int[]) result: a header token contains an invalid escape sequence.
+    public static final int INVALID_ESCAPE = -1;
+    //pipeSplit(byte[], int, int, int[]) result flag: the header contains bytes >= 0x80.
+    public static final int NON_ASCII = 1 << HEADER_PIPES;
+
     private final DateTimeZone timezone;
+    private final CEFClock clock;
+    private final CEFLimits limits;
+    private final CEFProjection projection;
+    private final boolean fullNames;
+    private final CEFVendorProfiles profiles;
+    private final Timestamps timestamps;
+
+    //What happens to the timestamp extension fields rt, start, end, deviceCustomDate1/2 and flexDate1.
+    public enum Timestamps {
+        //They are kept as Strings.
+        RAW,
+        //They are parsed into DateTimes, see CEFTimestamps. Fields in none of the formats are dropped.
+        PARSE,
+        //Like PARSE, and an rt that can be parsed is also the timestamp of the message.
+        RECEIPT_TIME
+    }
 
     public CEFParser(DateTimeZone timezone) {
+        this(timezone, CEFLimits.NONE, CEFProjection.ALL);
+    }
+
+    public CEFParser(DateTimeZone timezone, CEFLimits limits) {
+        this(timezone, limits, CEFProjection.ALL);
+    }
+
+    public CEFParser(DateTimeZone timezone, CEFLimits limits, CEFProjection projection) {
+        this(timezone, limits, projection, false);
+    }
+
+    //With fullNames, dictionary keys are stored under their full name, see CEFExtensionKey.fullName().
+    public CEFParser(DateTimeZone timezone, CEFLimits limits, CEFProjection projection, boolean fullNames) {
+        this(timezone, limits, projection, fullNames, CEFVendorProfiles.NONE);
+    }
+
+    //The extension of messages from a device product with a profile is read as the profile says.
+    public CEFParser(DateTimeZone timezone, CEFLimits limits, CEFProjection projection, boolean fullNames, CEFVendorProfiles profiles) {
+        this(timezone, limits, projection, fullNames, profiles, Timestamps.RAW);
+    }
+
+    public CEFParser(DateTimeZone timezone, CEFLimits limits, CEFProjection projection, boolean fullNames, CEFVendorProfiles profiles,
+                     Timestamps timestamps) {
         this.timezone = timezone;
+        this.clock = CEFClock.forZone(timezone);
+        this.limits = limits;
+        this.projection = projection;
+        this.fullNames = fullNames;
+        this.profiles = profiles;
+        this.timestamps = timestamps;
     }
 
     /*
@@ -27,7 +98,8 @@ public class CEFParser {
      * After that, pipes no longer split, because they are regular chars in the extension field.
      * This function returns null when an invalid escape is created.
      * This should return an arraylist of length 8 for all valid CEF input.
-     */ 
+     * The parser itself uses the allocation free pipeSplit(byte[], int, int, int[]) below.
+     */
     public static ArrayList<String> pipeSplit(String in){
         /*
          * An example of what the input looks like, and what indices correspond to what field in the output.
@@ -41,173 +113,612 @@ public class CEFParser {
          * 
          */
         
-        int token_number = 1;
-        boolean escaped = false;
-        
+        byte[] bytes = in.getBytes(Charsets.UTF_8);
+        int[] pipes = new int[HEADER_PIPES];
+        int flags = pipeSplit(bytes, 0, bytes.length, pipes);
+        if (flags == INVALID_ESCAPE){
+            return null;
+        }
+
         ArrayList<String> tokens = new ArrayList<String>();
-        StringBuilder curr = new StringBuilder();
-        
-        for (int i = 0; i < in.length(); i++){
-            char c = in.charAt(i);
-            
-            if (token_number <= 7){
-                if (escaped){
-                    escaped = false;
-                    //This must be an escapable char
-                    
-                    switch (c){
-                    case '\\':
-                        curr.append('\\');
-                        break;
-                    case '|':
-                        curr.append('|');
-                        break;
-                    default:
-                        //Found a character which should not be escaped.
-                        return null;
-                    }
-                    
-                } else {
-                    switch (c){
-                    case '\\':
-                        escaped = true;
-                        break;
-                    case '|':
-                        tokens.add(curr.toString());
-                        token_number++;
-                        curr = new StringBuilder();
-                        break;
-                    default:
-                        curr.append(c);
-                    }
+        boolean ascii = (flags & NON_ASCII) == 0;
+        int tokenStart = 0;
+        int n = 0;
+        for (; n < HEADER_PIPES && pipes[n] != -1; n++){
+            tokens.add(token(bytes, tokenStart, pipes[n], (flags & (1 << n)) != 0, ascii));
+            tokenStart = pipes[n] + 1;
+        }
+
+        if (n == HEADER_PIPES){
+            //After the 7th |, we don't care what the chars are. The field parser handles the rest.
+            tokens.add(Utf8.decode(bytes, tokenStart, bytes.length, false));
+        } else {
+            tokens.add(token(bytes, tokenStart, bytes.length, (flags & (1 << n)) != 0, ascii));
+        }
+
+        return tokens;
+    }
+
+    /*
+     * Offset based version of pipeSplit() that works on the UTF-8 bytes in in[from, to) and allocates nothing.
+     * The positions of the first 7 unescaped pipes are written to pipes[0..6], a pipe that was not
+     * found is set to -1. Token n runs from pipes[n - 1] + 1 (or from) to pipes[n], the extension from
+     * pipes[6] + 1 to to. The extension is not looked at at all.
+     *
+     * Returns INVALID_ESCAPE if a header token contains an invalid escape sequence. Otherwise bit n of
+     * the result is set if token n contains a \ and has to be unescaped, and NON_ASCII is set if the
+     * header contains any byte >= 0x80.
+     */
+    public static int pipeSplit(byte[] in, int from, int to, int[] pipes){
+        return pipeSplit(in, from, to, pipes, false);
+    }
+
+    //In record mode, the header also ends at a raw newline. pipes[HEADER_PIPES] is set to its position or -1.
+    private static int pipeSplit(byte[] in, int from, int to, int[] pipes, boolean record){
+        int pipeCount = 0;
+        int flags = 0;
+        int newline = -1;
+        boolean escaped = false;
+
+        for (int i = from; i < to && pipeCount < HEADER_PIPES; i++){
+            byte b = in[i];
+
+            if (escaped){
+                escaped = false;
+                //This must be an escapable char
+                if (b != '\\' && b != '|'){
+                    return INVALID_ESCAPE;
                 }
-            } else {
-                //After the 7th |, we don't care what the chars are. 
-                //Append them all and let the field parser handle the rest.
-                curr.append(c);
+            } else if (b == '\\'){
+                escaped = true;
+                flags |= 1 << pipeCount;
+            } else if (b == '|'){
+                pipes[pipeCount++] = i;
+            } else if (b == '\n' && record){
+                newline = i;
+                break;
+            } else if (b < 0){
+                flags |= NON_ASCII;
             }
         }
-        String extStr = curr.toString();
-        tokens.add(extStr);
-        
-        return tokens;
+
+        for (int n = pipeCount; n < HEADER_PIPES; n++){
+            pipes[n] = -1;
+        }
+        if (record){
+            pipes[HEADER_PIPES] = newline;
+        }
+
+        return flags;
+    }
+
+    private static String token(byte[] in, int from, int to, boolean escaped, boolean ascii) {
+        return escaped ? Utf8.unescape(in, from, to, ascii) : Utf8.decode(in, from, to, ascii);
     }
 
     public int parseSeverity(String severity_string) throws ParserException{
-        int retVal = 0;
-        try {
-            retVal = Integer.valueOf(severity_string);
-            if (retVal < -1 || retVal > 10){
-                throw new ParserException(severity_string + " is not a valid severity");
-            }
-            
-        } catch (NumberFormatException e) {
-            //Conver to lowercase, remove whitespace
-            String lowered = severity_string.toLowerCase();
-            if (lowered.equals("low")){
-                retVal = 3;
-            } else if (lowered.equals("med") || lowered.equals("medium")){
-                retVal = 6;
-            } else if (lowered.equals("high")){
-                retVal = 8;
-            } else if (lowered.equals("very high") || lowered.equals("very-high")){
-                retVal = 10;
-            } else if (lowered.equals("unknown")){
-                retVal = -1;
-            } else {
-                throw new ParserException(severity_string + " is not a valid string or numeric severity - " + e.getMessage());
-            }
+        byte[] bytes = severity_string.getBytes(Charsets.UTF_8);
+        int retVal = decodeSeverity(bytes, 0, bytes.length);
+        if (retVal == INVALID_SEVERITY){
+            throw new ParserException(severity_string + " is not a valid string or numeric severity");
         }
         return retVal;
     }
 
+    /*
+     * Decodes the severity in in[from, to) without exceptions: a number from -1 to 10 or one of the
+     * case insensitive names in SEVERITY_NAMES. Returns INVALID_SEVERITY for everything else.
+     */
+    static int decodeSeverity(byte[] in, int from, int to) {
+        Integer number = Numbers.parseInt(in, from, to);
+        if (number != null) {
+            return number >= -1 && number <= 10 ? number : INVALID_SEVERITY;
+        }
+
+        for (int i = 0; i < SEVERITY_NAMES.length; i++) {
+            if (equalsIgnoreCase(SEVERITY_NAMES[i], in, from, to)) {
+                return SEVERITY_VALUES[i];
+            }
+        }
+
+        //Integer.valueOf() also accepted digits of other scripts, keep doing so.
+        return to - from <= 11 && hasNonAscii(in, from, to) ? decodeUnicodeSeverity(Utf8.decode(in, from, to, false)) : INVALID_SEVERITY;
+    }
+
+    private static int decodeUnicodeSeverity(String severity) {
+        int start = severity.startsWith("-") || severity.startsWith("+") ? 1 : 0;
+        if (start == severity.length()) {
+            return INVALID_SEVERITY;
+        }
+        int value = 0;
+        for (int i = start; i < severity.length(); i++) {
+            int digit = Character.digit(severity.charAt(i), 10);
+            if (digit < 0 || value > 10) {
+                return INVALID_SEVERITY;
+            }
+            value = value * 10 + digit;
+        }
+        value = severity.charAt(0) == '-' ? -value : value;
+        return value >= -1 && value <= 10 ? value : INVALID_SEVERITY;
+    }
+
+    //ASCII only, letters are compared case insensitive.
+    private static boolean equalsIgnoreCase(byte[] lowerCase, byte[] in, int from, int to) {
+        if (to - from != lowerCase.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            byte b = in[from + i];
+            if (b >= 'A' && b <= 'Z') {
+                b |= 0x20;
+            }
+            if (b != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasNonAscii(byte[] in, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (in[i] < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     //We need the three parts of a date, and the cef version.
     //<132>    Aug    14       14:26:55           ossec-host    CEF:0
-    //becomes the following four groups: ["Aug", "14", "14:26:55", "0"]
-    private static final Pattern HEADER_REGEX = Pattern.compile(
-        "(?:^<\\d+>\\s*([a-zA-Z]{3})\\s+(\\d{1,2})\\s+(\\d{1,2}:\\d{1,2}:\\d{1,2}).*|^)CEF:(\\d+?)", 
-        Pattern.DOTALL);
-    
-    private DateTime matchToDate(Matcher m){
-        String [] validTokens = new String[3];
-        StringBuffer buff = new StringBuffer();
-        
-        for (int i = 1; i<4; i++){
-            if (m.group(i) == null || m.group(i).isEmpty()) {
-                //Can't parse a date, giving up and using current date.
-                return DateTime.now(timezone);
-            } else if (i == 1){
-                buff.append(m.group(i));
-            } else {
-                buff.append(" ");
-                buff.append(m.group(i));
+    //becomes Aug, 14, 14:26:55 and version 0. A header without syslog prefix must start with CEF:n and
+    //gets the current time. This is a hand written version of the regex
+    //(?:^<\d+>\s*([a-zA-Z]{3})\s+(\d{1,2})\s+(\d{1,2}:\d{1,2}:\d{1,2}).*|^)CEF:(\d+?)
+    //that accepts the same headers but never backtracks and works on the raw bytes. The results go to
+    //scratch, the current time is only looked up once the message is accepted.
+    private CEFParseResult.Failure parseHeader(byte[] in, int from, int to, CEFScratch scratch) {
+        if (from < to && in[from] == '<') {
+            //Like the greedy .* in the regex, the last CEF:n in the header wins.
+            int cef = lastIndexOfVersion(in, from, to);
+            int date = cef == -1 ? -1 : scanSyslogDate(in, from, cef);
+            if (date == -1) {
+                return CEFParseResult.Failure.NOT_CEF;
+            }
+
+            DateTime timestamp = toTimestamp(date);
+            if (timestamp == null) {
+                return CEFParseResult.Failure.INVALID_DATE;
             }
+            scratch.timestamp = timestamp;
+            scratch.version = in[cef + 4] - '0';
+        } else if (to - from > 4 && isVersion(in, from)) {
+            //Can't parse a date, giving up and using current date.
+            scratch.timestamp = null;
+            scratch.version = in[from + 4] - '0';
+        } else {
+            return CEFParseResult.Failure.NOT_CEF;
         }
-        
-        String dateStr = buff.toString();
-        DateTime res = DateTime.parse(dateStr, TIMESTAMP_PATTERN)
-                    .withYear(DateTime.now(timezone).getYear())
-                    .withZoneRetainFields(timezone);
+        return null;
+    }
+
+    //Returns the position of the last CEF:n in in[from, to) or -1.
+    private static int lastIndexOfVersion(byte[] in, int from, int to) {
+        for (int i = to - 5; i >= from; i--) {
+            if (isVersion(in, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isVersion(byte[] in, int i) {
+        return in[i] == 'C' && in[i + 1] == 'E' && in[i + 2] == 'F' && in[i + 3] == ':' && isDigit(in[i + 4]);
+    }
+
+    /*
+     * Scans <PRI>MMM dd HH:mm:ss at the start of in[from, to) and returns the date fields packed
+     * into a single int (see toTimestamp()), or -1 if there is no valid date.
+     */
+    private static int scanSyslogDate(byte[] in, int from, int to) {
+        //<PRI>
+        int i = from + 1;
+        int start = i;
+        while (i < to && isDigit(in[i])) {
+            i++;
+        }
+        if (i == start || i == to || in[i] != '>') {
+            return -1;
+        }
+        i = skipWhitespace(in, i + 1, to);
+
+        //MMM
+        if (to - i < 3) {
+            return -1;
+        }
+        int month = month(in[i], in[i + 1], in[i + 2]);
+        start = i + 3;
+        i = skipWhitespace(in, start, to);
+        if (month == -1 || i == start) {
+            return -1;
+        }
+
+        //dd
+        int n = digits(in, i, to);
+        int day = number(in, i, n);
+        start = i + n;
+        i = skipWhitespace(in, start, to);
+        if (n == 0 || i == start) {
+            return -1;
+        }
+
+        //HH:mm:ss
+        n = digits(in, i, to);
+        int hour = number(in, i, n);
+        i += n;
+        if (n == 0 || i == to || in[i++] != ':') {
+            return -1;
+        }
+        n = digits(in, i, to);
+        int minute = number(in, i, n);
+        i += n;
+        if (n == 0 || i == to || in[i++] != ':') {
+            return -1;
+        }
+        n = digits(in, i, to);
+        int second = number(in, i, n);
+        if (n == 0) {
+            return -1;
+        }
+
+        if (day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59) {
+            return -1;
+        }
+        return month << 22 | day << 17 | hour << 12 | minute << 6 | second;
+    }
+
+    //Returns null if the date does not exist, like February 30th.
+    private DateTime toTimestamp(int date) {
+        int year = clock.currentYear();
+        CEFTimestampCache cache = CEFTimestampCache.get();
+        DateTime timestamp = cache.get(timezone, year, date);
+        if (timestamp == null) {
+            timestamp = toTimestamp(year, date);
+            if (timestamp != null) {
+                cache.put(timezone, year, date, timestamp);
+            }
+        }
+        return timestamp;
+    }
+
+    private DateTime toTimestamp(int year, int date) {
+        int month = date >>> 22;
+        int day = (date >>> 17) & 0x1F;
+        int hour = (date >>> 12) & 0x1F;
+        int minute = (date >>> 6) & 0x3F;
+        int second = date & 0x3F;
+
+        if (month == 2 && day == 29 && !ISO_UTC.year().isLeap(year)) {
+            //The date formatter used to parse into a leap year and then moved the date into the current year.
+            day = 28;
+        }
+
+        if (day > DAYS_IN_MONTH[month - 1]) {
+            return null;
+        }
+
+        long local = ISO_UTC.getDateTimeMillis(year, month, day, hour, minute, second, 0);
+        return new DateTime(timezone.convertLocalToUTC(local, false), timezone);
+    }
+
+    //Returns the month (1-12) for a case insensitive English month abbreviation, or -1.
+    static int month(byte a, byte b, byte c) {
+        int key = (a | 0x20) << 16 | (b | 0x20) << 8 | (c | 0x20);
+        for (int i = 0; i < MONTHS.length; i++) {
+            if (MONTHS[i] == key) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(Charsets.UTF_8);
+    }
+
+    private static int monthKey(String month) {
+        return month.charAt(0) << 16 | month.charAt(1) << 8 | month.charAt(2);
+    }
 
-        return res;
+    //Number of digits at in[i], at most 2.
+    private static int digits(byte[] in, int i, int to) {
+        int n = 0;
+        while (n < 2 && i + n < to && isDigit(in[i + n])) {
+            n++;
+        }
+        return n;
+    }
+
+    private static int number(byte[] in, int i, int digits) {
+        int value = 0;
+        for (int j = i; j < i + digits; j++) {
+            value = value * 10 + (in[j] - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    //Same characters as \s in a regex.
+    private static int skipWhitespace(byte[] in, int i, int to) {
+        while (i < to) {
+            byte b = in[i];
+            if (b != ' ' && b != '\t' && b != '\n' && b != 0x0B && b != '\f' && b != '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
     }
-    
+
     public CEFMessage parse(String x) throws ParserException {
-        ArrayList<String> tokens = pipeSplit(x);
-        //Verify that there are 8 pipe delimited fields total.
-        int token_count = tokens.size();
-        if (token_count >= 9){
-            throw new ParserException("There is a bug in the pipeSplit function. Found too many fields, this should never happen");
-        } else if (token_count <= 7){
-            throw new ParserException("This message was not recognized as CEF and could not be parsed. 8 pipe-seperated sections should be present");
+        return parse(x.getBytes(Charsets.UTF_8));
+    }
+
+    public CEFMessage parse(byte[] payload) throws ParserException {
+        return parse(payload, 0, payload.length);
+    }
+
+    public CEFMessage parse(byte[] in, int offset, int length) throws ParserException {
+        CEFParseResult result = tryParse(in, offset, length);
+        if (!result.isSuccess()) {
+            throw new ParserException(result.failure().message());
         }
+        return result.message();
+    }
+
+    public CEFParseResult tryParse(byte[] payload) {
+        return tryParse(payload, 0, payload.length);
+    }
+
+    public CEFParseResult tryParse(byte[] in, int offset, int length) {
+        return tryParse(in, offset, length, null);
+    }
+
+    /*
+     * Parses the UTF-8 encoded CEF message in in[offset, offset + length) without decoding it first.
+     * This does the same as pipeSplit() on the raw bytes: all delimiters are ASCII so they can never be
+     * part of a multi-byte character. Strings are only built for the header tokens and the extension
+     * keys and values that end up in the message.
+     * Malformed messages are reported in the result and never throw.
+     * If timer is not null, it gets the time spent on the header and on the extension of messages that
+     * got that far. The extension is cut down to the limits of this parser, see CEFLimits, and only the
+     * fields its CEFProjection keeps are added.
+     */
+    public CEFParseResult tryParse(byte[] in, int offset, int length, @Nullable StageTimer timer) {
+        return tryParse(in, offset, length, null, timer);
+    }
+
+    //Like tryParse(in, offset, length, timer), fields that fail are reported for source. source may be null.
+    public CEFParseResult tryParse(byte[] in, int offset, int length, @Nullable Object source, @Nullable StageTimer timer) {
+        CEFScratch scratch = CEFScratch.acquire();
+        try {
+            CEFMessageHandler handler = scratch.messageHandler;
+            CEFParseResult.Failure failure = parse(in, offset, offset + length, source, timer, scratch, false, handler);
+            return failure == null ? CEFParseResult.success(handler.take()) : CEFParseResult.failure(failure);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /*
+     * Like tryParse(), but pushes the message to handler instead of building a CEFMessage. Returns null
+     * if the message was accepted, otherwise the reason it was rejected.
+     */
+    @Nullable
+    public CEFParseResult.Failure tryParse(byte[] in, int offset, int length, @Nullable Object source, @Nullable StageTimer timer, CEFHandler handler) {
+        CEFScratch scratch = CEFScratch.acquire();
+        try {
+            return parse(in, offset, offset + length, source, timer, scratch, false, handler);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /*
+     * Parses the newline separated CEF records in in[offset, offset + length) and hands the result of
+     * every record to consumer, in order and including the malformed ones. Empty lines are skipped.
+     * Splitting and parsing is one pass: the header scan and the extension tokenizer both stop at the
+     * first raw newline, which CEF does not allow inside of a record. Fields that fail are reported for
+     * source, which may be null.
+     */
+    public void tryParseRecords(byte[] in, int offset, int length, @Nullable Object source, @Nullable StageTimer timer, Consumer<CEFParseResult> consumer) {
+        CEFMessageHandler handler = new CEFMessageHandler(message -> consumer.accept(CEFParseResult.success(message)));
+        tryParseRecords(in, offset, length, source, timer, handler, failure -> consumer.accept(CEFParseResult.failure(failure)));
+    }
+
+    //Like tryParseRecords(), but pushes accepted records to handler. Malformed records go to rejected.
+    public void tryParseRecords(byte[] in, int offset, int length, @Nullable Object source, @Nullable StageTimer timer, CEFHandler handler,
+                                Consumer<CEFParseResult.Failure> rejected) {
+        int end = offset + length;
+        CEFScratch scratch = CEFScratch.acquire();
+        try {
+            int[] recordEnd = scratch.recordEnd;
+            for (int from = offset; from < end; from = recordEnd[0] + 1) {
+                if (in[from] == '\n' || in[from] == '\r') {
+                    recordEnd[0] = from;
+                    continue;
+                }
+                CEFParseResult.Failure failure = parse(in, from, end, source, timer, scratch, true, handler);
+                if (failure != null) {
+                    rejected.accept(failure);
+                }
+            }
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /*
+     * Parses the message in in[offset, end). In record mode the message ends at the first raw newline
+     * instead, its position (or end) is written to scratch.recordEnd[0].
+     * Nothing is allocated before the header is known to be valid, and handler only hears of the message
+     * once all of it is.
+     */
+    @Nullable
+    private CEFParseResult.Failure parse(byte[] in, int offset, int end, @Nullable Object source, @Nullable StageTimer timer, CEFScratch scratch, boolean record, CEFHandler handler) {
+        long parseStart = timer == null && limits.timeBudgetNanos() == 0 ? 0 : System.nanoTime();
+        long start = parseStart;
+        int[] recordEnd = record ? scratch.recordEnd : null;
+
+        int[] pipes = scratch.pipes;
+        int flags = pipeSplit(in, offset, end, pipes, record);
+        if (flags == INVALID_ESCAPE){
+            return failure(CEFParseResult.Failure.INVALID_HEADER_ESCAPE, in, offset, end, recordEnd);
+        } else if (pipes[HEADER_PIPES - 1] == -1){
+            return failure(CEFParseResult.Failure.MISSING_HEADER_FIELDS, in, pipes[HEADER_PIPES] == -1 ? end : pipes[HEADER_PIPES], end, recordEnd);
+        }
+        int extensionStart = pipes[6] + 1;
 
-        // Build the message with all CEF headers.
-        CEFMessage.Builder builder = CEFMessage.builder();
-        
         //Process Header
-        String headerString = tokens.get(0);
-        Matcher headerMatch = HEADER_REGEX.matcher(headerString);
+        CEFParseResult.Failure failure;
+        if ((flags & 1) != 0){
+            //Escaped pipes or backslashes in the syslog header. Rare enough to simply scan an unescaped copy.
+            byte[] header = headerToken(in, offset, pipes, flags, 0).getBytes(Charsets.UTF_8);
+            failure = parseHeader(header, 0, header.length, scratch);
+        } else {
+            failure = parseHeader(in, offset, pipes[0], scratch);
+        }
+        if (failure != null) {
+            return failure(failure, in, extensionStart, end, recordEnd);
+        }
 
-        if(headerMatch.find()) {
-            DateTime timestamp = matchToDate(headerMatch);
-            builder.timestamp(timestamp);
-            builder.version(Integer.valueOf(headerMatch.group(4)));
+        int severity;
+        if ((flags & (1 << 6)) != 0) {
+            byte[] severityBytes = headerToken(in, offset, pipes, flags, 6).getBytes(Charsets.UTF_8);
+            severity = decodeSeverity(severityBytes, 0, severityBytes.length);
         } else {
-            throw new ParserException("This message was not recognized as CEF and could not be parsed.");
+            severity = decodeSeverity(in, pipes[5] + 1, pipes[6]);
+        }
+        if (severity == INVALID_SEVERITY) {
+            return failure(CEFParseResult.Failure.INVALID_SEVERITY, in, extensionStart, end, recordEnd);
         }
-        
-        builder.deviceVendor(tokens.get(1));
-        builder.deviceProduct(tokens.get(2));
-        builder.deviceVersion(tokens.get(3));
-        builder.deviceEventClassId(tokens.get(4));
-        builder.name(tokens.get(5));
-        
-        String severity_string = tokens.get(6);
-        builder.severity(parseSeverity(severity_string));
 
-        String fieldsString = tokens.get(7);
-        if (fieldsString == null || fieldsString.isEmpty()) {
-            throw new ParserException("No CEF payload found. Skipping this message.");
+        if (extensionStart >= end || (record && (in[extensionStart] == '\n' || in[extensionStart] == '\r'))) {
+            if (timer != null) {
+                timer.header(System.nanoTime() - start);
+            }
+            return failure(CEFParseResult.Failure.NO_EXTENSION, in, extensionStart, end, recordEnd);
+        }
+
+        DateTime timestamp = scratch.timestamp == null ? DateTime.now(timezone) : scratch.timestamp;
+        int version = scratch.version;
+        String deviceVendor = internedHeaderToken(in, offset, pipes, flags, 1);
+        String deviceProduct = internedHeaderToken(in, offset, pipes, flags, 2);
+        String deviceVersion = internedHeaderToken(in, offset, pipes, flags, 3);
+        String deviceEventClassId = internedHeaderToken(in, offset, pipes, flags, 4);
+        String name = internedHeaderToken(in, offset, pipes, flags, 5);
+
+        if (timer != null) {
+            long now = System.nanoTime();
+            timer.header(now - start);
+            start = now;
+        }
+
+        CEFExtensionTokenizer tokenizer = scratch.tokenizer;
+        tokenizer.limit(limits, parseStart);
+        if (record) {
+            tokenizer.tokenizeRecord(in, extensionStart, end);
+            recordEnd[0] = tokenizer.end();
         } else {
-            ImmutableMap<String, Object> parsedFields = FIELDS_PARSER.parse(fieldsString);
-            builder.fields(parsedFields);
-            //For now, keeping the duplicated message field. Will refactor later.
-            if (parsedFields.containsKey("msg")){
-                builder.message(String.valueOf(parsedFields.get("msg")));
-            } else {
-                //For compatibility, set message to null.
-                builder.message(null);
+            tokenizer.tokenize(in, extensionStart, end);
+        }
+        CEFTemplateCache.Template template = CEFTemplateCache.shared().template(deviceVendor, deviceProduct, deviceVersion, deviceEventClassId);
+        CEFFields parsedFields = FIELDS_PARSER.fields(scratch, projection, fullNames, template, profiles.profile(deviceVendor, deviceProduct),
+                timestamps == Timestamps.RAW ? null : clock, source);
+        if (timer != null) {
+            timer.extension(System.nanoTime() - start);
+        }
+        if (parsedFields == null) {
+            return CEFParseResult.Failure.DUPLICATE_KEYS;
+        }
+        if (timestamps == Timestamps.RECEIPT_TIME) {
+            DateTime receiptTime = receiptTime(scratch);
+            if (receiptTime != null) {
+                timestamp = receiptTime;
             }
         }
-        
-        return builder.build();
+
+        handler.header(timestamp, version, deviceVendor, deviceProduct, deviceVersion, deviceEventClassId, name, severity);
+        handler.fields(parsedFields);
+        handler.end();
+        return null;
+    }
+
+    //The rt field of the message CEFFieldsParser.fields() just saw, even if it is not kept. null if there is none or it is invalid.
+    private DateTime receiptTime(CEFScratch scratch) {
+        int field = scratch.position(RT);
+        if (field == -1) {
+            return null;
+        }
+        CEFExtensionTokenizer tokenizer = scratch.tokenizer;
+        if (tokenizer.needsUnescape(field)) {
+            byte[] value = tokenizer.value(field).getBytes(Charsets.UTF_8);
+            return CEFTimestamps.parse(value, 0, value.length, clock);
+        }
+        return CEFTimestamps.parse(tokenizer.input(), tokenizer.valueStart(field), tokenizer.valueEnd(field), clock);
+    }
+
+    //In record mode, the rest of a malformed record up to the next newline is skipped.
+    private static CEFParseResult.Failure failure(CEFParseResult.Failure failure, byte[] in, int from, int end, @Nullable int[] recordEnd) {
+        if (recordEnd != null) {
+            recordEnd[0] = newline(in, from, end);
+        }
+        return failure;
+    }
+
+    private static int newline(byte[] in, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (in[i] == '\n') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    //Returns header token n (0-6), which ends at the n-th pipe. Only tokens that contain a \ are unescaped.
+    private static String headerToken(byte[] in, int offset, int[] pipes, int flags, int n) {
+        int from = n == 0 ? offset : pipes[n - 1] + 1;
+        return token(in, from, pipes[n], (flags & (1 << n)) != 0, (flags & NON_ASCII) == 0);
+    }
+
+    //Like headerToken(), but repeated values share one String instance.
+    private static String internedHeaderToken(byte[] in, int offset, int[] pipes, int flags, int n) {
+        if ((flags & (1 << n)) != 0) {
+            return headerToken(in, offset, pipes, flags, n);
+        }
+        return HEADER_CACHE.intern(in, pipes[n - 1] + 1, pipes[n], (flags & NON_ASCII) == 0);
+    }
+
+    public static CEFInternCache headerCache() {
+        return HEADER_CACHE;
+    }
+
+    /*
+     * Receives the time spent in the parse stages, in nanoseconds. The extension stage only splits the
+     * fields, their values are converted when they are read.
+     */
+    public interface StageTimer {
+        void header(long nanos);
+
+        void extension(long nanos);
     }
 
+    //Only thrown by the legacy parse() methods. Without a stack trace, the message says all there is to know.
     private class ParserException extends Exception {
 
         public ParserException(String msg) {
-            super(msg);
+            super(msg, null, false, false);
         }
 
     }
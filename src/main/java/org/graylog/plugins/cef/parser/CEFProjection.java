@@ -0,0 +1,179 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Decides which extension fields end up in a message, from an include and an exclude list like
+ * "src,dst,spt,dpt,cs*". Entries that end with * match all field names that start with the rest. An
+ * empty include list includes everything, the exclude list wins over the include list.
+ *
+ * The lists apply to the field names in the message, so custom fields are matched by their label.
+ * Dictionary keys match by their short and by their full name, whichever one the parser emits. The
+ * decision for every dictionary key is made once when a projection is compiled, other keys and labels
+ * are matched on the payload bytes. CEFFieldsParser asks before it adds a field, skipped fields are
+ * never unescaped, converted or turned into Strings. Duplicates of skipped dictionary keys still reject
+ * the message, duplicates of other skipped keys go unnoticed.
+ *
+ * Projections are compiled once per distinct setting, Graylog creates a codec for every message. The
+ * settings of the last compile() call are kept with their projection, so codecs of the same input
+ * neither split the lists again nor look the projection up.
+ */
+public final class CEFProjection {
+    public static final CEFProjection ALL = new CEFProjection(null, null);
+
+    private static final ConcurrentMap<List<String>, CEFProjection> COMPILED = new ConcurrentHashMap<>();
+
+    private static final Splitter SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private static volatile Compiled last = new Compiled(null, null, ALL);
+
+    //null means everything.
+    private final Names include;
+    //null means nothing.
+    private final Names exclude;
+    //Decision for every dictionary key by index(). Custom fields are decided by their label.
+    private final boolean[] dictionary = new boolean[CEFExtensionKey.count()];
+
+    private CEFProjection(Names include, Names exclude) {
+        this.include = include;
+        this.exclude = exclude;
+        for (CEFExtensionKey key : CEFExtensionKey.all()) {
+            dictionary[key.index()] = keeps(key.name(), key.fullName());
+        }
+    }
+
+    public static CEFProjection compile(@Nullable String include, @Nullable String exclude) {
+        Compiled compiled = last;
+        if (!Objects.equals(compiled.include, include) || !Objects.equals(compiled.exclude, exclude)) {
+            compiled = new Compiled(include, exclude, projection(include, exclude));
+            last = compiled;
+        }
+        return compiled.projection;
+    }
+
+    private static CEFProjection projection(@Nullable String include, @Nullable String exclude) {
+        List<String> includes = ImmutableList.copyOf(SPLITTER.split(Strings.nullToEmpty(include)));
+        List<String> excludes = ImmutableList.copyOf(SPLITTER.split(Strings.nullToEmpty(exclude)));
+        if (includes.isEmpty() && excludes.isEmpty()) {
+            return ALL;
+        }
+        return COMPILED.computeIfAbsent(ImmutableList.of(String.join(",", includes), String.join(",", excludes)),
+                k -> new CEFProjection(includes.isEmpty() ? null : new Names(includes), excludes.isEmpty() ? null : new Names(excludes)));
+    }
+
+    public boolean keepsAll() {
+        return include == null && exclude == null;
+    }
+
+    //For dictionary keys that are not custom fields.
+    public boolean keeps(CEFExtensionKey key) {
+        return dictionary[key.index()];
+    }
+
+    //For the unescaped field name in in[from, to).
+    public boolean keeps(byte[] in, int from, int to) {
+        return keepsAll() || ((include == null || include.matches(in, from, to)) && (exclude == null || !exclude.matches(in, from, to)));
+    }
+
+    public boolean keeps(String name) {
+        if (keepsAll()) {
+            return true;
+        }
+        byte[] bytes = name.getBytes(Charsets.UTF_8);
+        return keeps(bytes, 0, bytes.length);
+    }
+
+    private boolean keeps(String name, String fullName) {
+        if (keepsAll()) {
+            return true;
+        }
+        return (include == null || include.matches(name) || include.matches(fullName))
+                && (exclude == null || !(exclude.matches(name) || exclude.matches(fullName)));
+    }
+
+    //The settings of a compile() call and their projection.
+    private static final class Compiled {
+        private final String include;
+        private final String exclude;
+        private final CEFProjection projection;
+
+        private Compiled(String include, String exclude, CEFProjection projection) {
+            this.include = include;
+            this.exclude = exclude;
+            this.projection = projection;
+        }
+    }
+
+    //Exact names in an open addressing table, prefixes in a list.
+    private static final class Names {
+        private final byte[][] table;
+        private final int[] hashes;
+        private final byte[][] prefixes;
+
+        private Names(List<String> names) {
+            int size = Integer.highestOneBit(Math.max(1, names.size()) * 2 - 1) << 1;
+            this.table = new byte[size][];
+            this.hashes = new int[size];
+
+            ImmutableList.Builder<byte[]> prefixes = ImmutableList.builder();
+            for (String name : names) {
+                if (name.endsWith("*")) {
+                    prefixes.add(name.substring(0, name.length() - 1).getBytes(Charsets.UTF_8));
+                    continue;
+                }
+                byte[] bytes = name.getBytes(Charsets.UTF_8);
+                int hash = CEFExtensionKey.hash(bytes, 0, bytes.length);
+                int slot = hash & (size - 1);
+                while (table[slot] != null) {
+                    slot = (slot + 1) & (size - 1);
+                }
+                table[slot] = bytes;
+                hashes[slot] = hash;
+            }
+            this.prefixes = prefixes.build().toArray(new byte[0][]);
+        }
+
+        private boolean matches(String name) {
+            byte[] bytes = name.getBytes(Charsets.UTF_8);
+            return matches(bytes, 0, bytes.length);
+        }
+
+        private boolean matches(byte[] in, int from, int to) {
+            int mask = table.length - 1;
+            int hash = CEFExtensionKey.hash(in, from, to);
+            for (int slot = hash & mask; table[slot] != null; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && startsWith(in, from, to, table[slot]) && table[slot].length == to - from) {
+                    return true;
+                }
+            }
+            for (byte[] prefix : prefixes) {
+                if (startsWith(in, from, to, prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean startsWith(byte[] in, int from, int to, byte[] prefix) {
+            if (to - from < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (in[from + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
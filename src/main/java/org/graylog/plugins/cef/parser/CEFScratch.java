@@ -0,0 +1,94 @@
+package org.graylog.plugins.cef.parser;
+
+import org.joda.time.DateTime;
+
+import java.util.Arrays;
+
+/*
+ * Buffers that CEFParser and CEFFieldsParser reuse from message to message: the header pipe positions,
+ * the extension tokenizer with its spans, the key and field position of every dictionary key, and the
+ * handler that builds CEFMessages. With these in place a message rejected at the header stage allocates
+ * nothing, and an accepted one only what ends up in its CEFMessage.
+ *
+ * Graylog decodes on several processor threads at once, so every thread has its own scratch. acquire()
+ * hands it out and release() gives it back. If the thread's scratch is already taken, e.g. because a
+ * record consumer parses again, acquire() returns a fresh one.
+ *
+ * Numbers are converted straight from the payload bytes (see Numbers) and need no buffer here.
+ */
+final class CEFScratch {
+    //A tokenizer that grew beyond this many fields is dropped on release, one huge message must not pin its spans.
+    private static final int MAX_RETAINED_FIELDS = 1024;
+
+    private static final ThreadLocal<CEFScratch> SCRATCH = ThreadLocal.withInitial(CEFScratch::new);
+
+    //See CEFParser.pipeSplit(). The last entry is the record end newline.
+    final int[] pipes = new int[CEFParser.HEADER_PIPES + 1];
+    //End of the current record in CEFParser.tryParseRecords().
+    final int[] recordEnd = new int[1];
+    //Field position of every dictionary key by CEFExtensionKey.index(), see positions().
+    private final int[] positions = new int[CEFExtensionKey.count()];
+
+    CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+    //Dictionary key and name of every field, for CEFTemplateCache. See keys() and names().
+    private CEFExtensionKey[] keys = new CEFExtensionKey[16];
+    private String[] names = new String[16];
+    //Builds the CEFMessage in CEFParser.tryParse().
+    final CEFMessageHandler messageHandler = new CEFMessageHandler(null);
+
+    //Header results. A null timestamp means the header had no date and the message gets the current time.
+    DateTime timestamp;
+    int version;
+
+    private boolean inUse;
+
+    static CEFScratch acquire() {
+        CEFScratch scratch = SCRATCH.get();
+        if (scratch.inUse) {
+            scratch = new CEFScratch();
+        }
+        scratch.inUse = true;
+        return scratch;
+    }
+
+    //Drops all references to the last payload so an idle thread does not keep it alive.
+    void release() {
+        if (tokenizer.capacity() > MAX_RETAINED_FIELDS) {
+            tokenizer = new CEFExtensionTokenizer();
+            keys = new CEFExtensionKey[16];
+            names = new String[16];
+        } else {
+            tokenizer.clear();
+        }
+        timestamp = null;
+        inUse = false;
+    }
+
+    //At least size entries, the content is undefined.
+    CEFExtensionKey[] keys(int size) {
+        if (keys.length < size) {
+            keys = new CEFExtensionKey[Math.max(size, keys.length * 2)];
+        }
+        return keys;
+    }
+
+    //At least size entries, the content is undefined.
+    String[] names(int size) {
+        if (names.length < size) {
+            names = new String[Math.max(size, names.length * 2)];
+        }
+        return names;
+    }
+
+    //Field position of key in the message CEFFieldsParser.fields() saw last, or -1.
+    int position(CEFExtensionKey key) {
+        return positions[key.index()];
+    }
+
+    //All -1.
+    int[] positions() {
+        Arrays.fill(positions, -1);
+        return positions;
+    }
+
+}
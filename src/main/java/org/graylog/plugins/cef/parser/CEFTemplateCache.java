@@ -0,0 +1,236 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Learned extension key order per (device vendor, device product, device version, event class id).
+ *
+ * A device model sends its keys in the same order every time, "rt src spt dst dpt proto act ..." for
+ * every firewall accept. The template of a header tuple remembers the keys of the last message, and
+ * CEFFieldsParser checks the keys of the next one against it by position: a byte compare with the
+ * expected key instead of hashing it for the dictionary or the name cache. A key that does not match
+ * is looked up the usual way, and the template learns the new order. Hits and misses are counted per
+ * template.
+ *
+ * Learning an order allocates it, so a header tuple whose messages keep changing their keys only
+ * learns for the first MAX_RELEARNS misses in a row. After that it keeps its order and only tries again
+ * every RELEARN_INTERVAL misses, in case the device settled on a new one. A hit starts over.
+ *
+ * Templates are never evicted. Once MAX_TEMPLATES header tuples were seen, messages of new ones are
+ * parsed without a template and without taking the lock, they are counted by overflows(). The header
+ * Strings mostly come from the header cache, so comparing them is usually a reference compare.
+ */
+public final class CEFTemplateCache {
+
+    public static final int MAX_TEMPLATES = 4096;
+    static final int MAX_RELEARNS = 8;
+    static final int RELEARN_INTERVAL = 256;
+
+    private static final CEFTemplateCache SHARED = new CEFTemplateCache(MAX_TEMPLATES);
+
+    private final Template[] table;
+    private final int mask;
+    private final int maxTemplates;
+    private final AtomicInteger size = new AtomicInteger();
+    //Lookups of header tuples that did not fit anymore.
+    private final LongAdder overflows = new LongAdder();
+
+    CEFTemplateCache(int maxTemplates) {
+        this.maxTemplates = maxTemplates;
+        int capacity = Integer.highestOneBit(Math.max(1, maxTemplates) * 2 - 1) << 1;
+        this.table = new Template[capacity];
+        this.mask = capacity - 1;
+    }
+
+    //Shared by all parsers, Graylog creates a new one for every message.
+    public static CEFTemplateCache shared() {
+        return SHARED;
+    }
+
+    //The template of the header tuple, created on first use. null if the cache is full.
+    Template template(String vendor, String product, String version, String eventClassId) {
+        int hash = hash(vendor, product, version, eventClassId);
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            Template template = table[slot];
+            if (template == null) {
+                if (size.get() >= maxTemplates) {
+                    overflows.increment();
+                    return null;
+                }
+                return add(slot, hash, vendor, product, version, eventClassId);
+            } else if (template.hash == hash && template.matches(vendor, product, version, eventClassId)) {
+                return template;
+            }
+        }
+    }
+
+    private synchronized Template add(int slot, int hash, String vendor, String product, String version, String eventClassId) {
+        //Another thread may have taken the slot in the meantime.
+        for (; table[slot] != null; slot = (slot + 1) & mask) {
+            Template template = table[slot];
+            if (template.hash == hash && template.matches(vendor, product, version, eventClassId)) {
+                return template;
+            }
+        }
+        if (size.get() >= maxTemplates) {
+            overflows.increment();
+            return null;
+        }
+        Template template = new Template(hash, vendor, product, version, eventClassId);
+        table[slot] = template;
+        size.incrementAndGet();
+        return template;
+    }
+
+    private static int hash(String vendor, String product, String version, String eventClassId) {
+        int hash = ((vendor.hashCode() * 31 + product.hashCode()) * 31 + version.hashCode()) * 31 + eventClassId.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    //Messages parsed without a template because the cache was full.
+    public long overflows() {
+        return overflows.sum();
+    }
+
+    public ImmutableList<Template> templates() {
+        ImmutableList.Builder<Template> templates = ImmutableList.builder();
+        for (Template template : table) {
+            if (template != null) {
+                templates.add(template);
+            }
+        }
+        return templates.build();
+    }
+
+    public long hits() {
+        long hits = 0;
+        for (Template template : templates()) {
+            hits += template.hits();
+        }
+        return hits;
+    }
+
+    public long misses() {
+        long misses = 0;
+        for (Template template : templates()) {
+            misses += template.misses();
+        }
+        return misses;
+    }
+
+    public static final class Template {
+        private final int hash;
+        private final String vendor;
+        private final String product;
+        private final String version;
+        private final String eventClassId;
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        //Replaced as a whole when the order changes.
+        private volatile Order order;
+        //Misses since the last hit. Updated without a lock, concurrent misses may be counted once.
+        private volatile int streak;
+
+        private Template(int hash, String vendor, String product, String version, String eventClassId) {
+            this.hash = hash;
+            this.vendor = vendor;
+            this.product = product;
+            this.version = version;
+            this.eventClassId = eventClassId;
+        }
+
+        private boolean matches(String vendor, String product, String version, String eventClassId) {
+            return this.vendor.equals(vendor) && this.product.equals(product) && this.version.equals(version)
+                    && this.eventClassId.equals(eventClassId);
+        }
+
+        //The learned order, or null before the first message.
+        Order order() {
+            return order;
+        }
+
+        void hit() {
+            hits.increment();
+            if (streak != 0) {
+                streak = 0;
+            }
+        }
+
+        //The message did not follow the learned order. True if its own order should be learned.
+        boolean miss() {
+            misses.increment();
+            int streak = this.streak + 1;
+            boolean learn = order == null || streak <= MAX_RELEARNS;
+            if (streak == MAX_RELEARNS + RELEARN_INTERVAL) {
+                streak = MAX_RELEARNS;
+                learn = true;
+            }
+            this.streak = streak;
+            return learn;
+        }
+
+        //Replaces the learned order, see miss().
+        void learn(Order order) {
+            this.order = order;
+        }
+
+        public String vendor() {
+            return vendor;
+        }
+
+        public String product() {
+            return product;
+        }
+
+        public String version() {
+            return version;
+        }
+
+        public String eventClassId() {
+            return eventClassId;
+        }
+
+        public long hits() {
+            return hits.sum();
+        }
+
+        public long misses() {
+            return misses.sum();
+        }
+
+        @Override
+        public String toString() {
+            return vendor + "/" + product + "/" + version + "/" + eventClassId;
+        }
+    }
+
+    /*
+     * The keys of a message in payload order. Dictionary keys are in keys, all other keys in names with
+     * their UTF-8 bytes. Escaped keys are never part of a template.
+     */
+    static final class Order {
+        final CEFExtensionKey[] keys;
+        final String[] names;
+        final byte[][] nameBytes;
+
+        Order(CEFExtensionKey[] keys, String[] names, byte[][] nameBytes) {
+            this.keys = keys;
+            this.names = names;
+            this.nameBytes = nameBytes;
+        }
+
+        int size() {
+            return keys.length;
+        }
+    }
+
+}
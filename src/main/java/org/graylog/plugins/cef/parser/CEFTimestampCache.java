@@ -0,0 +1,91 @@
+package org.graylog.plugins.cef.parser;
+
+import com.codahale.metrics.RatioGauge;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Remembers the last two syslog header timestamps every decoder thread has turned into a DateTime.
+ *
+ * Senders usually emit bursts of messages stamped with the same second, so with one slot for the
+ * current and one for the previous second nearly every message skips the date math. A timestamp is
+ * only reused for the same packed MMM dd HH:mm:ss, the same year and the same timezone. A new year
+ * or a parser with another timezone simply misses and replaces the older slot.
+ *
+ * Graylog creates a codec (and so a parser) for every message it decodes, which is why the slots
+ * live in a ThreadLocal instead of the parser. Hits and misses are counted for all threads.
+ */
+public class CEFTimestampCache {
+
+    private static final ThreadLocal<CEFTimestampCache> CACHES = ThreadLocal.withInitial(CEFTimestampCache::new);
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    //Slot 0 holds the most recently added timestamp. A key of -1 marks an empty slot.
+    private long key0 = -1;
+    private DateTimeZone timezone0;
+    private DateTime timestamp0;
+
+    private long key1 = -1;
+    private DateTimeZone timezone1;
+    private DateTime timestamp1;
+
+    CEFTimestampCache() {
+    }
+
+    static CEFTimestampCache get() {
+        return CACHES.get();
+    }
+
+    //Returns the cached timestamp for the packed date (see CEFParser.toTimestamp()) or null.
+    DateTime get(DateTimeZone timezone, int year, int date) {
+        long key = key(year, date);
+        if (key == key0 && timezone.equals(timezone0)) {
+            HITS.increment();
+            return timestamp0;
+        }
+        if (key == key1 && timezone.equals(timezone1)) {
+            HITS.increment();
+            return timestamp1;
+        }
+        MISSES.increment();
+        return null;
+    }
+
+    void put(DateTimeZone timezone, int year, int date, DateTime timestamp) {
+        key1 = key0;
+        timezone1 = timezone0;
+        timestamp1 = timestamp0;
+
+        key0 = key(year, date);
+        timezone0 = timezone;
+        timestamp0 = timestamp;
+    }
+
+    private static long key(int year, int date) {
+        return (long) year << 32 | date;
+    }
+
+    public static long hits() {
+        return HITS.sum();
+    }
+
+    public static long misses() {
+        return MISSES.sum();
+    }
+
+    //Share of syslog header timestamps that were served from the cache, for all decoder threads.
+    public static RatioGauge hitRatio() {
+        return new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                long hits = HITS.sum();
+                return Ratio.of(hits, hits + MISSES.sum());
+            }
+        };
+    }
+
+}
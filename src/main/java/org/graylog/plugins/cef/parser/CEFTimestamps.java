@@ -0,0 +1,466 @@
+package org.graylog.plugins.cef.parser;
+
+import com.codahale.metrics.RatioGauge;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Parses the timestamp extension fields (rt, start, end, deviceCustomDate1/2, flexDate1) from the
+ * payload bytes. A single scan recognizes all formats the CEF spec allows, instead of trying one
+ * formatter after the other:
+ *
+ *   1482522872412                          milliseconds since the epoch, 12 to 18 digits
+ *   1482522872                             seconds since the epoch, 10 or 11 digits
+ *   MMM dd[ yyyy] HH:mm:ss[.SSS][ zzz]     zzz is Z, UTC, GMT, a US abbreviation, an offset or a zone ID
+ *   yyyy-MM-dd[T| ]HH:mm:ss[.SSS][zone]    ISO 8601, zone is Z or an offset
+ *
+ * Shorter numbers are not timestamps: a counter or an id in rt would otherwise become a date in 1970.
+ * CEFFields keeps them as text.
+ *
+ * Dates without a zone are in the timezone of the parser, dates without a year in its current year.
+ * The results are DateTimes in UTC.
+ *
+ * The date math for the second a timestamp falls into is remembered per thread and format, two
+ * seconds each like CEFTimestampCache, because rt, start and end of one message are usually only a
+ * few seconds apart. Hits and misses are counted for all threads.
+ */
+public final class CEFTimestamps {
+
+    private static final int MIN_SECONDS_DIGITS = 10;
+    private static final int MIN_MILLIS_DIGITS = 12;
+    private static final int MAX_MILLIS_DIGITS = 18;
+    //The longest zone IDs Joda knows have about 30 characters.
+    private static final int MAX_ZONE_ID_LENGTH = 64;
+    private static final int ZONE_CACHE_SIZE = 64;
+
+    private static final ISOChronology ISO_UTC = ISOChronology.getInstanceUTC();
+
+    private static final ThreadLocal<CEFTimestamps> MEMOS = ThreadLocal.withInitial(CEFTimestamps::new);
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    //Zone abbreviations Joda knows, like EST and PDT.
+    private static final byte[][] ZONE_NAMES;
+    private static final DateTimeZone[] ZONES;
+    private static final Set<String> ZONE_IDS = DateTimeZone.getAvailableIDs();
+    //Zone IDs seen in timestamps by their bytes, see zoneForId().
+    private static final ZoneEntry[] ZONE_CACHE = new ZoneEntry[ZONE_CACHE_SIZE];
+
+    static {
+        Map<String, DateTimeZone> names = DateTimeUtils.getDefaultTimeZoneNames();
+        ZONE_NAMES = new byte[names.size()][];
+        ZONES = new DateTimeZone[names.size()];
+        int i = 0;
+        for (Map.Entry<String, DateTimeZone> name : names.entrySet()) {
+            ZONE_NAMES[i] = name.getKey().getBytes(StandardCharsets.US_ASCII);
+            ZONES[i++] = name.getValue();
+        }
+    }
+
+    private final Memo syslog = new Memo();
+    private final Memo iso = new Memo();
+
+    private CEFTimestamps() {
+    }
+
+    /*
+     * The timestamp in in[from, to), or null if it is in none of the formats or the date does not exist.
+     * clock gives the timezone and year of dates that have none.
+     */
+    static DateTime parse(byte[] in, int from, int to, CEFClock clock) {
+        while (from < to && in[from] == ' ') {
+            from++;
+        }
+        while (to > from && in[to - 1] == ' ') {
+            to--;
+        }
+        if (from == to) {
+            return null;
+        }
+        if (isDigit(in[from])) {
+            int n = digits(in, from, to, 19);
+            if (from + n == to) {
+                return epoch(in, from, to, n);
+            }
+            return n == 4 ? iso(in, from, to, clock) : null;
+        }
+        return syslog(in, from, to, clock);
+    }
+
+    //Seconds or milliseconds since the epoch by the number of digits, null if there are too few or too many.
+    private static DateTime epoch(byte[] in, int from, int to, int digits) {
+        if (digits < MIN_SECONDS_DIGITS || digits > MAX_MILLIS_DIGITS) {
+            return null;
+        }
+        Long value = Numbers.parseLong(in, from, to);
+        if (value == null) {
+            return null;
+        }
+        return new DateTime(digits < MIN_MILLIS_DIGITS ? value * 1000 : value, DateTimeZone.UTC);
+    }
+
+    //True if in[from, to) is a number, blanks around it aside. Numbers parse() did not take are kept as text.
+    static boolean isNumber(byte[] in, int from, int to) {
+        while (from < to && in[from] == ' ') {
+            from++;
+        }
+        while (to > from && in[to - 1] == ' ') {
+            to--;
+        }
+        return from < to && digits(in, from, to - from);
+    }
+
+    //MMM dd[ yyyy] HH:mm:ss[.SSS][ zzz]
+    private static DateTime syslog(byte[] in, int from, int to, CEFClock clock) {
+        int i = from;
+        if (to - i < 4) {
+            return null;
+        }
+        int month = CEFParser.month(in[i], in[i + 1], in[i + 2]);
+        if (month == -1 || in[i + 3] != ' ') {
+            return null;
+        }
+        i = skipSpaces(in, i + 3, to);
+
+        int n = digits(in, i, to, 2);
+        int day = number(in, i, n);
+        if (n == 0 || i + n == to || in[i + n] != ' ') {
+            return null;
+        }
+        i = skipSpaces(in, i + n, to);
+
+        int year;
+        n = digits(in, i, to, 4);
+        if (n == 4) {
+            year = number(in, i, n);
+            if (i + n == to || in[i + n] != ' ') {
+                return null;
+            }
+            i = skipSpaces(in, i + n, to);
+            n = digits(in, i, to, 2);
+        } else {
+            year = clock.currentYear();
+        }
+
+        //HH:mm:ss
+        int hour = number(in, i, n);
+        i += n;
+        if (n == 0 || i == to || in[i++] != ':') {
+            return null;
+        }
+        n = digits(in, i, to, 2);
+        int minute = number(in, i, n);
+        i += n;
+        if (n == 0 || i == to || in[i++] != ':') {
+            return null;
+        }
+        n = digits(in, i, to, 2);
+        int second = number(in, i, n);
+        if (n == 0) {
+            return null;
+        }
+        i += n;
+
+        int millis = 0;
+        if (i < to && in[i] == '.') {
+            n = digits(in, i + 1, to, 9);
+            if (n == 0) {
+                return null;
+            }
+            millis = millis(in, i + 1, n);
+            i += n + 1;
+        }
+
+        int start = i;
+        i = skipSpaces(in, i, to);
+        if (i == to) {
+            return toTimestamp(get().syslog, year, month, day, hour, minute, second, millis, clock.timezone(), 0);
+        } else if (i == start) {
+            return null;
+        }
+        return zone(get().syslog, in, i, to, year, month, day, hour, minute, second, millis);
+    }
+
+    //yyyy-MM-dd[T| ]HH:mm:ss[.SSS][Z|+hh:mm|+hhmm|+hh]
+    private static DateTime iso(byte[] in, int from, int to, CEFClock clock) {
+        int i = from;
+        if (to - i < 19 || in[i + 4] != '-' || in[i + 7] != '-' || (in[i + 10] != 'T' && in[i + 10] != ' ')
+                || in[i + 13] != ':' || in[i + 16] != ':') {
+            return null;
+        }
+        if (!digits(in, i, 4) || !digits(in, i + 5, 2) || !digits(in, i + 8, 2) || !digits(in, i + 11, 2)
+                || !digits(in, i + 14, 2) || !digits(in, i + 17, 2)) {
+            return null;
+        }
+        int year = number(in, i, 4);
+        int month = number(in, i + 5, 2);
+        int day = number(in, i + 8, 2);
+        int hour = number(in, i + 11, 2);
+        int minute = number(in, i + 14, 2);
+        int second = number(in, i + 17, 2);
+        i += 19;
+
+        int millis = 0;
+        if (i < to && (in[i] == '.' || in[i] == ',')) {
+            int n = digits(in, i + 1, to, 9);
+            if (n == 0) {
+                return null;
+            }
+            millis = millis(in, i + 1, n);
+            i += n + 1;
+        }
+
+        if (i == to) {
+            return toTimestamp(get().iso, year, month, day, hour, minute, second, millis, clock.timezone(), 0);
+        }
+        return zone(get().iso, in, i, to, year, month, day, hour, minute, second, millis);
+    }
+
+    //The date with the zone in in[from, to).
+    private static DateTime zone(Memo memo, byte[] in, int from, int to, int year, int month, int day, int hour,
+                                 int minute, int second, int millis) {
+        if (in[from] == '+' || in[from] == '-') {
+            int offset = offsetMinutes(in, from, to);
+            if (offset == Integer.MIN_VALUE) {
+                return null;
+            }
+            //The offset is part of the memo key.
+            return toTimestamp(memo, year, month, day, hour, minute, second, millis, DateTimeZone.UTC, offset);
+        }
+        if (to - from == 1 && in[from] == 'Z') {
+            return toTimestamp(memo, year, month, day, hour, minute, second, millis, DateTimeZone.UTC, 0);
+        }
+        for (int z = 0; z < ZONE_NAMES.length; z++) {
+            if (equals(in, from, to, ZONE_NAMES[z])) {
+                return toTimestamp(memo, year, month, day, hour, minute, second, millis, ZONES[z], 0);
+            }
+        }
+        DateTimeZone zone = zoneForId(in, from, to);
+        if (zone == null) {
+            return null;
+        }
+        return toTimestamp(memo, year, month, day, hour, minute, second, millis, zone, 0);
+    }
+
+    /*
+     * The zone with the ID in in[from, to), or null if Joda does not know it. The zone comes from the
+     * sender, so the result is remembered by the bytes, unknown IDs too: a device that always sends the
+     * same zone neither builds a String nor checks the ID again. The table is direct mapped and a
+     * collision replaces the entry. Entries are immutable, like in CEFInternCache.
+     */
+    private static DateTimeZone zoneForId(byte[] in, int from, int to) {
+        int length = to - from;
+        if (length > MAX_ZONE_ID_LENGTH) {
+            return null;
+        }
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            if (!isZoneIdByte(in[i])) {
+                return null;
+            }
+            hash = 31 * hash + in[i];
+        }
+        hash ^= hash >>> 16;
+
+        int slot = hash & (ZONE_CACHE_SIZE - 1);
+        ZoneEntry entry = ZONE_CACHE[slot];
+        if (entry == null || !entry.matches(hash, in, from, length)) {
+            String id = new String(in, from, length, StandardCharsets.US_ASCII);
+            //Checked first, forID() throws for IDs it does not know.
+            entry = new ZoneEntry(hash, Arrays.copyOfRange(in, from, to), ZONE_IDS.contains(id) ? DateTimeZone.forID(id) : null);
+            ZONE_CACHE[slot] = entry;
+        }
+        return entry.zone;
+    }
+
+    //Letters, digits and the / _ - + of IDs like America/Port-au-Prince or Etc/GMT+5.
+    private static boolean isZoneIdByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || isDigit(b) || b == '/' || b == '_' || b == '-' || b == '+';
+    }
+
+    //+hh:mm, +hhmm or +hh in in[from, to) in minutes, or Integer.MIN_VALUE.
+    private static int offsetMinutes(byte[] in, int from, int to) {
+        int length = to - from;
+        int hours;
+        int minutes;
+        if (length == 3 && digits(in, from + 1, 2)) {
+            hours = number(in, from + 1, 2);
+            minutes = 0;
+        } else if (length == 5 && digits(in, from + 1, 4)) {
+            hours = number(in, from + 1, 2);
+            minutes = number(in, from + 3, 2);
+        } else if (length == 6 && in[from + 3] == ':' && digits(in, from + 1, 2) && digits(in, from + 4, 2)) {
+            hours = number(in, from + 1, 2);
+            minutes = number(in, from + 4, 2);
+        } else {
+            return Integer.MIN_VALUE;
+        }
+        if (hours > 23 || minutes > 59) {
+            return Integer.MIN_VALUE;
+        }
+        int offset = hours * 60 + minutes;
+        return in[from] == '-' ? -offset : offset;
+    }
+
+    private static DateTime toTimestamp(Memo memo, int year, int month, int day, int hour, int minute, int second,
+                                        int millis, DateTimeZone zone, int offsetMinutes) {
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59) {
+            return null;
+        }
+        long key = (long) (offsetMinutes + 2048) << 40 | (long) year << 26 | month << 22 | day << 17 | hour << 12 | minute << 6 | second;
+        long instant = memo.get(key, zone);
+        if (instant == Long.MIN_VALUE) {
+            MISSES.increment();
+            if (day > ISO_UTC.dayOfMonth().getMaximumValue(ISO_UTC.getDateTimeMillis(year, month, 1, 0))) {
+                return null;
+            }
+            long local = ISO_UTC.getDateTimeMillis(year, month, day, hour, minute, second, 0);
+            instant = zone.convertLocalToUTC(local, false) - offsetMinutes * 60_000L;
+            memo.put(key, zone, instant);
+        } else {
+            HITS.increment();
+        }
+        return new DateTime(instant + millis, DateTimeZone.UTC);
+    }
+
+    private static CEFTimestamps get() {
+        return MEMOS.get();
+    }
+
+    public static long hits() {
+        return HITS.sum();
+    }
+
+    public static long misses() {
+        return MISSES.sum();
+    }
+
+    //Share of timestamp fields whose second was served from the memo, for all decoder threads.
+    public static RatioGauge hitRatio() {
+        return new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                long hits = HITS.sum();
+                return Ratio.of(hits, hits + MISSES.sum());
+            }
+        };
+    }
+
+    //The first 3 of n fraction digits at in[i], as milliseconds.
+    private static int millis(byte[] in, int i, int n) {
+        int millis = number(in, i, Math.min(n, 3));
+        for (int j = n; j < 3; j++) {
+            millis *= 10;
+        }
+        return millis;
+    }
+
+    private static boolean equals(byte[] in, int from, int to, byte[] name) {
+        if (name.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (in[from + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(byte[] in, int i, int to) {
+        while (i < to && in[i] == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    //Number of digits at in[i], at most max.
+    private static int digits(byte[] in, int i, int to, int max) {
+        int n = 0;
+        while (n < max && i + n < to && isDigit(in[i + n])) {
+            n++;
+        }
+        return n;
+    }
+
+    //True if in[i, i + n) are all digits. The caller checked the length.
+    private static boolean digits(byte[] in, int i, int n) {
+        for (int j = i; j < i + n; j++) {
+            if (!isDigit(in[j])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int number(byte[] in, int i, int digits) {
+        int value = 0;
+        for (int j = i; j < i + digits; j++) {
+            value = value * 10 + (in[j] - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    //A zone ID and its zone, null if there is no zone with that ID.
+    private static final class ZoneEntry {
+        private final int hash;
+        private final byte[] bytes;
+        private final DateTimeZone zone;
+
+        private ZoneEntry(int hash, byte[] bytes, DateTimeZone zone) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.zone = zone;
+        }
+
+        private boolean matches(int hash, byte[] in, int from, int length) {
+            return this.hash == hash && CEFTimestamps.equals(in, from, from + length, bytes);
+        }
+    }
+
+    //UTC instant of the last two seconds of one format. A zone of null marks an empty slot.
+    private static final class Memo {
+        private long key0;
+        private DateTimeZone zone0;
+        private long instant0;
+
+        private long key1;
+        private DateTimeZone zone1;
+        private long instant1;
+
+        //Long.MIN_VALUE if the second is not remembered.
+        private long get(long key, DateTimeZone zone) {
+            if (key == key0 && zone.equals(zone0)) {
+                return instant0;
+            }
+            if (key == key1 && zone.equals(zone1)) {
+                return instant1;
+            }
+            return Long.MIN_VALUE;
+        }
+
+        private void put(long key, DateTimeZone zone, long instant) {
+            key1 = key0;
+            zone1 = zone0;
+            instant1 = instant0;
+
+            key0 = key;
+            zone0 = zone;
+            instant0 = instant;
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nullable;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/*
+ * How the extension of one device product is read. Fortinet, Palo Alto, Check Point and Trend Micro all
+ * put different things into cs1-cs6 and cn1-cn3 and add keys of their own, a profile says for each of
+ * those keys which name and type it gets in the message, or that it is dropped.
+ *
+ * A custom field with a name no longer needs its label: the name is known before the message arrives,
+ * so the label is neither looked up nor turned into a String. Without a name, a rule for a custom field
+ * only changes its type and the field keeps the name of its label. Rules for labels themselves are not
+ * allowed, a rule for an unknown key also keeps it if it ends with "Label". Two rules may not give the
+ * same name. A renamed field wins over a field of the message that has its name, see CEFFields.
+ *
+ * The rules are compiled into a table by CEFExtensionKey.index() for dictionary keys and a hash table
+ * on the key bytes for all other keys, which CEFFieldsParser checks while it adds the fields. A product
+ * of null matches all products of the vendor. See CEFVendorProfiles for the registry.
+ */
+public final class CEFVendorProfile {
+
+    private final String vendor;
+    private final String product;
+    private final ImmutableMap<String, Rule> rules;
+
+    //Compiled rule of every dictionary key by index(), or null.
+    private final Field[] dictionary = new Field[CEFExtensionKey.count()];
+    //Compiled rules of all other keys, null if there are none.
+    private final Field[] others;
+
+    public CEFVendorProfile(String vendor, @Nullable String product, Map<String, Rule> rules) {
+        this.vendor = Objects.requireNonNull(vendor, "vendor");
+        this.product = product;
+        this.rules = ImmutableMap.copyOf(rules);
+
+        Set<String> names = new HashSet<>();
+        for (Map.Entry<String, Rule> entry : this.rules.entrySet()) {
+            String name = entry.getValue().name();
+            if (name != null && !entry.getValue().drop() && !names.add(name)) {
+                throw new IllegalArgumentException("Profile " + this + " names more than one field " + name + ".");
+            }
+        }
+
+        int size = Integer.highestOneBit(Math.max(1, rules.size()) * 2 - 1) << 1;
+        Field[] others = new Field[size];
+        boolean hasOthers = false;
+        for (Map.Entry<String, Rule> entry : this.rules.entrySet()) {
+            String key = entry.getKey();
+            Rule rule = entry.getValue();
+            CEFExtensionKey known = CEFExtensionKey.forName(key);
+            if (known == null) {
+                Field field = new Field(key, rule.name() == null ? key : rule.name(), rule.name() != null, null,
+                        rule.type() == null ? null : CEFExtensionKey.external(key, rule.type()), rule.drop());
+                int slot = field.hash & (size - 1);
+                while (others[slot] != null) {
+                    slot = (slot + 1) & (size - 1);
+                }
+                others[slot] = field;
+                hasOthers = true;
+            } else if (known.isLabel()) {
+                throw new IllegalArgumentException("Profile " + this + " has a rule for the label " + key + ", name the custom field instead.");
+            } else {
+                dictionary[known.index()] = new Field(key, rule.name() == null ? known.name() : rule.name(),
+                        rule.name() == null ? known.fullName() : rule.name(), rule.name() != null, known,
+                        rule.type() == null ? known : known.withType(rule.type()), rule.drop());
+            }
+        }
+        this.others = hasOthers ? others : null;
+    }
+
+    public String vendor() {
+        return vendor;
+    }
+
+    //null for all products of the vendor.
+    @Nullable
+    public String product() {
+        return product;
+    }
+
+    public ImmutableMap<String, Rule> rules() {
+        return rules;
+    }
+
+    //The rule for a dictionary key, or null.
+    Field field(CEFExtensionKey key) {
+        return dictionary[key.index()];
+    }
+
+    //The rule for the unescaped key in in[from, to) that is not in the dictionary, or null.
+    Field field(byte[] in, int from, int to) {
+        if (others == null) {
+            return null;
+        }
+        int mask = others.length - 1;
+        int hash = CEFExtensionKey.hash(in, from, to);
+        for (int slot = hash & mask; others[slot] != null; slot = (slot + 1) & mask) {
+            Field field = others[slot];
+            if (field.hash == hash && field.matches(in, from, to)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return product == null ? vendor : vendor + "/" + product;
+    }
+
+    //What a profile does with one key. name and type may be null to keep the ones the key has.
+    public static final class Rule {
+        public static final Rule DROP = new Rule(null, null, true);
+
+        private final String name;
+        private final CEFExtensionKey.Type type;
+        private final boolean drop;
+
+        public Rule(@Nullable String name, @Nullable CEFExtensionKey.Type type) {
+            this(name, type, false);
+        }
+
+        private Rule(String name, CEFExtensionKey.Type type, boolean drop) {
+            this.name = name;
+            this.type = type;
+            this.drop = drop;
+        }
+
+        @Nullable
+        public String name() {
+            return name;
+        }
+
+        @Nullable
+        public CEFExtensionKey.Type type() {
+            return type;
+        }
+
+        public boolean drop() {
+            return drop;
+        }
+    }
+
+    //A compiled rule.
+    static final class Field {
+        private final byte[] bytes;
+        private final int hash;
+        private final String name;
+        private final String fullName;
+        private final boolean renamed;
+        private final CEFExtensionKey key;
+        private final CEFExtensionKey descriptor;
+        private final boolean drop;
+
+        private Field(String key, String name, boolean renamed, CEFExtensionKey known, CEFExtensionKey descriptor, boolean drop) {
+            this(key, name, name, renamed, known, descriptor, drop);
+        }
+
+        private Field(String key, String name, String fullName, boolean renamed, CEFExtensionKey known, CEFExtensionKey descriptor, boolean drop) {
+            this.bytes = key.getBytes(Charsets.UTF_8);
+            this.hash = CEFExtensionKey.hash(bytes, 0, bytes.length);
+            this.name = name;
+            this.fullName = fullName;
+            this.renamed = renamed;
+            this.key = known;
+            this.descriptor = descriptor;
+            this.drop = drop;
+        }
+
+        private boolean matches(byte[] in, int from, int to) {
+            if (bytes.length != to - from) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != in[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //The field name, see CEFExtensionKey.fieldName().
+        String name(boolean fullNames) {
+            return fullNames ? fullName : name;
+        }
+
+        //True if the profile gives the field its name. Custom fields then skip their label.
+        boolean renamed() {
+            return renamed;
+        }
+
+        //Type of the value, null for Strings.
+        CEFExtensionKey descriptor() {
+            return descriptor;
+        }
+
+        boolean drop() {
+            return drop;
+        }
+
+        //Dictionary keys under their own name were already decided when the projection was compiled.
+        boolean keptBy(CEFProjection projection) {
+            return key != null && !renamed ? projection.keeps(key) : projection.keeps(name);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package org.graylog.plugins.cef.parser;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Registry of CEFVendorProfiles. CEFParser selects the profile of a message once, right after the
+ * header, by the hash of its (device vendor, device product) tuple. A profile for the exact tuple wins
+ * over one for all products of the vendor.
+ *
+ * Profiles are read from a JSON file like
+ *
+ *   {"profiles": [
+ *     {"vendor": "Fortinet", "product": "Fortigate", "fields": {
+ *       "cs1": {"name": "policy_name"},
+ *       "cn1": {"name": "session_duration", "type": "long"},
+ *       "FTNTFGTsentbyte": {"type": "long"},
+ *       "cs6": {"drop": true}}}]}
+ *
+ * with the types string, integer, long, float, double and timestamp. Timestamps stay text unless the
+ * parser converts them, see CEFParser.Timestamps. Loaded files are kept by path, Graylog creates
+ * a codec for every message. The inputs load the file again when they start, so a changed file is
+ * picked up by restarting the input.
+ */
+public final class CEFVendorProfiles {
+    public static final CEFVendorProfiles NONE = new CEFVendorProfiles(ImmutableList.of());
+
+    private static final Logger LOG = LoggerFactory.getLogger(CEFVendorProfiles.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ConcurrentMap<String, CEFVendorProfiles> LOADED = new ConcurrentHashMap<>();
+
+    private final ImmutableList<CEFVendorProfile> profiles;
+    private final CEFVendorProfile[] table;
+    private final int[] hashes;
+
+    public CEFVendorProfiles(List<CEFVendorProfile> profiles) {
+        this.profiles = ImmutableList.copyOf(profiles);
+
+        int size = Integer.highestOneBit(Math.max(1, profiles.size()) * 2 - 1) << 1;
+        this.table = new CEFVendorProfile[size];
+        this.hashes = new int[size];
+        for (CEFVendorProfile profile : profiles) {
+            int hash = hash(profile.vendor(), profile.product());
+            int slot = hash & (size - 1);
+            for (; table[slot] != null; slot = (slot + 1) & (size - 1)) {
+                if (table[slot].vendor().equals(profile.vendor()) && Objects.equals(table[slot].product(), profile.product())) {
+                    throw new IllegalArgumentException("Duplicate CEF vendor profile " + profile);
+                }
+            }
+            table[slot] = profile;
+            hashes[slot] = hash;
+        }
+    }
+
+    /*
+     * The profiles in the file at path, loaded on first use. A file that cannot be loaded is logged once
+     * and no profiles are used. An empty path means no profiles.
+     */
+    public static CEFVendorProfiles forFile(@Nullable String path) {
+        if (Strings.isNullOrEmpty(path)) {
+            return NONE;
+        }
+        return LOADED.computeIfAbsent(path, p -> {
+            try {
+                return read(p);
+            } catch (Exception e) {
+                LOG.warn("Could not load CEF vendor profiles from " + p + ". Parsing without them. Please check the error message:", e);
+                return NONE;
+            }
+        });
+    }
+
+    //Loads the file at path again for forFile(). Called when an input starts, errors are thrown.
+    public static CEFVendorProfiles load(@Nullable String path) throws IOException {
+        if (Strings.isNullOrEmpty(path)) {
+            return NONE;
+        }
+        CEFVendorProfiles profiles = read(path);
+        LOADED.put(path, profiles);
+        return profiles;
+    }
+
+    private static CEFVendorProfiles read(String path) throws IOException {
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            return read(in);
+        }
+    }
+
+    static CEFVendorProfiles read(InputStream in) throws IOException {
+        JsonNode root = MAPPER.readTree(in);
+        JsonNode profiles = root == null ? null : root.get("profiles");
+        if (profiles == null || !profiles.isArray()) {
+            throw new IOException("Expected an object with a \"profiles\" array.");
+        }
+
+        ImmutableList.Builder<CEFVendorProfile> result = ImmutableList.builder();
+        for (JsonNode profile : profiles) {
+            String vendor = profile.path("vendor").asText(null);
+            if (Strings.isNullOrEmpty(vendor)) {
+                throw new IOException("Profile without a vendor: " + profile);
+            }
+            String product = Strings.emptyToNull(profile.path("product").asText(null));
+
+            Map<String, CEFVendorProfile.Rule> rules = new LinkedHashMap<>();
+            for (Iterator<Map.Entry<String, JsonNode>> fields = profile.path("fields").fields(); fields.hasNext(); ) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                rules.put(field.getKey(), rule(field.getKey(), field.getValue()));
+            }
+            try {
+                result.add(new CEFVendorProfile(vendor, product, rules));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        try {
+            return new CEFVendorProfiles(result.build());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static CEFVendorProfile.Rule rule(String key, JsonNode rule) throws IOException {
+        if (rule.path("drop").asBoolean(false)) {
+            return CEFVendorProfile.Rule.DROP;
+        }
+        String name = Strings.emptyToNull(rule.path("name").asText(null));
+        String type = rule.path("type").asText(null);
+        try {
+            return new CEFVendorProfile.Rule(name, type == null ? null : CEFExtensionKey.Type.valueOf(type.toUpperCase(Locale.ENGLISH)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown type " + type + " for " + key + ".", e);
+        }
+    }
+
+    //The profile for the header tuple, or null.
+    @Nullable
+    public CEFVendorProfile profile(String vendor, String product) {
+        if (profiles.isEmpty()) {
+            return null;
+        }
+        CEFVendorProfile profile = lookup(vendor, product);
+        return profile != null ? profile : lookup(vendor, null);
+    }
+
+    private CEFVendorProfile lookup(String vendor, String product) {
+        int mask = table.length - 1;
+        int hash = hash(vendor, product);
+        for (int slot = hash & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            CEFVendorProfile profile = table[slot];
+            if (hashes[slot] == hash && profile.vendor().equals(vendor) && Objects.equals(profile.product(), product)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    private static int hash(String vendor, String product) {
+        int hash = vendor.hashCode() * 31 + (product == null ? 0 : product.hashCode());
+        return hash ^ (hash >>> 16);
+    }
+
+    public ImmutableList<CEFVendorProfile> profiles() {
+        return profiles;
+    }
+
+}
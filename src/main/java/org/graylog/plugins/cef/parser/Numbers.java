@@ -0,0 +1,134 @@
+package org.graylog.plugins.cef.parser;
+
+/*
+ * Parses numbers straight from ASCII ranges of a payload.
+ * Only the plain forms that make up nearly all CEF values are handled here: an optional sign followed
+ * by digits, with an optional decimal point for floating point values. Everything else returns null
+ * and the caller falls back to the java.lang parsers on the decoded String, so the accepted formats
+ * and the results stay exactly the same.
+ */
+final class Numbers {
+
+    //Up to 18 digits always fit into a long.
+    private static final int MAX_LONG_DIGITS = 18;
+
+    //Decimals with up to 15 (double) or 7 (float) significant digits are exact in the mantissa, and so
+    //are the powers of ten up to 10^22 (double) and 10^10 (float). A single division of two exact
+    //values is correctly rounded, which is what Double.valueOf() and Float.valueOf() return as well.
+    private static final int MAX_DOUBLE_DIGITS = 15;
+    private static final int MAX_FLOAT_DIGITS = 7;
+    private static final double[] DOUBLE_POWERS = new double[23];
+    private static final float[] FLOAT_POWERS = new float[11];
+
+    static {
+        DOUBLE_POWERS[0] = 1;
+        for (int i = 1; i < DOUBLE_POWERS.length; i++) {
+            DOUBLE_POWERS[i] = DOUBLE_POWERS[i - 1] * 10;
+        }
+        FLOAT_POWERS[0] = 1;
+        for (int i = 1; i < FLOAT_POWERS.length; i++) {
+            FLOAT_POWERS[i] = FLOAT_POWERS[i - 1] * 10;
+        }
+    }
+
+    private Numbers() {
+    }
+
+    static Integer parseInt(byte[] in, int from, int to) {
+        Long value = parseLong(in, from, to);
+        if (value == null || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return null;
+        }
+        return value.intValue();
+    }
+
+    static Long parseLong(byte[] in, int from, int to) {
+        boolean negative = from < to && in[from] == '-';
+        if (from < to && (negative || in[from] == '+')) {
+            from++;
+        }
+        if (from == to || to - from > MAX_LONG_DIGITS) {
+            return null;
+        }
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = in[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    static Double parseDouble(byte[] in, int from, int to) {
+        long decimal = decimal(in, from, to, MAX_DOUBLE_DIGITS, DOUBLE_POWERS.length - 1);
+        if (decimal == -1) {
+            return null;
+        }
+        double value = mantissa(decimal) / DOUBLE_POWERS[scale(decimal)];
+        return in[from] == '-' ? -value : value;
+    }
+
+    static Float parseFloat(byte[] in, int from, int to) {
+        long decimal = decimal(in, from, to, MAX_FLOAT_DIGITS, FLOAT_POWERS.length - 1);
+        if (decimal == -1) {
+            return null;
+        }
+        float value = mantissa(decimal) / FLOAT_POWERS[scale(decimal)];
+        return in[from] == '-' ? -value : value;
+    }
+
+    /*
+     * Scans [+-]digits[.digits] and returns the digits as an integer in the upper bits and the number of
+     * digits after the decimal point in the lower 8 bits. Returns -1 if the range has another form or
+     * needs more digits than the fast path can handle exactly.
+     */
+    private static long decimal(byte[] in, int from, int to, int maxDigits, int maxScale) {
+        if (from < to && (in[from] == '-' || in[from] == '+')) {
+            from++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (int i = from; i < to; i++) {
+            byte b = in[i];
+            if (b == '.' && scale == -1) {
+                scale = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            mantissa = mantissa * 10 + digit;
+            if (mantissa != 0 && ++digits > maxDigits) {
+                return -1;
+            }
+            if (scale != -1) {
+                scale++;
+            }
+        }
+
+        //"." and "" are not numbers, "5." and ".5" are.
+        if (to - from == (scale == -1 ? 0 : 1)) {
+            return -1;
+        }
+        scale = Math.max(scale, 0);
+        if (scale > maxScale) {
+            return -1;
+        }
+        return mantissa << 8 | scale;
+    }
+
+    private static long mantissa(long decimal) {
+        return decimal >>> 8;
+    }
+
+    private static int scale(long decimal) {
+        return (int) (decimal & 0xFF);
+    }
+
+}
@@ -0,0 +1,67 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Helpers to build Strings straight from ranges of a UTF-8 payload.
+ * All CEF delimiters (| \ = and space) are ASCII and can never show up inside a multi-byte UTF-8
+ * sequence, so the parsers scan the raw bytes and only come here for the values they keep.
+ */
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /*
+     * Decodes in[from, to). If the scanner saw no byte >= 0x80 we can skip UTF-8 decoding entirely,
+     * ISO-8859-1 maps every ASCII byte 1:1 and is a plain copy on the JVM.
+     */
+    static String decode(byte[] in, int from, int to, boolean ascii) {
+        if (from >= to) {
+            return "";
+        }
+        return new String(in, from, to - from, ascii ? Charsets.ISO_8859_1 : Charsets.UTF_8);
+    }
+
+    /*
+     * Decodes in[from, to) and drops the backslash of every escape sequence on the way.
+     * The scanners already made sure that only valid escapes are left in the range, so every
+     * backslash simply means "take the next character literally". A dangling backslash at the
+     * end of the range is dropped, just like the String based splitters do.
+     */
+    static String unescape(byte[] in, int from, int to, boolean ascii) {
+        if (!ascii) {
+            return unescape(decode(in, from, to, false));
+        }
+
+        char[] out = new char[to - from];
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            byte b = in[i];
+            if (b == '\\') {
+                if (++i == to) {
+                    break;
+                }
+                b = in[i];
+            }
+            out[length++] = (char) b;
+        }
+        return new String(out, 0, length);
+    }
+
+    private static String unescape(String in) {
+        StringBuilder out = new StringBuilder(in.length());
+        for (int i = 0; i < in.length(); i++) {
+            char c = in.charAt(i);
+            if (c == '\\') {
+                if (++i == in.length()) {
+                    break;
+                }
+                c = in.charAt(i);
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+
+}
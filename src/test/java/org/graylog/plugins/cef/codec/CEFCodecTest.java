@@ -0,0 +1,103 @@
+package org.graylog.plugins.cef.codec;
+
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.cef.parser.CEFLimits;
+import org.graylog.plugins.cef.parser.CEFParseResult;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CEFCodecTest {
+
+    private static final InetSocketAddress REMOTE = new InetSocketAddress("10.1.2.3", 514);
+
+    private static CEFCodec codec() {
+        return new CEFCodec(new Configuration(ImmutableMap.<String, Object>of("timezone", "UTC")));
+    }
+
+    private static RawMessage raw(String payload) {
+        return new RawMessage(payload.getBytes(StandardCharsets.UTF_8), REMOTE);
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        Message m = codec().decode(raw("<132>Aug 14 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|User missed the password more than one time|10|dvc=ip-172-30-2-212 spt=22 cs2=auth.log cs2Label=Location msg=hello"));
+
+        assertNotNull(m);
+        assertEquals("OSSEC HIDS: [2502, VERY HIGH] User missed the password more than one time", m.getMessage());
+        assertEquals("ip-172-30-2-212", m.getSource());
+        assertEquals("Trend Micro Inc.", m.getField("device_vendor"));
+        assertEquals(10, m.getField("severity_number"));
+        assertEquals(22, m.getField("spt"));
+        assertEquals("auth.log", m.getField("Location"));
+        assertEquals("hello", m.getField("msg"));
+    }
+
+    @Test
+    public void testDecodeRemoteSource() throws Exception {
+        Message m = codec().decode(raw("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|spt=22"));
+        assertEquals("/10.1.2.3", m.getSource());
+    }
+
+    @Test
+    public void testDecodeFailure() throws Exception {
+        try {
+            codec().decode(raw("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|garbage|spt=22"));
+            fail("Expected a CEFDecodeException");
+        } catch (CEFDecodeException e) {
+            assertEquals(CEFParseResult.Failure.INVALID_SEVERITY, e.failure());
+            assertSame(e, CEFDecodeException.of(CEFParseResult.Failure.INVALID_SEVERITY));
+            assertEquals(0, e.getStackTrace().length);
+        }
+    }
+
+
+    @Test
+    public void testDecodeMessages() throws Exception {
+        String payload = "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|first|Low|spt=22\n"
+                + "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|bad|garbage|spt=22\n"
+                + "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|second|Low|dvc=host\n";
+
+        // Without split_records the whole payload is one message.
+        Collection<Message> single = codec().decodeMessages(raw("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|first|Low|msg=a\nb"));
+        assertEquals(1, single.size());
+        assertEquals("a\nb", single.iterator().next().getField("msg"));
+
+        CEFCodec codec = new CEFCodec(new Configuration(ImmutableMap.<String, Object>of("timezone", "UTC", "split_records", true)));
+        List<Message> messages = new ArrayList<>(codec.decodeMessages(raw(payload)));
+        assertEquals(2, messages.size());
+        assertEquals(22, messages.get(0).getField("spt"));
+        assertEquals("/10.1.2.3", messages.get(0).getSource());
+        assertEquals("host", messages.get(1).getSource());
+
+        try {
+            codec.decodeMessages(raw("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|bad|garbage|spt=22\nnot cef"));
+            fail("Expected a CEFDecodeException");
+        } catch (CEFDecodeException e) {
+            assertEquals(CEFParseResult.Failure.MISSING_HEADER_FIELDS, e.failure());
+        }
+        assertNull(codec.decodeMessages(raw("\n\r\n")));
+    }
+
+    @Test
+    public void testPayloadLimit() throws Exception {
+        CEFCodec codec = new CEFCodec(new Configuration(ImmutableMap.<String, Object>of("timezone", "UTC", "max_payload_size", 71)));
+        String payload = "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|spt=22 msg=\u00e4\u00e4\u00e4\u00e4\u00e4\u00e4\u00e4\u00e4";
+
+        Message m = codec.decode(raw(payload));
+        assertEquals(22, m.getField("spt"));
+        assertEquals("\u00e4\u00e4", m.getField("msg"));
+        assertEquals(payload.getBytes(StandardCharsets.UTF_8).length, m.getField(CEFLimits.PAYLOAD_TRUNCATED));
+
+        assertNull(codec().decode(raw(payload)).getField(CEFLimits.PAYLOAD_TRUNCATED));
+    }
+}
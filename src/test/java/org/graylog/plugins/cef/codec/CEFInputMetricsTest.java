@@ -0,0 +1,118 @@
+package org.graylog.plugins.cef.codec;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.cef.parser.CEFParseResult;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.graylog2.plugin.system.NodeId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class CEFInputMetricsTest {
+
+    private static final String INPUT_ID = "cef-input-metrics-test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MetricRegistry registry;
+    private CEFInputMetrics metrics;
+    private NodeId nodeId;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new MetricRegistry();
+        metrics = new CEFInputMetrics(registry);
+        metrics.bind(INPUT_ID);
+
+        File nodeIdFile = folder.newFile("node-id");
+        Files.write(nodeIdFile.toPath(), "node-1".getBytes(StandardCharsets.UTF_8));
+        nodeId = new NodeId(nodeIdFile.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        metrics.unbind(INPUT_ID);
+    }
+
+    private RawMessage raw(String inputId, String payload) {
+        RawMessage raw = new RawMessage(payload.getBytes(StandardCharsets.UTF_8), new InetSocketAddress("10.1.2.3", 514));
+        raw.addSourceNode(inputId, nodeId);
+        return raw;
+    }
+
+    private static void decode(RawMessage raw) {
+        new CEFCodec(new Configuration(ImmutableMap.<String, Object>of("timezone", "UTC"))).decode(raw);
+    }
+
+    private static String name(String... names) {
+        return MetricRegistry.name(CEFCodec.class, names);
+    }
+
+    @Test
+    public void testDecoded() throws Exception {
+        String payload = "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|spt=22 dpt=80 msg=hello";
+        decode(raw(INPUT_ID, payload));
+        decode(raw(INPUT_ID, payload));
+
+        assertEquals(2, registry.timer(name("parse", "header")).getCount());
+        assertEquals(2, registry.timer(name("parse", "extension")).getCount());
+        assertEquals(2, registry.timer(name("parse", "build")).getCount());
+        assertEquals(3, registry.histogram(name("field-count")).getSnapshot().getMax());
+        assertEquals(payload.length(), registry.histogram(name("payload-size")).getSnapshot().getMax());
+        assertEquals(2, registry.meter(name("products", "Trend Micro Inc.", "OSSEC HIDS")).getCount());
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        try {
+            decode(raw(INPUT_ID, "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|garbage|spt=22"));
+            fail("Expected a CEFDecodeException");
+        } catch (CEFDecodeException expected) {
+        }
+
+        assertEquals(1, registry.counter(name("rejected", "invalid_severity")).getCount());
+        assertEquals(0, registry.counter(name("rejected", "not_cef")).getCount());
+        assertEquals(1, registry.histogram(name("payload-size")).getCount());
+        assertEquals(0, registry.timer(name("parse", "header")).getCount());
+        assertEquals(0, registry.timer(name("parse", "build")).getCount());
+    }
+
+    @Test
+    public void testOtherInputs() throws Exception {
+        decode(raw("some-other-input", "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|spt=22"));
+        assertEquals(0, registry.histogram(name("payload-size")).getCount());
+    }
+
+    @Test
+    public void testBoundedProducts() throws Exception {
+        for (int i = 0; i < CEFInputMetrics.MAX_PRODUCTS + 10; i++) {
+            metrics.decoded("vendor", "product-" + i, 1, 1);
+        }
+        metrics.decoded("vendor", "product-0", 1, 1);
+
+        assertEquals(2, registry.meter(name("products", "vendor", "product-0")).getCount());
+        assertEquals(10, registry.meter(name("products", "other")).getCount());
+        assertEquals(CEFInputMetrics.MAX_PRODUCTS + 1, registry.getMeters().size());
+    }
+
+    @Test
+    public void testRejectedFailureNames() throws Exception {
+        for (CEFParseResult.Failure failure : CEFParseResult.Failure.values()) {
+            metrics.rejected(failure);
+        }
+        assertEquals(CEFParseResult.Failure.values().length, registry.getCounters().size());
+    }
+
+}
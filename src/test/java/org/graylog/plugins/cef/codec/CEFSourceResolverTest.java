@@ -0,0 +1,78 @@
+package org.graylog.plugins.cef.codec;
+
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.ResolvableInetSocketAddress;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CEFSourceResolverTest {
+
+    private static final ResolvableInetSocketAddress REMOTE = address(10, 1, 2, 3);
+
+    private static ResolvableInetSocketAddress address(int a, int b, int c, int d) {
+        try {
+            InetAddress address = InetAddress.getByAddress(new byte[]{(byte) a, (byte) b, (byte) c, (byte) d});
+            return ResolvableInetSocketAddress.wrap(new InetSocketAddress(address, 514));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testSharedByPrecedence() throws Exception {
+        CEFSourceResolver resolver = CEFSourceResolver.forPrecedence("dvchost,remote");
+
+        assertSame(resolver, CEFSourceResolver.forPrecedence(new String("dvchost,remote")));
+        assertNotSame(resolver, CEFSourceResolver.forPrecedence("shost,remote"));
+        assertSame(resolver, CEFSourceResolver.forPrecedence("dvchost,remote"));
+    }
+
+    @Test
+    public void testDefaultPrecedence() throws Exception {
+        CEFSourceResolver resolver = CEFSourceResolver.forPrecedence(CEFSourceResolver.DEFAULT_PRECEDENCE);
+
+        assertEquals("ip-172-30-2-212", resolver.resolve(ImmutableMap.of("dvc", "ip-172-30-2-212", "shost", "foo"), REMOTE));
+        assertEquals("/10.1.2.3", resolver.resolve(ImmutableMap.of("dvc", "", "shost", "foo"), REMOTE));
+        assertEquals("/10.1.2.3", resolver.resolve(ImmutableMap.<String, Object>of(), REMOTE));
+        assertEquals("unknown", resolver.resolve(ImmutableMap.<String, Object>of(), null));
+        assertSame(resolver, CEFSourceResolver.forPrecedence(null));
+    }
+
+    @Test
+    public void testCustomPrecedence() throws Exception {
+        CEFSourceResolver resolver = CEFSourceResolver.forPrecedence(" dvc, dvchost ,shost,remote");
+        Map<String, Object> fields = ImmutableMap.of("shost", "shost.example.org", "dvchost", "dvchost.example.org");
+
+        assertEquals("dvchost.example.org", resolver.resolve(fields, REMOTE));
+        assertEquals("shost.example.org", resolver.resolve(ImmutableMap.of("shost", "shost.example.org"), REMOTE));
+
+        CEFSourceResolver remoteFirst = CEFSourceResolver.forPrecedence("remote,dvc");
+        assertEquals("/10.1.2.3", remoteFirst.resolve(fields, REMOTE));
+        assertEquals("unknown", CEFSourceResolver.forPrecedence("dvchost").resolve(ImmutableMap.<String, Object>of(), REMOTE));
+    }
+
+    @Test
+    public void testFullNames() throws Exception {
+        CEFSourceResolver resolver = CEFSourceResolver.forPrecedence("dvc,sourceHostName,remote", true);
+
+        assertEquals("10.0.0.1", resolver.resolve(ImmutableMap.of("deviceAddress", "10.0.0.1", "dvc", "foo"), REMOTE));
+        assertEquals("shost.example.org", resolver.resolve(ImmutableMap.of("sourceHostName", "shost.example.org"), REMOTE));
+        assertEquals("/10.1.2.3", resolver.resolve(ImmutableMap.of("dvc", "foo"), REMOTE));
+        assertNotSame(resolver, CEFSourceResolver.forPrecedence("dvc,sourceHostName,remote"));
+    }
+
+    @Test
+    public void testRemoteAddressIsCached() throws Exception {
+        CEFSourceResolver resolver = CEFSourceResolver.forPrecedence(CEFSourceResolver.REMOTE);
+
+        String first = resolver.resolve(null, address(192, 168, 7, 1));
+        assertEquals("/192.168.7.1", first);
+        assertSame(first, resolver.resolve(null, address(192, 168, 7, 1)));
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.graylog.plugins.cef.codec;
+
+import org.graylog.plugins.cef.parser.CEFMessage;
+import org.graylog.plugins.cef.parser.CEFMessageTest;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CEFSummaryCacheTest {
+
+    @Test
+    public void testSummary() throws Exception {
+        CEFSummaryCache cache = CEFSummaryCache.forSize(100);
+        long hits = cache.stats().hitCount();
+
+        String first = cache.summary(CEFMessageTest.messageWithSeverity(8));
+        assertEquals("Graylog: [12345, HIGH] Some Event", first);
+        assertSame(first, cache.summary(CEFMessageTest.messageWithSeverity(8)));
+        assertEquals(hits + 1, cache.stats().hitCount());
+
+        assertEquals("Graylog: [12345, VERY HIGH] Some Event", cache.summary(CEFMessageTest.messageWithSeverity(10)));
+    }
+
+    @Test
+    public void testSharedBySize() throws Exception {
+        assertSame(CEFSummaryCache.forSize(42), CEFSummaryCache.forSize(42));
+        assertNotSame(CEFSummaryCache.forSize(42), CEFSummaryCache.forSize(43));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        CEFSummaryCache cache = CEFSummaryCache.forSize(0);
+        CEFMessage message = CEFMessageTest.messageWithSeverity(1);
+
+        assertEquals("Graylog: [12345, LOW] Some Event", cache.summary(message));
+        assertEquals("Graylog: [12345, LOW] Some Event", cache.summary(message));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.stats().requestCount());
+    }
+
+    @Test
+    public void testTotals() throws Exception {
+        CEFSummaryCache cache = CEFSummaryCache.forSize(44);
+        long misses = CEFSummaryCache.totalStats().missCount();
+        long size = CEFSummaryCache.totalSize();
+
+        cache.summary(CEFMessageTest.messageWithSeverity(3));
+        assertEquals(misses + 1, CEFSummaryCache.totalStats().missCount());
+        assertEquals(size + 1, CEFSummaryCache.totalSize());
+    }
+
+}
@@ -0,0 +1,142 @@
+package org.graylog.plugins.cef.input;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class CEFFrameDecoderTest {
+
+    private static final String MESSAGE = "<132>Aug 14 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|10|dvc=ip-172-30-2-212 msg=a b";
+
+    private static DecoderEmbedder<ChannelBuffer> embedder(int maxFrameLength) {
+        return new DecoderEmbedder<>(new CEFFrameDecoder(maxFrameLength, false));
+    }
+
+    private static void offer(DecoderEmbedder<ChannelBuffer> embedder, String data) {
+        embedder.offer(ChannelBuffers.wrappedBuffer(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String poll(DecoderEmbedder<ChannelBuffer> embedder) {
+        ChannelBuffer frame = embedder.poll();
+        return frame == null ? null : frame.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String octetCounted(String message) {
+        return message.getBytes(StandardCharsets.UTF_8).length + " " + message;
+    }
+
+    @Test
+    public void testNewlineDelimited() throws Exception {
+        DecoderEmbedder<ChannelBuffer> embedder = embedder(1024);
+        offer(embedder, MESSAGE + "\n" + MESSAGE + "\r\nCEF:0|a|b|c|d|e|Low|");
+        offer(embedder, "spt=22\n");
+
+        assertEquals(MESSAGE, poll(embedder));
+        assertEquals(MESSAGE, poll(embedder));
+        assertEquals("CEF:0|a|b|c|d|e|Low|spt=22", poll(embedder));
+        assertNull(poll(embedder));
+    }
+
+    @Test
+    public void testOctetCounted() throws Exception {
+        DecoderEmbedder<ChannelBuffer> embedder = embedder(1024);
+        String stream = octetCounted(MESSAGE) + octetCounted("CEF:0|ä|b|c|d|e|Low|msg=line\nbreak") + octetCounted(MESSAGE);
+
+        offer(embedder, stream.substring(0, 2));
+        assertNull(poll(embedder));
+        offer(embedder, stream.substring(2, 150));
+        offer(embedder, stream.substring(150));
+
+        assertEquals(MESSAGE, poll(embedder));
+        assertEquals("CEF:0|ä|b|c|d|e|Low|msg=line\nbreak", poll(embedder));
+        assertEquals(MESSAGE, poll(embedder));
+        assertNull(poll(embedder));
+    }
+
+    @Test
+    public void testOctetCountedByteByByte() throws Exception {
+        DecoderEmbedder<ChannelBuffer> embedder = embedder(1024);
+        byte[] stream = (octetCounted(MESSAGE) + octetCounted(MESSAGE)).getBytes(StandardCharsets.UTF_8);
+        for (byte b : stream) {
+            embedder.offer(ChannelBuffers.wrappedBuffer(new byte[]{b}));
+        }
+
+        assertEquals(MESSAGE, poll(embedder));
+        assertEquals(MESSAGE, poll(embedder));
+        assertNull(poll(embedder));
+    }
+
+    @Test
+    public void testDigitsWithoutSpaceAreDelimited() throws Exception {
+        DecoderEmbedder<ChannelBuffer> embedder = embedder(1024);
+        offer(embedder, "2016-08-14 CEF:0|a|b|c|d|e|Low|spt=22\n");
+        assertEquals("2016-08-14 CEF:0|a|b|c|d|e|Low|spt=22", poll(embedder));
+    }
+
+    @Test
+    public void testTooLongOctetCountedFrame() throws Exception {
+        DecoderEmbedder<ChannelBuffer> embedder = embedder(16);
+        try {
+            offer(embedder, "20 01234567890123");
+            fail("Expected a TooLongFrameException");
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof TooLongFrameException);
+        }
+        offer(embedder, "456789" + octetCounted("CEF:0|a|"));
+        assertEquals("CEF:0|a|", poll(embedder));
+    }
+
+    @Test
+    public void testTooLongDelimitedFrame() throws Exception {
+        DecoderEmbedder<ChannelBuffer> embedder = embedder(16);
+        try {
+            offer(embedder, "CEF:0|a|b|c|d|e|Low|");
+            fail("Expected a TooLongFrameException");
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof TooLongFrameException);
+        }
+        offer(embedder, "spt=22\nCEF:0|a|\n");
+        assertEquals("CEF:0|a|", poll(embedder));
+    }
+
+    @Test
+    public void testCorruptedOctetCount() throws Exception {
+        DecoderEmbedder<ChannelBuffer> embedder = embedder(1024);
+        AtomicBoolean closed = new AtomicBoolean();
+        embedder.getPipeline().addFirst("close", new SimpleChannelDownstreamHandler() {
+            @Override
+            public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                closed.set(true);
+                super.closeRequested(ctx, e);
+            }
+        });
+
+        offer(embedder, octetCounted("CEF:0|a|"));
+        assertEquals("CEF:0|a|", poll(embedder));
+        assertFalse(closed.get());
+        try {
+            offer(embedder, "CEF:0|a|");
+            fail("Expected a CorruptedFrameException");
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof CorruptedFrameException);
+        }
+        assertTrue(closed.get());
+
+        // Nothing that arrives before the connection is gone is framed, not even what looks like a frame.
+        offer(embedder, "12 CEF:0|a|b|c|" + octetCounted("CEF:0|a|") + "CEF:0|a|\n");
+        assertNull(poll(embedder));
+    }
+
+}
@@ -0,0 +1,45 @@
+package org.graylog.plugins.cef.parser;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CEFClockTest {
+
+    @Test
+    public void testCurrentYear() throws Exception {
+        DateTimeZone zone = DateTimeZone.forID("Pacific/Kiritimati");
+        CEFClock clock = new CEFClock(zone);
+
+        // THIS WILL BREAK ON NEW YEARS EVE FOR A MOMENT and I don't care
+        assertEquals(DateTime.now(zone).getYear(), clock.currentYear());
+        assertEquals(zone, clock.timezone());
+    }
+
+    @Test
+    public void testForZone() throws Exception {
+        DateTimeZone zone = DateTimeZone.forID("Europe/Berlin");
+        assertSame(CEFClock.forZone(zone), CEFClock.forZone(DateTimeZone.forID("Europe/Berlin")));
+        assertEquals(zone, CEFClock.forZone(zone).timezone());
+        assertNotSame(CEFClock.forZone(zone), CEFClock.forZone(DateTimeZone.UTC));
+    }
+
+    @Test
+    public void testStopAndRestart() throws Exception {
+        CEFClock.stop();
+        assertFalse(CEFClock.ticking());
+
+        // The next clock needs the ticker again.
+        CEFClock clock = new CEFClock(DateTimeZone.UTC);
+        assertTrue(CEFClock.ticking());
+        assertEquals(DateTime.now(DateTimeZone.UTC).getYear(), clock.currentYear());
+    }
+
+    @Test
+    public void testCurrentTimeMillis() throws Exception {
+        long now = System.currentTimeMillis();
+        assertTrue(Math.abs(now - CEFClock.currentTimeMillis()) <= 2000);
+    }
+}
@@ -0,0 +1,97 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CEFErrorReporterTest {
+
+    private static byte[] payload(String payload) {
+        return payload.getBytes(Charsets.UTF_8);
+    }
+
+    @Test
+    public void testSummary() throws Exception {
+        CEFErrorReporter reporter = new CEFErrorReporter();
+        assertNull(reporter.summarize());
+
+        for (int i = 0; i < 10; i++) {
+            reporter.messageFailed(CEFParseResult.Failure.INVALID_SEVERITY, "10.1.2.3", payload("CEF:0|a|b|c|d|e|garbage" + i + "|spt=1"));
+        }
+        reporter.messageFailed(CEFParseResult.Failure.NOT_CEF, "10.1.2.4", payload("hello"));
+        reporter.fieldFailed(CEFErrorReporter.FieldError.CONVERSION_FAILED, "spt", "10.1.2.5");
+        reporter.fieldFailed(CEFErrorReporter.FieldError.CONVERSION_FAILED, "spt", "10.1.2.5");
+        reporter.fieldFailed(CEFErrorReporter.FieldError.INVALID_ESCAPE, null, null);
+
+        String summary = reporter.summarize();
+        assertTrue(summary, summary.startsWith("Skipped 11 malformed CEF messages and found 3 CEF field errors in the last 60 seconds."));
+        assertTrue(summary, summary.contains(" Messages: NOT_CEF=1, INVALID_SEVERITY=10."));
+        assertTrue(summary, summary.contains(" Field errors: CONVERSION_FAILED=2, INVALID_ESCAPE=1."));
+        assertTrue(summary, summary.contains("Fields: spt=2."));
+        assertTrue(summary, summary.contains("10.1.2.3=10"));
+        assertTrue(summary, summary.contains("10.1.2.4=1"));
+        assertTrue(summary, summary.contains("10.1.2.5=2"));
+        assertTrue(summary, summary.contains("\n  Sample: INVALID_SEVERITY: CEF:0|a|b|c|d|e|garbage0|spt=1"));
+        assertTrue(summary, summary.contains("\n  Sample: INVALID_SEVERITY: CEF:0|a|b|c|d|e|garbage2|spt=1"));
+        assertFalse(summary, summary.contains("garbage3"));
+
+        // Every summary starts a new interval, the totals stay.
+        assertNull(reporter.summarize());
+        assertEquals(10, reporter.failures(CEFParseResult.Failure.INVALID_SEVERITY));
+        assertEquals(2, reporter.fieldErrors(CEFErrorReporter.FieldError.CONVERSION_FAILED));
+    }
+
+    @Test
+    public void testBoundedSourcesAndSamples() throws Exception {
+        CEFErrorReporter reporter = new CEFErrorReporter();
+        byte[] large = payload(Strings.repeat("x", 10000));
+
+        for (int i = 0; i < CEFErrorReporter.MAX_SOURCES * 2; i++) {
+            reporter.messageFailed(CEFParseResult.Failure.NOT_CEF, "source-" + i, large);
+        }
+
+        String summary = reporter.summarize();
+        assertTrue(summary, summary.contains("other=" + CEFErrorReporter.MAX_SOURCES));
+        assertTrue(summary, summary.contains("NOT_CEF: " + Strings.repeat("x", CEFErrorReporter.MAX_SAMPLE_LENGTH) + "... (10000 bytes)"));
+        assertFalse(summary, summary.contains(Strings.repeat("x", CEFErrorReporter.MAX_SAMPLE_LENGTH + 1)));
+        assertTrue(summary.length() < CEFErrorReporter.MAX_SAMPLES * 300 + CEFErrorReporter.MAX_SOURCES * 20 + 200);
+    }
+
+    @Test
+    public void testBoundedKeys() throws Exception {
+        CEFErrorReporter reporter = new CEFErrorReporter();
+        for (int i = 0; i < CEFErrorReporter.MAX_KEYS * 2; i++) {
+            reporter.fieldFailed(CEFErrorReporter.FieldError.CONVERSION_FAILED, "ad.key" + i, null);
+        }
+
+        String summary = reporter.summarize();
+        assertTrue(summary, summary.contains("ad.key0=1"));
+        assertTrue(summary, summary.contains("other=" + CEFErrorReporter.MAX_KEYS));
+        assertFalse(summary, summary.contains("Sources:"));
+    }
+
+    @Test
+    public void testStopAndRestart() throws Exception {
+        CEFErrorReporter reporter = CEFErrorReporter.shared();
+        assertTrue(CEFErrorReporter.running());
+
+        CEFErrorReporter.stop();
+        assertFalse(CEFErrorReporter.running());
+
+        assertSame(reporter, CEFErrorReporter.shared());
+        assertTrue(CEFErrorReporter.running());
+    }
+
+    @Test
+    public void testSampleKeepsCharacters() throws Exception {
+        CEFErrorReporter reporter = new CEFErrorReporter();
+        reporter.messageFailed(CEFParseResult.Failure.NOT_CEF, "source", payload(Strings.repeat("x", CEFErrorReporter.MAX_SAMPLE_LENGTH - 1) + "äbc"));
+
+        String summary = reporter.summarize();
+        assertTrue(summary, summary.contains("NOT_CEF: " + Strings.repeat("x", CEFErrorReporter.MAX_SAMPLE_LENGTH - 1) + "... ("));
+        assertFalse(summary, summary.contains("\uFFFD"));
+    }
+
+}
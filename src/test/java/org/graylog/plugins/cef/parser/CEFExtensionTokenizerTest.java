@@ -0,0 +1,123 @@
+package org.graylog.plugins.cef.parser;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CEFExtensionTokenizerTest {
+
+    private static ArrayList<String> keysAndValues(CEFExtensionTokenizer tokenizer) {
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i = 0; i < tokenizer.size(); i++) {
+            result.add(tokenizer.key(i));
+            result.add(tokenizer.value(i));
+        }
+        return result;
+    }
+
+    @Test
+    public void testSpans() throws Exception {
+        byte[] input = "dvc=ip-172-30-2-212 cfp2=90.01".getBytes("UTF-8");
+        CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+
+        assertEquals(CEFExtensionTokenizer.Status.OK, tokenizer.tokenize(input, 0, input.length));
+        assertEquals(2, tokenizer.size());
+
+        assertEquals(0, tokenizer.keyStart(0));
+        assertEquals(3, tokenizer.keyEnd(0));
+        assertEquals(4, tokenizer.valueStart(0));
+        assertEquals(19, tokenizer.valueEnd(0));
+        assertFalse(tokenizer.needsUnescape(0));
+
+        assertEquals(20, tokenizer.keyStart(1));
+        assertEquals(24, tokenizer.keyEnd(1));
+        assertEquals(25, tokenizer.valueStart(1));
+        assertEquals(30, tokenizer.valueEnd(1));
+    }
+
+    @Test
+    public void testMatchesFieldSplit() throws Exception {
+        String input = "dvc=ip-172-30-2-212  cfp2=90.01 cfp2Label=SomeFloat\\=  spt=22 cs2=ip-172-30-2-212->/var/log/auth.log cs2Label=Location msg=\\=Have some \\=escaped\\= equals!\\= logname= uid=0 euid=0 tty=ssh ruser= rhost=8.8.8.8  user=root\\\\";
+        String[] exp = {"dvc", "ip-172-30-2-212 ", "cfp2", "90.01", "cfp2Label", "SomeFloat= ", "spt", "22", "cs2", "ip-172-30-2-212->/var/log/auth.log", "cs2Label", "Location", "msg", "=Have some =escaped= equals!=", "logname", "", "uid", "0", "euid", "0",  "tty", "ssh", "ruser", "", "rhost", "8.8.8.8 ", "user", "root\\"};
+        byte[] bytes = input.getBytes("UTF-8");
+        CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+        tokenizer.tokenize(bytes, 0, bytes.length);
+
+        assertEquals(new ArrayList<String>(Arrays.asList(exp)), keysAndValues(tokenizer));
+        assertTrue(tokenizer.needsUnescape(2));
+        assertFalse(tokenizer.needsUnescape(3));
+    }
+
+    @Test
+    public void testEscapedKey() throws Exception {
+        byte[] input = "a=x\\\\ b\\=c=y".getBytes("UTF-8");
+        CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+        tokenizer.tokenize(input, 0, input.length);
+
+        assertEquals(Arrays.asList("a", "x\\", "b=c", "y"), keysAndValues(tokenizer));
+    }
+
+    @Test
+    public void testNonAscii() throws Exception {
+        byte[] input = "xx suser=jürgen msg=Größe \\= 5 € ok=1 yy".getBytes("UTF-8");
+        CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+        tokenizer.tokenize(input, 3, input.length - 3);
+
+        assertEquals(Arrays.asList("suser", "jürgen", "msg", "Größe = 5 €", "ok", "1"), keysAndValues(tokenizer));
+    }
+
+    @Test
+    public void testInvalidEscape() throws Exception {
+        byte[] input = "dvc=a\\b".getBytes("UTF-8");
+        CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+
+        assertEquals(CEFExtensionTokenizer.Status.INVALID_ESCAPE, tokenizer.tokenize(input, 0, input.length));
+        assertEquals(5, tokenizer.errorPosition());
+        assertEquals(0, tokenizer.size());
+        assertEquals(Arrays.asList("ERROR"), CEFFieldsParser.fieldSplit("dvc=a\\b"));
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+        StringBuilder many = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            many.append("k").append(i).append("=v").append(i).append(' ');
+        }
+        byte[] first = many.toString().trim().getBytes("UTF-8");
+        tokenizer.tokenize(first, 0, first.length);
+        assertEquals(100, tokenizer.size());
+        assertEquals("v99", tokenizer.value(99));
+
+        byte[] second = "src=10.0.0.1".getBytes("UTF-8");
+        tokenizer.tokenize(second, 0, second.length);
+        assertEquals(1, tokenizer.size());
+        assertEquals("10.0.0.1", tokenizer.value(0));
+    }
+
+    @Test
+    public void testTokenizeRecord() throws Exception {
+        byte[] input = "spt=22 msg=a b\r\ndpt=80\n".getBytes("UTF-8");
+        CEFExtensionTokenizer tokenizer = new CEFExtensionTokenizer();
+
+        assertEquals(CEFExtensionTokenizer.Status.OK, tokenizer.tokenizeRecord(input, 0, input.length));
+        assertEquals(Arrays.asList("spt", "22", "msg", "a b"), keysAndValues(tokenizer));
+        assertEquals(15, tokenizer.end());
+
+        assertEquals(CEFExtensionTokenizer.Status.OK, tokenizer.tokenizeRecord(input, 16, input.length));
+        assertEquals(Arrays.asList("dpt", "80"), keysAndValues(tokenizer));
+        assertEquals(22, tokenizer.end());
+
+        input = "msg=a\\b\ndpt=80".getBytes("UTF-8");
+        assertEquals(CEFExtensionTokenizer.Status.INVALID_ESCAPE, tokenizer.tokenizeRecord(input, 0, input.length));
+        assertEquals(7, tokenizer.end());
+
+        // Without record mode a newline is part of the value.
+        assertEquals(CEFExtensionTokenizer.Status.OK, tokenizer.tokenize("msg=a\nb".getBytes("UTF-8"), 0, 7));
+        assertEquals(Arrays.asList("msg", "a\nb"), keysAndValues(tokenizer));
+        assertEquals(7, tokenizer.end());
+    }
+}
@@ -1,9 +1,13 @@
 package org.graylog.plugins.cef.parser;
 
 import autovalue.shaded.com.google.common.common.collect.ImmutableMap;
+import com.google.common.base.Charsets;
 import org.junit.Test;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -193,4 +197,129 @@ public class CEFFieldsParserTest {
         ArrayList<String> result = CEFFieldsParser.fieldSplit(input);
         assertEquals(expected, result);
     }
+
+    @Test
+    public void testParseCustomWithoutLabel() throws Exception {
+        CEFFieldsParser p = new CEFFieldsParser();
+        ImmutableMap<String, Object> r = p.parse("dvc=ip-172-30-2-212 cn1=999 cs1Label=Unused cs2Label=Location cs2=foo fooLabel=bar");
+        assertEquals(2, r.size());
+        assertEquals("ip-172-30-2-212", r.get("dvc"));
+        assertEquals("foo", r.get("Location"));
+    }
+
+    @Test
+    public void testParseEscapedKey() throws Exception {
+        CEFFieldsParser p = new CEFFieldsParser();
+        ImmutableMap<String, Object> r = p.parse("spt=22 a\\\\b=c cs1\\\\Label=x");
+        assertEquals(22, r.get("spt"));
+        assertEquals("c", r.get("a\\b"));
+        assertEquals(2, r.size());
+    }
+
+    @Test
+    public void testParseDuplicateKeys() throws Exception {
+        CEFFieldsParser p = new CEFFieldsParser();
+        assertNull(p.parse("spt=22 spt=23"));
+        assertNull(p.parse("cs1Label=a cs1Label=b"));
+        assertNull(p.parse("foo=1 foo=2"));
+    }
+
+    @Test
+    public void testParseNumberFormats() throws Exception {
+        CEFFieldsParser p = new CEFFieldsParser();
+        ImmutableMap<String, Object> r = p.parse("spt=+22 dpt=-1 in=12345678901 cnt=  3 eventId=-9223372036854775808 slat=1e3 slong=.5 dlat=5. dlong=0x1p3 cfp1=1.5f cfp1Label=f1 cfp2=-0 cfp2Label=f2 cn1=0001 cn1Label=n1");
+        assertEquals(22, r.get("spt"));
+        assertEquals(-1, r.get("dpt"));
+        assertFalse(r.containsKey("in"));
+        assertFalse(r.containsKey("cnt"));
+        assertEquals(Long.MIN_VALUE, r.get("eventId"));
+        assertEquals(1000.0, r.get("slat"));
+        assertEquals(0.5, r.get("slong"));
+        assertEquals(5.0, r.get("dlat"));
+        assertEquals(8.0, r.get("dlong"));
+        assertEquals(1.5F, r.get("f1"));
+        assertEquals(-0.0F, r.get("f2"));
+        assertEquals(1L, r.get("n1"));
+    }
+
+    @Test
+    public void testNumbersMatchValueOf() throws Exception {
+        Random random = new Random(42);
+        for (int n = 0; n < 100000; n++) {
+            String s = (random.nextBoolean() ? "-" : "") + random.nextInt(Integer.MAX_VALUE) + "." + random.nextInt(1000000);
+            s = s.substring(0, 1 + random.nextInt(s.length()));
+            byte[] in = s.getBytes(Charsets.UTF_8);
+
+            Double d = Numbers.parseDouble(in, 0, in.length);
+            if (d != null) {
+                assertEquals(s, Double.valueOf(s), d);
+            }
+            Float f = Numbers.parseFloat(in, 0, in.length);
+            if (f != null) {
+                assertEquals(s, Float.valueOf(s), f);
+            }
+            Long l = Numbers.parseLong(in, 0, in.length);
+            if (l != null) {
+                assertEquals(s, Long.valueOf(s), l);
+            }
+        }
+    }
+
+    @Test
+    public void testParseLazy() throws Exception {
+        CEFFieldsParser p = new CEFFieldsParser();
+        String input = "dvc=ip-172-30-2-212 cfp2=90.01 cfp2Label=SomeFloat spt=22 dpt=nope cs2=foo\\=bar cs2Label=Location msg=Müller";
+        byte[] bytes = input.getBytes(Charsets.UTF_8);
+        CEFFields r = p.parseLazy(bytes, 0, bytes.length);
+
+        assertEquals(22, r.get("spt"));
+        assertEquals(90.01F, r.get("SomeFloat"));
+        assertEquals("foo=bar", r.get("Location"));
+        assertEquals("Müller", r.get("msg"));
+        assertTrue(r.containsKey("dvc"));
+        assertFalse(r.containsKey("dpt"));
+        assertNull(r.get("dpt"));
+        assertFalse(r.containsKey("cfp2"));
+        assertFalse(r.containsKey("cs2Label"));
+        assertNull(r.get(42));
+
+        ImmutableMap<String, Object> eager = p.parse(input);
+        assertEquals(eager, r);
+        assertEquals(eager.hashCode(), r.hashCode());
+        assertEquals(5, r.size());
+    }
+
+    @Test
+    public void testParseLazyKeepsNoBoxedNumbers() throws Exception {
+        byte[] bytes = "spt=4022 dpt=nope cnt=\\=1 msg=hi eventId=12345678901 cfp1=1.5 cfp1Label=ratio".getBytes(Charsets.UTF_8);
+        CEFFields r = new CEFFieldsParser().parseLazy(bytes, 0, bytes.length);
+
+        // Numbers are kept unboxed and boxed on every read, strings are kept.
+        assertEquals(4022, r.get("spt"));
+        assertNotSame(r.get("spt"), r.get("spt"));
+        assertSame(r.get("msg"), r.get("msg"));
+        assertEquals(12345678901L, r.get("eventId"));
+        assertEquals(12345678901L, r.get("eventId"));
+        assertTrue(r.retainsInput());
+
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : r.entrySet()) {
+            keys.add(entry.getKey());
+        }
+        assertEquals(Arrays.asList("spt", "msg", "eventId", "ratio"), keys);
+        assertEquals(4, r.size());
+        assertEquals(4, r.entrySet().size());
+        assertEquals(1.5f, r.get("ratio"));
+
+        // Every field is converted, the payload is no longer needed.
+        assertFalse(r.retainsInput());
+        assertEquals(4022, r.get("spt"));
+        assertEquals("hi", r.get("msg"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testParseLazyReadOnly() throws Exception {
+        byte[] bytes = "spt=22".getBytes(Charsets.UTF_8);
+        new CEFFieldsParser().parseLazy(bytes, 0, bytes.length).put("foo", "bar");
+    }
 }
@@ -0,0 +1,93 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.base.Charsets;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CEFInternCacheTest {
+
+    @Test
+    public void testIntern() throws Exception {
+        CEFInternCache cache = new CEFInternCache(16);
+        byte[] a = "xx|Trend Micro Inc.|".getBytes(Charsets.UTF_8);
+        byte[] b = "Trend Micro Inc.".getBytes(Charsets.UTF_8);
+
+        String first = cache.intern(a, 3, 19, true);
+        assertEquals("Trend Micro Inc.", first);
+        assertSame(first, cache.intern(b, 0, b.length, true));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    public void testInternNonAscii() throws Exception {
+        CEFInternCache cache = new CEFInternCache(16);
+        byte[] in = "Müller GmbH".getBytes(Charsets.UTF_8);
+
+        String first = cache.intern(in, 0, in.length, false);
+        assertEquals("Müller GmbH", first);
+        assertSame(first, cache.intern(in, 0, in.length, false));
+    }
+
+    @Test
+    public void testInternEmptyAndLong() throws Exception {
+        CEFInternCache cache = new CEFInternCache(16);
+        byte[] in = new byte[CEFInternCache.MAX_LENGTH + 1];
+        Arrays.fill(in, (byte) 'a');
+
+        assertEquals("", cache.intern(in, 3, 3, true));
+        assertNotSame(cache.intern(in, 0, in.length, true), cache.intern(in, 0, in.length, true));
+        assertEquals(0, cache.hits());
+        assertEquals(0, cache.misses());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        CEFInternCache cache = new CEFInternCache(10);
+        assertEquals(16, cache.capacity());
+
+        for (int i = 0; i < 1000; i++) {
+            byte[] in = ("value-" + i).getBytes(Charsets.UTF_8);
+            assertEquals("value-" + i, cache.intern(in, 0, in.length, true));
+        }
+        assertEquals(1000, cache.misses());
+        assertTrue(cache.evictions() >= 1000 - cache.capacity());
+    }
+
+    @Test
+    public void testRecentlyUsedStays() throws Exception {
+        // Two sets of two entries each. Everything hashing into the same set competes for two slots.
+        CEFInternCache cache = new CEFInternCache(4);
+        byte[] hot = "hot".getBytes(Charsets.UTF_8);
+        String interned = cache.intern(hot, 0, hot.length, true);
+
+        for (int i = 0; i < 100; i++) {
+            byte[] in = ("cold-" + i).getBytes(Charsets.UTF_8);
+            cache.intern(in, 0, in.length, true);
+            assertSame(interned, cache.intern(hot, 0, hot.length, true));
+        }
+    }
+
+    @Test
+    public void testParserSharesHeaderValues() throws Exception {
+        String line = "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|User missed the password more than one time|10|dvc=ip-172-30-2-212";
+        CEFMessage first = new CEFParser(DateTimeZone.UTC).parse(line);
+        CEFMessage second = new CEFParser(DateTimeZone.UTC).parse(line);
+
+        assertSame(first.deviceVendor(), second.deviceVendor());
+        assertSame(first.deviceProduct(), second.deviceProduct());
+        assertSame(first.deviceVersion(), second.deviceVersion());
+        assertSame(first.deviceEventClassId(), second.deviceEventClassId());
+        assertSame(first.name(), second.name());
+
+        // Escaped header values are unescaped and not shared.
+        CEFMessage escaped = new CEFParser(DateTimeZone.UTC).parse("CEF:0|Trend \\| Micro|OSSEC HIDS|v2.8.3|2502|name|10|dvc=x");
+        assertEquals("Trend | Micro", escaped.deviceVendor());
+    }
+
+}
@@ -43,4 +43,27 @@ public class CEFMessageTest {
         assertEquals("UNKNOWN", messageWithSeverity(-1).humanReadableSeverity());
         assertEquals("UNKNOWN", messageWithSeverity(9001).humanReadableSeverity());
     }
-}
\ No newline at end of file
+    @Test
+    public void testHandlerCollectsFields() throws Exception {
+        CEFMessageHandler handler = new CEFMessageHandler(null);
+        DateTime timestamp = DateTime.now();
+        handler.header(timestamp, 0, "Vendor", "Product", "1.0", "100", "name", 5);
+        handler.field("src", "10.0.0.1");
+        handler.field("msg", "hello");
+        handler.end();
+
+        CEFMessage m = handler.take();
+        assertEquals(timestamp, m.timestamp());
+        assertEquals("10.0.0.1", m.fields().get("src"));
+        assertEquals("hello", m.message());
+        assertEquals(2, m.fields().size());
+
+        // The next message does not see the fields of the last one.
+        handler.header(timestamp, 0, "Vendor", "Product", "1.0", "100", "name", 5);
+        handler.end();
+        m = handler.take();
+        assertTrue(m.fields().isEmpty());
+        assertNull(m.message());
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.graylog.plugins.cef.parser;
+
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Bytes allocated per parsed message, measured with the per thread allocation counter of HotSpot.
+ * The budgets leave room for JIT differences but fail if a buffer is allocated per message again.
+ */
+public class CEFParserAllocationTest {
+
+    private static final int ITERATIONS = 20000;
+
+    //Rejected messages allocate nothing, this only covers the measurement itself.
+    private static final long REJECTED_BUDGET = 8;
+    //The CEFMessage, its fields and the field values.
+    private static final long ACCEPTED_BUDGET = 1024;
+    //A new CEFParser, without any date math or caches of its own.
+    private static final long PARSER_BUDGET = 64;
+
+    private static final byte[][] REJECTED = {
+            bytes("<132>Aug 14 14:26:55 ossec: no CEF here"),
+            bytes("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3"),
+            bytes("<132>Foo 14 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|10|dvc=x"),
+            bytes("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|11|dvc=x"),
+            bytes("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|10|")
+    };
+
+    private static final byte[] ACCEPTED = bytes("<132>Aug 14 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|User missed the password more than one time|10|dvc=ip-172-30-2-212 cs2=ip-172-30-2-212->/var/log/auth.log cs2Label=Location spt=22 cfp2=90.01 cfp2Label=SomeFloat");
+
+    private com.sun.management.ThreadMXBean threads;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private long allocatedPerMessage(CEFParser parser, byte[] message, boolean materialize) {
+        return allocatedPerMessage(() -> parser, message, materialize);
+    }
+
+    private long allocatedPerMessage(Supplier<CEFParser> parsers, byte[] message, boolean materialize) {
+        // Warm up the caches and the JIT.
+        for (int i = 0; i < ITERATIONS; i++) {
+            parse(parsers.get(), message, materialize);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            parse(parsers.get(), message, materialize);
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / ITERATIONS;
+    }
+
+    private static void parse(CEFParser parser, byte[] message, boolean materialize) {
+        CEFParseResult result = parser.tryParse(message);
+        if (materialize) {
+            assertEquals(22, result.message().fields().get("spt"));
+        }
+    }
+
+    @Test
+    public void testRejectedMessagesDoNotAllocate() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        for (byte[] message : REJECTED) {
+            assertFalse(parser.tryParse(message).isSuccess());
+            long allocated = allocatedPerMessage(parser, message, false);
+            assertTrue(new String(message, StandardCharsets.UTF_8) + ": " + allocated + " bytes", allocated <= REJECTED_BUDGET);
+        }
+    }
+
+    @Test
+    public void testAcceptedMessageBudget() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        long allocated = allocatedPerMessage(parser, ACCEPTED, true);
+        assertTrue(allocated + " bytes", allocated <= ACCEPTED_BUDGET);
+    }
+
+    @Test
+    public void testParserPerMessage() throws Exception {
+        // Like Graylog, which creates a codec and so a parser for every message. Only the parser itself may be new.
+        // Both sides are measured a few times, the JIT does not always end up with the same code.
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        long shared = Long.MAX_VALUE;
+        long perMessage = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            shared = Math.min(shared, allocatedPerMessage(parser, ACCEPTED, true));
+            perMessage = Math.min(perMessage, allocatedPerMessage(() -> new CEFParser(DateTimeZone.UTC), ACCEPTED, true));
+        }
+        assertTrue(perMessage + " vs. " + shared + " bytes", perMessage - shared <= PARSER_BUDGET);
+    }
+
+}
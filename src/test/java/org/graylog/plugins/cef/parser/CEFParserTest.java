@@ -3,8 +3,11 @@ package org.graylog.plugins.cef.parser;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.junit.Test;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import static org.junit.Assert.*;
 
 @SuppressWarnings("Duplicates")
@@ -375,6 +378,52 @@ public class CEFParserTest {
         assertEquals("testtesttest\\=\\=", m.fields().get("aid"));
     }
 
+    @Test
+    public void testParseBytes() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        String input = "<132>Aug 14 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|User missed the password more than one time|10|dvc=ip-172-30-2-212 cfp2=90.01 cfp2Label=SomeFloat spt=22 cs2=ip-172-30-2-212->/var/log/auth.log cs2Label=Location msg=Aug 14 14:26:53 ip-172-30-2-212 sshd[16217]: PAM 2 more authentication failures; logname= uid=0 euid=0 tty=ssh ruser= rhost=116.31.116.17  user=root";
+        CEFMessage m = parser.parse(input.getBytes("UTF-8"));
+
+        assertEquals(parser.parse(input).fields(), m.fields());
+        assertEquals("Trend Micro Inc.", m.deviceVendor());
+        assertEquals("OSSEC HIDS", m.deviceProduct());
+        assertEquals("User missed the password more than one time", m.name());
+        assertEquals(10, m.severity());
+        assertEquals("Aug 14 14:26:53 ip-172-30-2-212 sshd[16217]: PAM 2 more authentication failures;", m.message());
+        assertEquals(22, m.fields().get("spt"));
+    }
+
+    @Test
+    public void testParseBytesWithOffset() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        byte[] payload = "garbage CEF:0|Vendor|Product|1.0|100|Name|5|src=10.0.0.1 dpt=443 more garbage".getBytes("UTF-8");
+        CEFMessage m = parser.parse(payload, 8, payload.length - 21);
+
+        assertEquals("Vendor", m.deviceVendor());
+        assertEquals("10.0.0.1", m.fields().get("src"));
+        assertEquals(443, m.fields().get("dpt"));
+        assertEquals(2, m.fields().size());
+    }
+
+    @Test
+    public void testParseBytesNonAscii() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        CEFMessage m = parser.parse("CEF:0|Hersteller \\\\ GmbH|Überwachung\\\\|1.0|100|Zugriff \\| verweigert|5|suser=jürgen cs1=ñ \\= ü cs1Label=Ränder msg=日本語 テキスト".getBytes("UTF-8"));
+
+        assertEquals("Hersteller \\ GmbH", m.deviceVendor());
+        assertEquals("Überwachung\\", m.deviceProduct());
+        assertEquals("Zugriff | verweigert", m.name());
+        assertEquals("jürgen", m.fields().get("suser"));
+        assertEquals("ñ = ü", m.fields().get("Ränder"));
+        assertEquals("日本語 テキスト", m.message());
+    }
+
+    @Test(expected = Exception.class)
+    public void testParseBytesInvalidHeaderEscape() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        parser.parse("CEF:0|Vendor|Pro\\duct|1.0|100|Name|5|src=10.0.0.1".getBytes("UTF-8"));
+    }
+
     // Testing the splitter for pipe delimited messages:
     @Test
     public void testSplitSmallString() throws Exception{
@@ -430,4 +479,320 @@ public class CEFParserTest {
         ArrayList<String> result = CEFParser.pipeSplit(input);
         assertEquals(expected, result);
     }
+
+    @Test
+    public void testSplitOffsets() throws Exception {
+        byte[] input = "xx|a|bb|ccc|d|e|f|g=h|i".getBytes("UTF-8");
+        int[] pipes = new int[CEFParser.HEADER_PIPES];
+        int flags = CEFParser.pipeSplit(input, 1, input.length, pipes);
+
+        assertEquals(0, flags);
+        assertArrayEquals(new int[]{2, 4, 7, 11, 13, 15, 17}, pipes);
+    }
+
+    @Test
+    public void testSplitOffsetsEscapeFlags() throws Exception {
+        byte[] input = "CEF:0|Nessus|Nessus||Nessus\\|18405|Zürich|2|ext\\=x".getBytes("UTF-8");
+        int[] pipes = new int[CEFParser.HEADER_PIPES];
+        int flags = CEFParser.pipeSplit(input, 0, input.length, pipes);
+
+        assertEquals(1 << 4, flags & ~CEFParser.NON_ASCII);
+        assertEquals(CEFParser.NON_ASCII, flags & CEFParser.NON_ASCII);
+        assertEquals(input.length - "ext\\=x".length() - 1, pipes[6]);
+    }
+
+    @Test
+    public void testSplitOffsetsMissingPipes() throws Exception {
+        byte[] input = "a|b|c".getBytes("UTF-8");
+        int[] pipes = new int[CEFParser.HEADER_PIPES];
+        CEFParser.pipeSplit(input, 0, input.length, pipes);
+
+        assertArrayEquals(new int[]{1, 3, -1, -1, -1, -1, -1}, pipes);
+    }
+
+    @Test
+    public void testSplitOffsetsInvalidEscape() throws Exception {
+        byte[] input = "a|b\\c|d|e|f|g|h|i".getBytes("UTF-8");
+        assertEquals(CEFParser.INVALID_ESCAPE, CEFParser.pipeSplit(input, 0, input.length, new int[CEFParser.HEADER_PIPES]));
+        assertNull(CEFParser.pipeSplit("a|b\\c|d|e|f|g|h|i"));
+    }
+
+    @Test
+    public void testParseHeaderVariants() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        String rest = "|Vendor|Product|1.0|100|Name|5|src=10.0.0.1";
+
+        DateTime timestamp = parser.parse("<14>aug\t4\t01:02:03CEF:1" + rest).timestamp();
+        assertEquals(8, timestamp.getMonthOfYear());
+        assertEquals(4, timestamp.getDayOfMonth());
+        assertEquals(1, timestamp.getHourOfDay());
+        assertEquals(2, timestamp.getMinuteOfHour());
+        assertEquals(3, timestamp.getSecondOfMinute());
+
+        CEFMessage m = parser.parse("<14>Dec 31 23:59:59 host CEF:0 relay CEF:1" + rest);
+        assertEquals(12, m.timestamp().getMonthOfYear());
+        assertEquals(31, m.timestamp().getDayOfMonth());
+        assertEquals(1, m.version());
+    }
+
+    @Test
+    public void testParseHeaderEscaped() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        CEFMessage m = parser.parse("<14>Aug 14 14:26:55 host\\|relay CEF:0|Vendor|Product|1.0|100|Name|5|src=10.0.0.1");
+
+        assertEquals(14, m.timestamp().getDayOfMonth());
+        assertEquals("Vendor", m.deviceVendor());
+    }
+
+    @Test
+    public void testParseHeaderRejected() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        String rest = "|Vendor|Product|1.0|100|Name|5|src=10.0.0.1";
+        String[] headers = {
+                "<14>CEF:0",
+                "<14>Foo 14 14:26:55 CEF:0",
+                "<14>Aug 144 14:26:55 CEF:0",
+                "<14>Aug 14 24:26:55 CEF:0",
+                "<14>Aug 31 14:26 CEF:0",
+                "<>Aug 14 14:26:55 CEF:0",
+                "Aug 14 14:26:55 CEF:0",
+                "<14>Aug 14 14:26:55 host",
+                "CEF:x",
+        };
+
+        for (String header : headers) {
+            try {
+                parser.parse(header + rest);
+                fail("Header must be rejected: " + header);
+            } catch (Exception e) {
+                //Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testTryParseFailures() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        String extension = "|dvc=ip-172-30-2-212";
+
+        assertFailure(parser, "no pipes at all", CEFParseResult.Failure.MISSING_HEADER_FIELDS);
+        assertFailure(parser, "CEF:0|Trend Micro \\Inc.|OSSEC HIDS|v2.8.3|2502|name|10" + extension, CEFParseResult.Failure.INVALID_HEADER_ESCAPE);
+        assertFailure(parser, "FOO:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|10" + extension, CEFParseResult.Failure.NOT_CEF);
+        assertFailure(parser, "<132>Feb 30 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|10" + extension, CEFParseResult.Failure.INVALID_DATE);
+        assertFailure(parser, "<132>Apr 31 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|10" + extension, CEFParseResult.Failure.INVALID_DATE);
+        assertFailure(parser, "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|11" + extension, CEFParseResult.Failure.INVALID_SEVERITY);
+        assertFailure(parser, "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|garbage" + extension, CEFParseResult.Failure.INVALID_SEVERITY);
+        assertFailure(parser, "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|10|", CEFParseResult.Failure.NO_EXTENSION);
+        assertFailure(parser, "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|10|spt=1 spt=2", CEFParseResult.Failure.DUPLICATE_KEYS);
+
+        CEFParseResult result = parser.tryParse(("<132>Dec 31 23:59:59 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|High" + extension).getBytes("UTF-8"));
+        assertTrue(result.isSuccess());
+        assertNull(result.failure());
+        assertEquals(8, result.message().severity());
+    }
+
+    private static void assertFailure(CEFParser parser, String message, CEFParseResult.Failure failure) throws Exception {
+        CEFParseResult result = parser.tryParse(message.getBytes("UTF-8"));
+        assertFalse(result.isSuccess());
+        assertNull(result.message());
+        assertEquals(failure, result.failure());
+        assertSame(result, CEFParseResult.failure(failure));
+
+        try {
+            parser.parse(message);
+            fail("Expected an exception for " + message);
+        } catch (Exception e) {
+            assertEquals(failure.message(), e.getMessage());
+            assertEquals(0, e.getStackTrace().length);
+        }
+    }
+
+    @Test
+    public void testDecodeSeverity() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        assertEquals(-1, parser.parseSeverity("-1"));
+        assertEquals(0, parser.parseSeverity("0"));
+        assertEquals(7, parser.parseSeverity("+7"));
+        assertEquals(10, parser.parseSeverity("010"));
+        assertEquals(3, parser.parseSeverity("LoW"));
+        assertEquals(6, parser.parseSeverity("med"));
+        assertEquals(6, parser.parseSeverity("MEDIUM"));
+        assertEquals(8, parser.parseSeverity("High"));
+        assertEquals(10, parser.parseSeverity("Very-High"));
+        assertEquals(10, parser.parseSeverity("very high"));
+        assertEquals(-1, parser.parseSeverity("Unknown"));
+        assertEquals(5, parser.parseSeverity("\u0665"));
+
+        for (String invalid : new String[]{"", "-", "-2", "11", "99999999999999999999", "very  high", "highest", " 5", "\u0661\u0661"}) {
+            try {
+                parser.parseSeverity(invalid);
+                fail("Expected an exception for " + invalid);
+            } catch (Exception e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testTryParseRecords() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        String payload = "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|first|Low|spt=22 msg=a\\=b\r\n"
+                + "\n"
+                + "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|broken\n"
+                + "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|bad|garbage|spt=1\n"
+                + "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|escape|Low|msg=\\n\n"
+                + "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|empty|Low|\n"
+                + "<132>Aug 14 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|last|High|dpt=80";
+
+        ArrayList<CEFParseResult> results = new ArrayList<>();
+        byte[] bytes = payload.getBytes("UTF-8");
+        parser.tryParseRecords(bytes, 0, bytes.length, null, null, results::add);
+
+        assertEquals(6, results.size());
+        assertEquals("first", results.get(0).message().name());
+        assertEquals("a=b", results.get(0).message().message());
+        assertEquals(22, results.get(0).message().fields().get("spt"));
+        assertEquals(CEFParseResult.Failure.MISSING_HEADER_FIELDS, results.get(1).failure());
+        assertEquals(CEFParseResult.Failure.INVALID_SEVERITY, results.get(2).failure());
+        assertTrue(results.get(3).isSuccess());
+        assertTrue(results.get(3).message().fields().isEmpty());
+        assertEquals(CEFParseResult.Failure.NO_EXTENSION, results.get(4).failure());
+        assertEquals("last", results.get(5).message().name());
+        assertEquals(80, results.get(5).message().fields().get("dpt"));
+        assertEquals(1, results.get(5).message().fields().size());
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC, new CEFLimits(4, 8, 0));
+
+        CEFMessage m = parser.parse("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|spt=22 msg=0123456789 cs1=\u00e4\u00e4\u00e4\u00e4\u00e4 cs1Label=umlauts dpt=80");
+        assertEquals(22, m.fields().get("spt"));
+        assertEquals("01234567", m.message());
+        assertEquals("\u00e4\u00e4\u00e4\u00e4", m.fields().get("umlauts"));
+        assertEquals("msg,umlauts", m.fields().get(CEFLimits.TRUNCATED_FIELDS));
+        assertEquals(Boolean.TRUE, m.fields().get(CEFLimits.FIELDS_DROPPED));
+        assertFalse(m.fields().containsKey("dpt"));
+
+        // Never cut an escape sequence in half.
+        m = parser.parse("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|msg=0123456\\\\89");
+        assertEquals("0123456", m.message());
+
+        m = parser.parse("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|spt=22 msg=01234567");
+        assertEquals(2, m.fields().size());
+        assertNull(m.fields().get(CEFLimits.TRUNCATED_FIELDS));
+        assertNull(m.fields().get(CEFLimits.FIELDS_DROPPED));
+    }
+
+    @Test
+    public void testTimeBudget() throws Exception {
+        StringBuilder extension = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            extension.append("k").append(i).append("=v ");
+        }
+        String message = "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|" + extension;
+
+        CEFMessage m = new CEFParser(DateTimeZone.UTC, new CEFLimits(0, 0, 1)).parse(message);
+        assertEquals(Boolean.TRUE, m.fields().get(CEFLimits.FIELDS_DROPPED));
+        assertTrue(m.fields().size() < 200000);
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        String line = "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|spt=22 dpt=80 msg=hi cs1=a cs1Label=label1 cs2=b cs2Label=other sp\\=t=1 custom=c";
+
+        CEFMessage m = new CEFParser(DateTimeZone.UTC, CEFLimits.NONE, CEFProjection.compile("spt, label*, sp=t, custom", "")).parse(line);
+        assertEquals(4, m.fields().size());
+        assertEquals(22, m.fields().get("spt"));
+        assertEquals("a", m.fields().get("label1"));
+        assertEquals("1", m.fields().get("sp=t"));
+        assertEquals("c", m.fields().get("custom"));
+
+        m = new CEFParser(DateTimeZone.UTC, CEFLimits.NONE, CEFProjection.compile(null, "dpt,msg,other,custom")).parse(line);
+        assertEquals(3, m.fields().size());
+        assertEquals(22, m.fields().get("spt"));
+        assertEquals("a", m.fields().get("label1"));
+        assertEquals("1", m.fields().get("sp=t"));
+        assertNull(m.message());
+
+        // Exclusion wins.
+        m = new CEFParser(DateTimeZone.UTC, CEFLimits.NONE, CEFProjection.compile("spt,dpt", "d*")).parse(line);
+        assertEquals(1, m.fields().size());
+        assertEquals(22, m.fields().get("spt"));
+    }
+
+    @Test
+    public void testFullNames() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC, CEFLimits.NONE, CEFProjection.compile(null, "sourcePort"), true);
+        String line = "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|src=10.0.0.1 spt=22 dpt=80 msg=hi cs1=a cs1Label=label1 fileHash=abc vendorKey=x";
+
+        CEFMessage m = parser.parse(line);
+        assertEquals(6, m.fields().size());
+        assertEquals("10.0.0.1", m.fields().get("sourceAddress"));
+        assertEquals(80, m.fields().get("destinationPort"));
+        assertEquals("hi", m.fields().get("msg"));
+        assertEquals("hi", m.message());
+        assertEquals("a", m.fields().get("label1"));
+        assertEquals("abc", m.fields().get("fileHash"));
+        assertEquals("x", m.fields().get("vendorKey"));
+        assertFalse(m.fields().containsKey("src"));
+
+        assertEquals("deviceCustomString1Label", CEFExtensionKey.forName("cs1Label").fullName());
+        assertEquals("deviceCustomFloatingPoint2", CEFExtensionKey.forName("cfp2").fullName());
+
+        // Vendor keys and custom field labels are shared between messages.
+        CEFMessage other = parser.parse(line);
+        assertSame(m.fields().keySet().stream().filter("vendorKey"::equals).findFirst().get(),
+                other.fields().keySet().stream().filter("vendorKey"::equals).findFirst().get());
+        assertSame(m.fields().keySet().stream().filter("label1"::equals).findFirst().get(),
+                other.fields().keySet().stream().filter("label1"::equals).findFirst().get());
+    }
+
+    @Test
+    public void testHandler() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        List<String> events = new ArrayList<>();
+        List<DateTime> timestamps = new ArrayList<>();
+        CEFHandler handler = new CEFHandler() {
+            @Override
+            public void header(DateTime timestamp, int version, String deviceVendor, String deviceProduct, String deviceVersion,
+                               String deviceEventClassId, String name, int severity) {
+                timestamps.add(timestamp);
+                events.add("header " + version + " " + deviceVendor + " " + deviceProduct + " "
+                        + deviceVersion + " " + deviceEventClassId + " " + name + " " + severity);
+            }
+
+            @Override
+            public void field(String name, Object value) {
+                events.add(name + "=" + value + " (" + value.getClass().getSimpleName() + ")");
+            }
+
+            @Override
+            public void end() {
+                events.add("end");
+            }
+        };
+
+        byte[] line = "<132>Aug 14 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|spt=22 cs1=a cs1Label=label1 dpt=x msg=hi".getBytes(StandardCharsets.UTF_8);
+        assertNull(parser.tryParse(line, 0, line.length, null, null, handler));
+        assertEquals(8, timestamps.get(0).getMonthOfYear());
+        assertEquals(Arrays.asList(
+                "header 0 Trend Micro Inc. OSSEC HIDS v2.8.3 2502 name 3",
+                "spt=22 (Integer)",
+                "msg=hi (String)",
+                "label1=a (String)",
+                "end"), events);
+
+        // Rejected messages cause no calls.
+        events.clear();
+        byte[] duplicate = "CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|spt=22 spt=23".getBytes(StandardCharsets.UTF_8);
+        assertEquals(CEFParseResult.Failure.DUPLICATE_KEYS, parser.tryParse(duplicate, 0, duplicate.length, null, null, handler));
+        assertTrue(events.isEmpty());
+
+        byte[] records = "CEF:0|a|b|c|d|e|Low|spt=1\nCEF:0|a|b|c|d|e|Low|\nCEF:0|a|b|c|d|e|Low|spt=2".getBytes(StandardCharsets.UTF_8);
+        List<CEFParseResult.Failure> failures = new ArrayList<>();
+        parser.tryParseRecords(records, 0, records.length, null, null, handler, failures::add);
+        assertEquals(Arrays.asList("header 0 a b c d e 3", "spt=1 (Integer)", "end", "header 0 a b c d e 3", "spt=2 (Integer)", "end"), events);
+        assertEquals(Collections.singletonList(CEFParseResult.Failure.NO_EXTENSION), failures);
+    }
 }
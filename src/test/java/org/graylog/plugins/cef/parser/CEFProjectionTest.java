@@ -0,0 +1,47 @@
+package org.graylog.plugins.cef.parser;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class CEFProjectionTest {
+
+    @Test
+    public void testCompile() throws Exception {
+        assertSame(CEFProjection.ALL, CEFProjection.compile(null, null));
+        assertSame(CEFProjection.ALL, CEFProjection.compile(" , ", ""));
+        assertSame(CEFProjection.compile("src, dst", null), CEFProjection.compile("src,dst", ""));
+        assertNotSame(CEFProjection.compile("src,dst", null), CEFProjection.compile(null, "src,dst"));
+    }
+
+    @Test
+    public void testCompileSameSettings() throws Exception {
+        CEFProjection projection = CEFProjection.compile("spt,dpt", "d*");
+
+        assertSame(projection, CEFProjection.compile(new String("spt,dpt"), new String("d*")));
+        assertTrue(CEFProjection.compile("spt,dpt", null).keeps("dpt"));
+        assertFalse(CEFProjection.compile("spt,dpt", "d*").keeps("dpt"));
+        assertSame(projection, CEFProjection.compile("spt,dpt", "d*"));
+    }
+
+    @Test
+    public void testKeeps() throws Exception {
+        CEFProjection projection = CEFProjection.compile("src,dst,cs*,c", "cs2");
+
+        assertFalse(projection.keepsAll());
+        assertTrue(projection.keeps(CEFExtensionKey.forName("src")));
+        assertFalse(projection.keeps(CEFExtensionKey.forName("spt")));
+        assertTrue(projection.keeps("cs1"));
+        assertTrue(projection.keeps("cs"));
+        assertTrue(projection.keeps("c"));
+        assertFalse(projection.keeps("cs2"));
+        assertFalse(projection.keeps("d"));
+        assertFalse(projection.keeps("srcx"));
+
+        byte[] bytes = "xdstx".getBytes(StandardCharsets.UTF_8);
+        assertTrue(projection.keeps(bytes, 1, 4));
+        assertFalse(projection.keeps(bytes, 1, 5));
+    }
+}
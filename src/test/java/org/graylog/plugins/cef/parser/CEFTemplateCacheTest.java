@@ -0,0 +1,131 @@
+package org.graylog.plugins.cef.parser;
+
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CEFTemplateCacheTest {
+
+    private static CEFTemplateCache.Template template(String vendor) {
+        for (CEFTemplateCache.Template template : CEFTemplateCache.shared().templates()) {
+            if (template.vendor().equals(vendor)) {
+                return template;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testLearnedOrder() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        String header = "CEF:0|Template Test|Firewall|1.0|100|accept|Low|";
+
+        CEFMessage m = parser.parse(header + "src=10.0.0.1 spt=1234 dst=10.0.0.2 dpt=443 proto=TCP act=accept rule=7");
+        CEFTemplateCache.Template template = template("Template Test");
+        assertNotNull(template);
+        assertEquals("Template Test/Firewall/1.0/100", template.toString());
+        assertEquals(0, template.hits());
+        assertEquals(1, template.misses());
+        assertEquals("7", m.fields().get("rule"));
+
+        m = parser.parse(header + "src=10.0.0.3 spt=4321 dst=10.0.0.4 dpt=80 proto=UDP act=accept rule=8");
+        assertEquals(1, template.hits());
+        assertEquals(1, template.misses());
+        assertEquals("10.0.0.3", m.fields().get("src"));
+        assertEquals(80, m.fields().get("dpt"));
+        assertEquals("8", m.fields().get("rule"));
+        assertEquals(7, m.fields().size());
+
+        // A different order falls back to the lookup and is learned.
+        m = parser.parse(header + "src=10.0.0.5 dst=10.0.0.6 spt=1 dpt=2 proto=TCP act=deny zone=dmz");
+        assertEquals(1, template.hits());
+        assertEquals(2, template.misses());
+        assertEquals(1, m.fields().get("spt"));
+        assertEquals("dmz", m.fields().get("zone"));
+        assertNull(m.fields().get("rule"));
+
+        m = parser.parse(header + "src=10.0.0.7 dst=10.0.0.8 spt=3 dpt=4 proto=TCP act=deny zone=lan");
+        assertEquals(2, template.hits());
+        assertEquals("lan", m.fields().get("zone"));
+        assertEquals(4, m.fields().get("dpt"));
+
+        // Same length, one key differs.
+        m = parser.parse(header + "src=10.0.0.7 dst=10.0.0.8 spt=3 dpt=4 proto=TCP act=deny zonf=lan");
+        assertEquals(3, template.misses());
+        assertEquals("lan", m.fields().get("zonf"));
+        assertNull(m.fields().get("zone"));
+    }
+
+    @Test
+    public void testLearnedOrderHasNoStaleNames() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        String header = "CEF:0|Template Names|Firewall|1.0|100|accept|Low|";
+
+        parser.parse(header + "zone=dmz rule=7");
+        parser.parse(header + "src=10.0.0.1 dpt=443");
+        CEFTemplateCache.Order order = template("Template Names").order();
+        assertNotNull(order.keys[0]);
+        assertNotNull(order.keys[1]);
+        assertNull(order.names[0]);
+        assertNull(order.names[1]);
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        CEFTemplateCache cache = new CEFTemplateCache(2);
+        CEFTemplateCache.Template first = cache.template("a", "b", "c", "1");
+        assertSame(first, cache.template("a", "b", "c", "1"));
+        assertNotNull(cache.template("a", "b", "c", "2"));
+        assertNull(cache.template("a", "b", "c", "3"));
+        assertSame(first, cache.template("a", "b", "c", "1"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.overflows());
+    }
+
+    @Test
+    public void testRelearnBounded() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC);
+        String header = "CEF:0|Template Shuffle|Firewall|1.0|100|accept|Low|";
+
+        // Every message has another order, only the first ones are learned.
+        parser.parse(header + "src=10.0.0.1 k0=0");
+        CEFTemplateCache.Template template = template("Template Shuffle");
+        CEFTemplateCache.Order learned = null;
+        for (int i = 1; i < CEFTemplateCache.MAX_RELEARNS + 10; i++) {
+            parser.parse(header + "src=10.0.0.1 k" + i + "=" + i);
+            if (i == CEFTemplateCache.MAX_RELEARNS) {
+                learned = template.order();
+            }
+        }
+        assertEquals(CEFTemplateCache.MAX_RELEARNS + 10, template.misses());
+        assertSame(learned, template.order());
+
+        // Then only once per interval.
+        for (long i = template.misses(); i < CEFTemplateCache.MAX_RELEARNS + CEFTemplateCache.RELEARN_INTERVAL - 1; i++) {
+            parser.parse(header + "src=10.0.0.1 x" + i + "=" + i);
+        }
+        assertSame(learned, template.order());
+        parser.parse(header + "src=10.0.0.1 last=1");
+        assertNotSame(learned, template.order());
+
+        // Which a device that settles on it hits again.
+        CEFMessage m = parser.parse(header + "src=10.0.0.2 last=2");
+        assertEquals(1, template.hits());
+        assertEquals("2", m.fields().get("last"));
+    }
+
+    @Test
+    public void testFullCacheDoesNotLock() throws Exception {
+        CEFTemplateCache cache = new CEFTemplateCache(1);
+        assertNotNull(cache.template("a", "b", "c", "1"));
+        synchronized (cache) {
+            // add() would block on the lock held by this thread.
+            Thread other = new Thread(() -> cache.template("a", "b", "c", "2"));
+            other.start();
+            other.join(5000);
+            assertFalse(other.isAlive());
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.graylog.plugins.cef.parser;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CEFTimestampCacheTest {
+
+    private static final int AUG_14_142655 = 8 << 22 | 14 << 17 | 14 << 12 | 26 << 6 | 55;
+    private static final int AUG_14_142656 = AUG_14_142655 + 1;
+    private static final int AUG_14_142657 = AUG_14_142655 + 2;
+
+    @Test
+    public void testCurrentAndPreviousSecond() throws Exception {
+        CEFTimestampCache cache = new CEFTimestampCache();
+        DateTime first = new DateTime(2016, 8, 14, 14, 26, 55, DateTimeZone.UTC);
+        DateTime second = new DateTime(2016, 8, 14, 14, 26, 56, DateTimeZone.UTC);
+
+        assertNull(cache.get(DateTimeZone.UTC, 2016, AUG_14_142655));
+        cache.put(DateTimeZone.UTC, 2016, AUG_14_142655, first);
+        cache.put(DateTimeZone.UTC, 2016, AUG_14_142656, second);
+
+        assertSame(first, cache.get(DateTimeZone.UTC, 2016, AUG_14_142655));
+        assertSame(second, cache.get(DateTimeZone.UTC, 2016, AUG_14_142656));
+
+        // A third second pushes out the oldest one.
+        cache.put(DateTimeZone.UTC, 2016, AUG_14_142657, second.plusSeconds(1));
+        assertNull(cache.get(DateTimeZone.UTC, 2016, AUG_14_142655));
+        assertNotNull(cache.get(DateTimeZone.UTC, 2016, AUG_14_142656));
+    }
+
+    @Test
+    public void testYearAndTimezoneAreKeys() throws Exception {
+        CEFTimestampCache cache = new CEFTimestampCache();
+        cache.put(DateTimeZone.UTC, 2016, AUG_14_142655, new DateTime(2016, 8, 14, 14, 26, 55, DateTimeZone.UTC));
+
+        assertNull(cache.get(DateTimeZone.UTC, 2017, AUG_14_142655));
+        assertNull(cache.get(DateTimeZone.forID("Europe/Berlin"), 2016, AUG_14_142655));
+    }
+
+    @Test
+    public void testParserReusesTimestamps() throws Exception {
+        String line = "<132>Aug 14 14:26:55 CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|User missed the password more than one time|10|dvc=ip-172-30-2-212";
+
+        CEFParser utc = new CEFParser(DateTimeZone.UTC);
+        long hits = CEFTimestampCache.hits();
+        DateTime first = utc.parse(line).timestamp();
+        assertSame(first, new CEFParser(DateTimeZone.UTC).parse(line).timestamp());
+        assertTrue(CEFTimestampCache.hits() > hits);
+
+        // Same header, other timezone.
+        DateTime berlin = new CEFParser(DateTimeZone.forID("Europe/Berlin")).parse(line).timestamp();
+        assertEquals(first.getMillis() - 2 * 3600 * 1000, berlin.getMillis());
+        assertEquals(14, berlin.getHourOfDay());
+        assertEquals(first, utc.parse(line).timestamp());
+    }
+
+    @Test
+    public void testHitRatio() throws Exception {
+        double ratio = CEFTimestampCache.hitRatio().getValue();
+        assertTrue(Double.isNaN(ratio) || (ratio >= 0 && ratio <= 1));
+    }
+
+}
@@ -0,0 +1,163 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CEFTimestampsTest {
+
+    private static final CEFClock UTC = new CEFClock(DateTimeZone.UTC);
+    private static final CEFClock BERLIN = new CEFClock(DateTimeZone.forID("Europe/Berlin"));
+
+    private static DateTime parse(String value, CEFClock clock) {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        return CEFTimestamps.parse(bytes, 0, bytes.length, clock);
+    }
+
+    private static DateTime utc(int year, int month, int day, int hour, int minute, int second, int millis) {
+        return new DateTime(year, month, day, hour, minute, second, millis, DateTimeZone.UTC);
+    }
+
+    @Test
+    public void testEpochMillis() throws Exception {
+        assertEquals(new DateTime(1482522872412L, DateTimeZone.UTC), parse("1482522872412", UTC));
+        assertEquals(new DateTime(1482522872412L, DateTimeZone.UTC), parse(" 1482522872412 ", BERLIN));
+        assertEquals(new DateTime(100000000000L, DateTimeZone.UTC), parse("100000000000", UTC));
+        assertNull(parse("1482522872412x", UTC));
+        assertNull(parse("12345678901234567890", UTC));
+    }
+
+    @Test
+    public void testEpochSeconds() throws Exception {
+        assertEquals(new DateTime(1482522872000L, DateTimeZone.UTC), parse("1482522872", UTC));
+        assertEquals(new DateTime(14825228720000L, DateTimeZone.UTC), parse("14825228720", BERLIN));
+    }
+
+    @Test
+    public void testShortNumbersAreNoTimestamps() throws Exception {
+        assertNull(parse("0", UTC));
+        assertNull(parse("12345", UTC));
+        assertNull(parse("148252287", UTC));
+        assertTrue(CEFTimestamps.isNumber(" 12345 ".getBytes(Charsets.UTF_8), 0, 7));
+        assertFalse(CEFTimestamps.isNumber("12a45".getBytes(Charsets.UTF_8), 0, 5));
+    }
+
+    @Test
+    public void testSyslogFormat() throws Exception {
+        assertEquals(utc(2016, 8, 14, 14, 26, 55, 0), parse("Aug 14 2016 14:26:55", UTC));
+        assertEquals(utc(2016, 8, 14, 12, 26, 55, 0), parse("Aug 14 2016 14:26:55", BERLIN));
+        assertEquals(utc(2016, 8, 14, 14, 26, 55, 123), parse("Aug 14 2016 14:26:55.123", UTC));
+        assertEquals(utc(2016, 8, 4, 14, 26, 55, 120), parse("aug  4 2016 14:26:55.12 UTC", BERLIN));
+        assertEquals(utc(2016, 8, 14, 21, 26, 55, 0), parse("Aug 14 2016 14:26:55 PDT", UTC));
+        assertEquals(utc(2016, 8, 14, 12, 26, 55, 0), parse("Aug 14 2016 14:26:55 Europe/Berlin", UTC));
+        assertEquals(utc(2016, 8, 14, 13, 26, 55, 0), parse("Aug 14 2016 14:26:55 +01:00", UTC));
+        assertEquals(utc(2016, 8, 14, 15, 56, 55, 0), parse("Aug 14 2016 14:26:55 -0130", UTC));
+
+        // Without a year, in the current year of the clock.
+        DateTime noYear = parse("Aug 14 14:26:55.5", UTC);
+        assertEquals(UTC.currentYear(), noYear.getYear());
+        assertEquals(500, noYear.getMillisOfSecond());
+
+        assertNull(parse("Aug 14 2016 14:26:55 Nowhere/Else", UTC));
+        assertNull(parse("Aug 14 2016 14:26", UTC));
+        assertNull(parse("Foo 14 2016 14:26:55", UTC));
+        assertNull(parse("Feb 30 2016 14:26:55", UTC));
+        assertNull(parse("Aug 14 2016 24:26:55", UTC));
+        assertNull(parse("Aug 14 2016 14:26:55x", UTC));
+    }
+
+    @Test
+    public void testZoneIds() throws Exception {
+        // Known and unknown IDs are remembered, asking again gives the same answer.
+        for (int i = 0; i < 2; i++) {
+            assertEquals(utc(2016, 8, 14, 18, 26, 55, 0), parse("Aug 14 2016 14:26:55 America/New_York", UTC));
+            assertEquals(utc(2016, 8, 14, 19, 26, 55, 0), parse("Aug 14 2016 14:26:55 Etc/GMT+5", UTC));
+            assertNull(parse("Aug 14 2016 14:26:55 Nowhere/Else", UTC));
+        }
+        assertNull(parse("Aug 14 2016 14:26:55 Europe/Berlin!", UTC));
+        assertNull(parse("Aug 14 2016 14:26:55 Europe/" + Strings.repeat("x", 100), UTC));
+    }
+
+    @Test
+    public void testIso() throws Exception {
+        assertEquals(utc(2016, 8, 19, 21, 51, 8, 0), parse("2016-08-19T21:51:08+00:00", BERLIN));
+        assertEquals(utc(2016, 8, 19, 21, 51, 8, 0), parse("2016-08-19T21:51:08Z", BERLIN));
+        assertEquals(utc(2016, 8, 19, 19, 51, 8, 0), parse("2016-08-19T21:51:08", BERLIN));
+        assertEquals(utc(2016, 8, 19, 19, 51, 8, 250), parse("2016-08-19 21:51:08.250+0200", UTC));
+        assertEquals(utc(2016, 8, 20, 0, 51, 8, 123), parse("2016-08-19T21:51:08.123456-03", UTC));
+        assertEquals(utc(2016, 2, 29, 0, 0, 0, 0), parse("2016-02-29T00:00:00Z", UTC));
+
+        assertNull(parse("2015-02-29T00:00:00Z", UTC));
+        assertNull(parse("2016-08-19", UTC));
+        assertNull(parse("2016-08-19T21:51:08+25:00", UTC));
+        assertNull(parse("2016-08-19T21:51:08 UTC", UTC));
+    }
+
+    @Test
+    public void testMemo() throws Exception {
+        parse("2016-08-19T21:51:08Z", UTC);
+        long hits = CEFTimestamps.hits();
+        long misses = CEFTimestamps.misses();
+
+        // Same second, other fraction.
+        assertEquals(utc(2016, 8, 19, 21, 51, 8, 999), parse("2016-08-19T21:51:08.999Z", UTC));
+        assertEquals(hits + 1, CEFTimestamps.hits());
+        assertEquals(misses, CEFTimestamps.misses());
+
+        // Same local second with another offset is another instant.
+        assertEquals(utc(2016, 8, 19, 20, 51, 8, 0), parse("2016-08-19T21:51:08+01:00", UTC));
+        assertEquals(misses + 1, CEFTimestamps.misses());
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC, CEFLimits.NONE, CEFProjection.ALL, false, CEFVendorProfiles.NONE,
+                CEFParser.Timestamps.PARSE);
+        CEFMessage m = parser.parse("CEF:0|Vendor|Product|1.0|100|name|5|rt=1482522872412 start=Aug 14 2016 14:26:55 "
+                + "end=Aug 14 2016 14:27:03 deviceCustomDate1=2016-08-19T21:51:08+00:00 deviceCustomDate1Label=seen "
+                + "flexDate1=yesterday flexDate1Label=bad msg=2016-08-19T21:51:08Z");
+        assertEquals(new DateTime(1482522872412L, DateTimeZone.UTC), m.fields().get("rt"));
+        assertEquals(utc(2016, 8, 14, 14, 26, 55, 0), m.fields().get("start"));
+        assertEquals(utc(2016, 8, 14, 14, 27, 3, 0), m.fields().get("end"));
+        assertEquals(utc(2016, 8, 19, 21, 51, 8, 0), m.fields().get("seen"));
+        assertNull(m.fields().get("bad"));
+        assertEquals("2016-08-19T21:51:08Z", m.fields().get("msg"));
+
+        // Short numbers are counters or ids, not dates in 1970, and stay text.
+        m = parser.parse("CEF:0|Vendor|Product|1.0|100|name|5|rt=12345 start=1482522872");
+        assertEquals("12345", m.fields().get("rt"));
+        assertEquals(new DateTime(1482522872000L, DateTimeZone.UTC), m.fields().get("start"));
+
+        // Kept as text by default.
+        m = new CEFParser(DateTimeZone.UTC).parse("CEF:0|Vendor|Product|1.0|100|name|5|rt=1482522872412");
+        assertEquals("1482522872412", m.fields().get("rt"));
+    }
+
+    @Test
+    public void testReceiptTime() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC, CEFLimits.NONE, CEFProjection.compile(null, "rt"), false,
+                CEFVendorProfiles.NONE, CEFParser.Timestamps.RECEIPT_TIME);
+
+        // rt wins over the header, even if it is not kept.
+        CEFMessage m = parser.parse("<132>Aug 14 14:26:55 CEF:0|Vendor|Product|1.0|100|name|5|rt=Aug 13 2016 10:00:00.250 src=10.0.0.1");
+        assertEquals(utc(2016, 8, 13, 10, 0, 0, 250), m.timestamp().withZone(DateTimeZone.UTC));
+        assertEquals(ImmutableMap.of("src", "10.0.0.1"), ImmutableMap.copyOf(m.fields()));
+
+        // An invalid rt keeps the header timestamp.
+        m = parser.parse("<132>Aug 14 14:26:55 CEF:0|Vendor|Product|1.0|100|name|5|rt=soon src=10.0.0.1");
+        assertEquals(14, m.timestamp().getHourOfDay());
+        assertEquals(26, m.timestamp().getMinuteOfHour());
+
+        // So does a message without rt, after one that had it.
+        parser.parse("CEF:0|Vendor|Product|1.0|100|name|5|rt=1482522872412");
+        m = parser.parse("<132>Aug 14 14:26:55 CEF:0|Vendor|Product|1.0|100|name|5|src=10.0.0.1");
+        assertEquals(55, m.timestamp().getSecondOfMinute());
+        assertEquals(8, m.timestamp().getMonthOfYear());
+    }
+
+}
@@ -0,0 +1,140 @@
+package org.graylog.plugins.cef.parser;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class CEFVendorProfilesTest {
+
+    private static final String FORTINET = "{\"profiles\": ["
+            + "{\"vendor\": \"Fortinet\", \"product\": \"Fortigate\", \"fields\": {"
+            + "\"cs1\": {\"name\": \"policy_name\"},"
+            + "\"cn1\": {\"type\": \"integer\"},"
+            + "\"cs6\": {\"drop\": true},"
+            + "\"src\": {\"name\": \"client_ip\"},"
+            + "\"FTNTFGTsentbyte\": {\"name\": \"sent_bytes\", \"type\": \"long\"},"
+            + "\"FTNTFGTsubtypeLabel\": {}}},"
+            + "{\"vendor\": \"Fortinet\", \"fields\": {\"dvchost\": {\"drop\": true}}}]}";
+
+    private static CEFVendorProfiles read(String json) throws IOException {
+        return CEFVendorProfiles.read(new ByteArrayInputStream(json.getBytes(Charsets.UTF_8)));
+    }
+
+    @Test
+    public void testProfile() throws Exception {
+        CEFVendorProfiles profiles = read(FORTINET);
+        assertEquals(2, profiles.profiles().size());
+        assertEquals("Fortinet/Fortigate", profiles.profile("Fortinet", "Fortigate").toString());
+        // Products without a profile of their own get the one of the vendor.
+        assertEquals("Fortinet", profiles.profile("Fortinet", "FortiMail").toString());
+        assertNull(profiles.profile("Palo Alto Networks", "PAN-OS"));
+        assertNull(CEFVendorProfiles.NONE.profile("Fortinet", "Fortigate"));
+        assertSame(CEFVendorProfiles.NONE, CEFVendorProfiles.forFile(""));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC, CEFLimits.NONE, CEFProjection.ALL, false, read(FORTINET));
+
+        // cs1 is named by the profile, its label is not needed.
+        CEFMessage m = parser.parse("CEF:0|Fortinet|Fortigate|5.4|0000000013|forward traffic|5|src=10.0.0.1 spt=1234 "
+                + "cs1=allow-web cn1=42 cn1Label=session cs6=internal cs6Label=zone FTNTFGTsentbyte=1200 "
+                + "FTNTFGTsubtypeLabel=forward dvchost=fw1");
+        assertEquals("10.0.0.1", m.fields().get("client_ip"));
+        assertNull(m.fields().get("src"));
+        assertEquals(1234, m.fields().get("spt"));
+        assertEquals("allow-web", m.fields().get("policy_name"));
+        assertEquals(42, m.fields().get("session"));
+        assertNull(m.fields().get("zone"));
+        assertEquals(1200L, m.fields().get("sent_bytes"));
+        assertEquals("forward", m.fields().get("FTNTFGTsubtypeLabel"));
+        assertEquals("fw1", m.fields().get("dvchost"));
+        assertEquals(7, m.fields().size());
+
+        // The vendor profile only drops dvchost.
+        m = parser.parse("CEF:0|Fortinet|FortiMail|5.4|1|mail|5|src=10.0.0.1 cs1=a cs1Label=label1 dvchost=mail1");
+        assertEquals("10.0.0.1", m.fields().get("src"));
+        assertEquals("a", m.fields().get("label1"));
+        assertEquals(2, m.fields().size());
+
+        // Other vendors are parsed as usual.
+        m = parser.parse("CEF:0|Trend Micro Inc.|OSSEC HIDS|v2.8.3|2502|name|Low|src=10.0.0.1 cs6=b cs6Label=zone FTNTFGTsentbyte=1");
+        assertEquals("10.0.0.1", m.fields().get("src"));
+        assertEquals("b", m.fields().get("zone"));
+        assertEquals("1", m.fields().get("FTNTFGTsentbyte"));
+    }
+
+    @Test
+    public void testRenameCollision() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC, CEFLimits.NONE, CEFProjection.ALL, false,
+                read("{\"profiles\": [{\"vendor\": \"Check Point\", \"fields\": {\"cs1\": {\"name\": \"src\"}, \"cs2\": {\"name\": \"rule\"}}}]}"));
+        long collisions = CEFErrorReporter.shared().fieldErrors(CEFErrorReporter.FieldError.RENAME_COLLISION);
+
+        // The renamed field wins, before or after the field it collides with.
+        CEFMessage m = parser.parse("CEF:0|Check Point|VPN-1|R80|1|accept|5|src=10.0.0.1 cs1=gateway spt=1234");
+        assertEquals("gateway", m.fields().get("src"));
+        assertEquals(1234, m.fields().get("spt"));
+        assertEquals(2, m.fields().size());
+
+        m = parser.parse("CEF:0|Check Point|VPN-1|R80|1|accept|5|cs2=allow rule=7 spt=1234");
+        assertEquals("allow", m.fields().get("rule"));
+        assertEquals(2, m.fields().size());
+        assertEquals(collisions + 2, CEFErrorReporter.shared().fieldErrors(CEFErrorReporter.FieldError.RENAME_COLLISION));
+
+        // Keys that really are duplicated still reject the message.
+        assertFalse(parser.tryParse("CEF:0|Check Point|VPN-1|R80|1|accept|5|rule=1 rule=2".getBytes(Charsets.UTF_8)).isSuccess());
+    }
+
+    @Test
+    public void testProjectionAndFullNames() throws Exception {
+        CEFParser parser = new CEFParser(DateTimeZone.UTC, CEFLimits.NONE, CEFProjection.compile("policy_name,sourcePort", null), true, read(FORTINET));
+
+        CEFMessage m = parser.parse("CEF:0|Fortinet|Fortigate|5.4|13|traffic|5|src=10.0.0.1 spt=1234 cs1=allow-web");
+        assertEquals(1234, m.fields().get("sourcePort"));
+        assertEquals("allow-web", m.fields().get("policy_name"));
+        assertEquals(2, m.fields().size());
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        try {
+            read("{\"profiles\": [{\"vendor\": \"Fortinet\", \"fields\": {\"cs1Label\": {\"name\": \"policy\"}}}]}");
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            read("{\"profiles\": [{\"vendor\": \"Fortinet\", \"fields\": {\"cn1\": {\"type\": \"bignum\"}}}]}");
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            read("{\"profiles\": [{\"vendor\": \"Fortinet\"}, {\"vendor\": \"Fortinet\"}]}");
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            read("{\"profiles\": [{\"vendor\": \"Fortinet\", \"fields\": {\"cs1\": {\"name\": \"x\"}, \"cs2\": {\"name\": \"x\"}}}]}");
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            read("[]");
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            new CEFVendorProfiles(ImmutableList.of(new CEFVendorProfile("Check Point", null,
+                    ImmutableMap.of("cs2Label", new CEFVendorProfile.Rule("x", null)))));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+}